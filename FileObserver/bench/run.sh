@@ -0,0 +1,36 @@
+#!/bin/sh
+# Builds the native engine for this machine and runs the JMH benchmarks in
+# src/ against it, on a plain JVM with the stand-ins for the few Android
+# classes the engine uses from stubs/.
+#
+#   JMH_CP=jmh-core.jar:jmh-generator-annprocess.jar:jopt-simple.jar:commons-math3.jar \
+#       ./run.sh [JMH options] [benchmark regexp]
+#
+# The JMH jars are not part of the project; any 1.x release will do.  Some
+# useful runs:
+#
+#   ./run.sh EventThroughput -prof gc    # events/s, gc.alloc.rate.norm is bytes per event
+#   ./run.sh EventLatency                # close to FileListener, percentiles in us
+#   ./run.sh Registration StopWatching   # ms by tree size, depth and watch count
+#   ./run.sh -lp                         # list the benchmarks and their parameters
+#
+# BENCH_DIR is where the trees are made, /dev/shm unless set; keep it on a
+# tmpfs so the disk stays out of the numbers.  The registration and stop
+# benchmarks need up to 5000 inotify watches, see
+# /proc/sys/fs/inotify/max_user_watches.
+
+set -e
+cd "$(dirname "$0")"
+if [ -z "$JMH_CP" ]; then
+    echo "set JMH_CP to the JMH jars, see $0" >&2
+    exit 1
+fi
+
+make
+rm -rf out/classes
+mkdir -p out/classes
+javac -Xlint:all,-processing -d out/classes -cp "$JMH_CP" -processorpath "$JMH_CP" \
+    $(find ../src stubs src -name '*.java' ! -name TestActivity.java)
+
+exec java -Djava.library.path=out -Dbench.dir="${BENCH_DIR:-/dev/shm}" \
+    -cp "out/classes:$JMH_CP" org.openjdk.jmh.Main "$@"
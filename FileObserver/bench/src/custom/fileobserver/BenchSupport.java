@@ -0,0 +1,204 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trees, observers and waiting for the benchmarks.  They live in the
+ * package of the engine to see when an observer has finished starting or
+ * stopping, which happens on its handler thread.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class BenchSupport {
+    /** Longest wait for events or for an observer, a hang fails the run */
+    static final long TIMEOUT_MILLIS = 60000;
+
+    private BenchSupport() {
+    }
+
+    /** Counts the events it is sent without building their paths */
+    static class CountingObserver extends FileObserver {
+        final AtomicLong events = new AtomicLong();
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        CountingObserver(File root, boolean watchSubDir, int mask) {
+            super(root.getPath(), watchSubDir, mask);
+        }
+
+        /** Start watching and return once every watch is in place */
+        void start() {
+            startWatching();
+            await(mStarted, "start watching " + this);
+        }
+
+        /** Stop watching and return once every watch is gone */
+        void stop() {
+            stopWatching();
+            await(mStopped, "stop watching " + this);
+        }
+
+        @Override
+        void onWatchingStarted(String path, boolean watchSubDir) {
+            mStarted.countDown();
+        }
+
+        @Override
+        void onWatchingStopped() {
+            mStopped.countDown();
+        }
+
+        @Override
+        public void onEvent(FileEvent event) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onEvent(int event, int cookie, String path) {
+        }
+    }
+
+    /**
+     * A {@link FileWatcher} whose listener counts the modifications, either
+     * a {@link FileListener} or a {@link FileBatchListener}
+     */
+    static class CountingWatcher extends FileWatcher {
+        final AtomicLong events = new AtomicLong();
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        CountingWatcher(File root, boolean watchSubDir, int mask) {
+            this(root, watchSubDir, mask, false);
+        }
+
+        CountingWatcher(File root, boolean watchSubDir, int mask, boolean batch) {
+            super(root.getPath(), watchSubDir, mask);
+            if (batch) {
+                addBatchListener(new FileBatchListener() {
+                    public void onEvents(FileEventBatch batch) {
+                        events.addAndGet(batch.size());
+                    }
+                });
+                return;
+            }
+            setFileListener(new FileListener() {
+                public void onFileModified(String name) {
+                    events.incrementAndGet();
+                }
+
+                public void onFileCreated(String name) {
+                    events.incrementAndGet();
+                }
+
+                public void onFileDeleted(String name) {
+                    events.incrementAndGet();
+                }
+
+                public void onFileRenamed(String oldName, String newName) {
+                    events.incrementAndGet();
+                }
+            });
+        }
+
+        void start() {
+            startWatching();
+            await(mStarted, "start watching " + this);
+        }
+
+        void stop() {
+            stopWatching();
+            await(mStopped, "stop watching " + this);
+        }
+
+        @Override
+        void onWatchingStarted(String path, boolean watchSubDir) {
+            super.onWatchingStarted(path, watchSubDir);
+            mStarted.countDown();
+        }
+
+        @Override
+        void onWatchingStopped() {
+            super.onWatchingStopped();
+            mStopped.countDown();
+        }
+    }
+
+    /**
+     * A new empty directory below the bench.dir system property, which
+     * should be a tmpfs so the disk stays out of the numbers.
+     */
+    static File newDirectory(String prefix) throws IOException {
+        File parent = new File(System.getProperty("bench.dir", "/dev/shm"));
+        if (!parent.isDirectory()) {
+            parent = new File(System.getProperty("java.io.tmpdir"));
+        }
+        File directory = File.createTempFile(prefix, "", parent);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("can not create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Create {@code directories} directories below {@code root}, as chains
+     * {@code depth} directories deep.
+     */
+    static void buildTree(File root, int directories, int depth) throws IOException {
+        int made = 0;
+        for (int chain = 0; made < directories; chain++) {
+            File directory = new File(root, "c" + chain);
+            for (int level = 0; level < depth && made < directories; level++, made++) {
+                if (level > 0) {
+                    directory = new File(directory, "d" + level);
+                }
+                if (!directory.mkdir()) {
+                    throw new IOException("can not create " + directory);
+                }
+            }
+        }
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteTree(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+    /** Open {@code file} for writing and close it, one CLOSE_WRITE and nothing else */
+    static void touch(File file) throws IOException {
+        new FileOutputStream(file, true).close();
+    }
+
+    /** Spin until {@code counter} reaches {@code target} */
+    static void awaitCount(AtomicLong counter, long target) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (counter.get() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("only " + counter.get() + " of "
+                        + target + " events arrived");
+            }
+            Thread.yield();
+        }
+    }
+
+    static void await(CountDownLatch latch, String what) {
+        try {
+            if (!latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("could not " + what);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting to " + what);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from closing a written file to its notification reaching the
+ * {@link FileListener}, one event at a time, sampled so the percentiles
+ * show.  Meant for a tmpfs, where the write itself costs next to
+ * nothing.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventLatencyBenchmark {
+    @Param({ "direct", "async" })
+    public String dispatch;
+
+    @Param({ "0", "1000" })
+    public int directories;
+
+    private File mRoot;
+    private File mFile;
+    private BenchSupport.CountingWatcher mWatcher;
+    private ExecutorService mExecutor;
+    private long mExpected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = BenchSupport.newDirectory("latency");
+        // a recursive tree around the file, as in production
+        BenchSupport.buildTree(mRoot, directories, 4);
+        mFile = new File(mRoot, "file");
+        BenchSupport.touch(mFile);
+
+        mWatcher = new BenchSupport.CountingWatcher(mRoot, true, FileObserver.CLOSE_WRITE);
+        if ("async".equals(dispatch)) {
+            mExecutor = Executors.newSingleThreadExecutor();
+            mWatcher.setAsyncDispatch(mExecutor, FileObserver.DEFAULT_DISPATCH_CAPACITY,
+                    FileObserver.DISPATCH_BLOCK);
+        }
+        mWatcher.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWatcher.stop();
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        BenchSupport.deleteTree(mRoot);
+    }
+
+    @Benchmark
+    public void closeWriteToListener() throws IOException {
+        BenchSupport.touch(mFile);
+        BenchSupport.awaitCount(mWatcher.events, ++mExpected);
+    }
+}
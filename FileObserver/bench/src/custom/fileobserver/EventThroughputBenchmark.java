@@ -0,0 +1,117 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events per second from the native reader to the consumer: every
+ * invocation closes {@value #BATCH} files after writing and waits until all
+ * their CLOSE_WRITE events arrived.
+ *
+ * <p>The "listener" consumer is a {@link FileWatcher} with a
+ * {@link FileListener}, paths and all; "batch" is the same watcher with a
+ * {@link FileBatchListener} instead; "mask" only counts in
+ * {@link FileObserver#onEvent(FileEvent)}, which is the engine alone.  Run
+ * with {@code -prof gc}: since an operation is one event,
+ * gc.alloc.rate.norm is the allocation per event.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventThroughputBenchmark {
+    static final int BATCH = 1000;
+
+    @Param({ "listener", "batch", "mask" })
+    public String consumer;
+
+    @Param({ "direct", "async" })
+    public String dispatch;
+
+    private File mRoot;
+    private File[] mFiles;
+    private BenchSupport.CountingWatcher mWatcher;
+    private BenchSupport.CountingObserver mObserver;
+    private ExecutorService mExecutor;
+    private AtomicLong mEvents;
+    private long mExpected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = BenchSupport.newDirectory("throughput");
+        mFiles = new File[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            mFiles[i] = new File(mRoot, "f" + i);
+            BenchSupport.touch(mFiles[i]);
+        }
+
+        FileObserver observer;
+        if ("listener".equals(consumer) || "batch".equals(consumer)) {
+            mWatcher = new BenchSupport.CountingWatcher(mRoot, false, FileObserver.CLOSE_WRITE,
+                    "batch".equals(consumer));
+            mEvents = mWatcher.events;
+            observer = mWatcher;
+        } else {
+            mObserver = new BenchSupport.CountingObserver(mRoot, false, FileObserver.CLOSE_WRITE);
+            mEvents = mObserver.events;
+            observer = mObserver;
+        }
+        if ("async".equals(dispatch)) {
+            mExecutor = Executors.newSingleThreadExecutor();
+            observer.setAsyncDispatch(mExecutor, FileObserver.DEFAULT_DISPATCH_CAPACITY,
+                    FileObserver.DISPATCH_BLOCK);
+        }
+        if (mWatcher != null) {
+            mWatcher.start();
+        } else {
+            mObserver.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mWatcher != null) {
+            mWatcher.stop();
+        } else {
+            mObserver.stop();
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        BenchSupport.deleteTree(mRoot);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void closeWrite() throws IOException {
+        mExpected += BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            BenchSupport.touch(mFiles[i]);
+        }
+        BenchSupport.awaitCount(mEvents, mExpected);
+    }
+}
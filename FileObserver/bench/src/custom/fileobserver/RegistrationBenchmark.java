@@ -0,0 +1,80 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a recursive {@link FileObserver#startWatching()} to put a watch
+ * on every directory of a tree, by tree size and depth.  The tree is
+ * {@code directories} directories in chains {@code depth} deep, so the two
+ * vary independently.
+ *
+ * <p>Another observer watches an empty directory throughout, so the numbers
+ * are for registering on running shards and not for bringing them up.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RegistrationBenchmark {
+    @Param({ "100", "1000", "5000" })
+    public int directories;
+
+    @Param({ "1", "8", "64" })
+    public int depth;
+
+    private File mRoot;
+    private File mKeeperRoot;
+    private BenchSupport.CountingObserver mKeeper;
+    private BenchSupport.CountingObserver mObserver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = BenchSupport.newDirectory("registration");
+        BenchSupport.buildTree(mRoot, directories, depth);
+        mKeeperRoot = BenchSupport.newDirectory("keeper");
+        mKeeper = new BenchSupport.CountingObserver(mKeeperRoot, false, FileObserver.ALL_EVENTS);
+        mKeeper.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mKeeper.stop();
+        BenchSupport.deleteTree(mKeeperRoot);
+        BenchSupport.deleteTree(mRoot);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopObserver() {
+        if (mObserver != null) {
+            mObserver.stop();
+            mObserver = null;
+        }
+    }
+
+    @Benchmark
+    public void startWatching() {
+        mObserver = new BenchSupport.CountingObserver(mRoot, true, FileObserver.FILE_CHANGED);
+        mObserver.start();
+    }
+}
@@ -0,0 +1,72 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for {@link FileObserver#stopWatching()} to remove every watch of a
+ * recursive observer, by the number of watches it holds.  As in
+ * {@link RegistrationBenchmark} another observer keeps the shards running,
+ * so tearing them down is not part of it.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StopWatchingBenchmark {
+    @Param({ "100", "1000", "5000" })
+    public int watches;
+
+    private File mRoot;
+    private File mKeeperRoot;
+    private BenchSupport.CountingObserver mKeeper;
+    private BenchSupport.CountingObserver mObserver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = BenchSupport.newDirectory("stop");
+        // the root takes one watch
+        BenchSupport.buildTree(mRoot, watches - 1, 4);
+        mKeeperRoot = BenchSupport.newDirectory("keeper");
+        mKeeper = new BenchSupport.CountingObserver(mKeeperRoot, false, FileObserver.ALL_EVENTS);
+        mKeeper.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mKeeper.stop();
+        BenchSupport.deleteTree(mKeeperRoot);
+        BenchSupport.deleteTree(mRoot);
+    }
+
+    @Setup(Level.Invocation)
+    public void startObserver() {
+        mObserver = new BenchSupport.CountingObserver(mRoot, true, FileObserver.FILE_CHANGED);
+        mObserver.start();
+    }
+
+    @Benchmark
+    public void stopWatching() {
+        mObserver.stop();
+    }
+}
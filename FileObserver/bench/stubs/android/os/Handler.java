@@ -0,0 +1,15 @@
+package android.os;
+
+/** Desktop stand-in: runs the posted runnables on the thread of its looper */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        mLooper.enqueue(r);
+        return true;
+    }
+}
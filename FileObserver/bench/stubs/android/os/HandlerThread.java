@@ -0,0 +1,37 @@
+package android.os;
+
+import java.util.concurrent.CountDownLatch;
+
+/** Desktop stand-in: a thread running a {@link Looper} */
+public class HandlerThread extends Thread {
+    private final Looper mLooper = new Looper();
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    @Override
+    public void run() {
+        mStarted.countDown();
+        mLooper.loop();
+    }
+
+    public Looper getLooper() {
+        try {
+            mStarted.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mLooper;
+    }
+
+    public boolean quit() {
+        mLooper.quit();
+        return true;
+    }
+}
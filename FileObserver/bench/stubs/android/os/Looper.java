@@ -0,0 +1,39 @@
+package android.os;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Desktop stand-in: a queue of runnables drained by one thread */
+public final class Looper {
+    private static final Runnable QUIT = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<Runnable>();
+
+    Looper() {
+    }
+
+    void enqueue(Runnable r) {
+        mQueue.add(r);
+    }
+
+    void loop() {
+        while (true) {
+            Runnable r;
+            try {
+                r = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r == QUIT) {
+                return;
+            }
+            r.run();
+        }
+    }
+
+    void quit() {
+        mQueue.add(QUIT);
+    }
+}
@@ -1,6 +1,7 @@
 #ifndef _AM_FACE_LOG_H_____
 #define _AM_FACE_LOG_H_____
 
+#ifdef __ANDROID__
 	#include <android/log.h>
 
 	#define LOGV(...)  __android_log_print(ANDROID_LOG_VERBOSE,LOG_TAG,__VA_ARGS__)
@@ -9,4 +10,17 @@
 	#define LOGW(...)  __android_log_print(ANDROID_LOG_WARN,LOG_TAG,__VA_ARGS__)
 	#define LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 	#define LOGF(...)  __android_log_print(ANDROID_LOG_FATAL,LOG_TAG,__VA_ARGS__)
+#else
+	// desktop builds, such as the one for the benchmarks, log to stderr
+	#include <stdio.h>
+
+	#define LOG_PRINT(level, ...)  (fprintf(stderr, level "/%s: ", LOG_TAG), \
+			fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+	#define LOGV(...)  ((void) 0)
+	#define LOGD(...)  ((void) 0)
+	#define LOGI(...)  LOG_PRINT("I", __VA_ARGS__)
+	#define LOGW(...)  LOG_PRINT("W", __VA_ARGS__)
+	#define LOGE(...)  LOG_PRINT("E", __VA_ARGS__)
+	#define LOGF(...)  LOG_PRINT("F", __VA_ARGS__)
+#endif
 #endif//_AM_FACE_LOG_H_____
@@ -23,16 +23,373 @@
 #include <fcntl.h>
 #include <sys/ioctl.h>
 #include <errno.h>
-#include "logger.h"
+#include <unistd.h>
+#include <dirent.h>
+#include <limits.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <fnmatch.h>
+#include <pthread.h>
+#include "Logger.h"
 
 #define HAVE_INOTIFY
 #ifdef HAVE_INOTIFY
 #include <sys/inotify.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #endif
 
 #define LOG_TAG "libfileobserver"
 
-static jmethodID method_onEvent;
+static jmethodID method_onEvents;
+static jmethodID method_onTimeout;
+static jmethodID method_onWakeup;
+
+/*
+ * Every inotify_event returned by read() is decoded into a fixed size record
+ * of five native-order ints: wd, mask, cookie, name offset and name length.
+ * The raw read() lands at the start of the direct buffer and the names are
+ * left in place, so the name offset points back into that region.  Records
+ * are written right after the read region and handed to Java in one upcall.
+ */
+#define RECORD_INTS 5
+#define RECORD_SIZE (RECORD_INTS * sizeof(int32_t))
+
+/*
+ * Name filters of the observers.  A filter is referenced from Java by an id
+ * which is never reused, so a watch added with the id of a filter destroyed
+ * meanwhile simply goes unfiltered.  Every inotify fd with filtered watches
+ * has a table from wd to filter id, consulted while a read() is decoded so
+ * excluded events never reach Java.  All of it is guarded by sFilterLock.
+ * A filter never changes once made, and is counted: a listing takes a
+ * reference with acquire_filter() and reads it without the lock, so the
+ * decode loop is never held up by a directory being read.
+ */
+struct NameFilter
+{
+	/* one for the id, one per listing using it */
+	int refs;
+	int excludeCount;
+	int directoryCount;
+	int includeCount;
+	/* the excludes, then the directory excludes, then the includes */
+	char** patterns;
+};
+
+struct WatchFilters
+{
+	int fd;
+	/* open addressing, a power of two; wd 0 marks a free slot */
+	int capacity;
+	int count;
+	int32_t* wds;
+	int32_t* ids;
+};
+
+static pthread_mutex_t sFilterLock = PTHREAD_MUTEX_INITIALIZER;
+static NameFilter** sFilters;
+static int sFilterCount;
+static WatchFilters* sWatchFilters;
+static int sWatchFilterCount;
+
+static NameFilter* get_filter(int id)
+{
+	return id > 0 && id <= sFilterCount ? sFilters[id - 1] : NULL;
+}
+
+static bool matches_any(char** patterns, int count, const char* name)
+{
+	for (int i = 0; i < count; i++)
+	{
+		if (fnmatch(patterns[i], name, 0) == 0)
+		{
+			return true;
+		}
+	}
+	return false;
+}
+
+/* Includes only restrict files, directories are always kept for the crawl */
+static bool is_excluded(const NameFilter* filter, const char* name, bool isDir)
+{
+	char** patterns = filter->patterns;
+	if (matches_any(patterns, filter->excludeCount, name))
+	{
+		return true;
+	}
+	patterns += filter->excludeCount;
+	if (isDir)
+	{
+		return matches_any(patterns, filter->directoryCount, name);
+	}
+	patterns += filter->directoryCount;
+	return filter->includeCount > 0 && !matches_any(patterns, filter->includeCount, name);
+}
+
+static WatchFilters* find_watch_filters(int fd, bool create)
+{
+	for (int i = 0; i < sWatchFilterCount; i++)
+	{
+		if (sWatchFilters[i].fd == fd)
+		{
+			return &sWatchFilters[i];
+		}
+	}
+	if (!create)
+	{
+		return NULL;
+	}
+	WatchFilters* grown = (WatchFilters*)realloc(sWatchFilters,
+			(sWatchFilterCount + 1) * sizeof(WatchFilters));
+	if (grown == NULL)
+	{
+		return NULL;
+	}
+	sWatchFilters = grown;
+	WatchFilters* table = &sWatchFilters[sWatchFilterCount++];
+	memset(table, 0, sizeof(*table));
+	table->fd = fd;
+	return table;
+}
+
+static int watch_slot(const WatchFilters* table, int wd)
+{
+	int mask = table->capacity - 1;
+	int slot = (int)(((uint32_t)wd * 0x9e3779b1u) >> 8) & mask;
+	while (table->wds[slot] != 0 && table->wds[slot] != wd)
+	{
+		slot = (slot + 1) & mask;
+	}
+	return slot;
+}
+
+static int get_watch_filter(const WatchFilters* table, int wd)
+{
+	if (table == NULL || table->count == 0)
+	{
+		return 0;
+	}
+	int slot = watch_slot(table, wd);
+	return table->wds[slot] == wd ? table->ids[slot] : 0;
+}
+
+static void remove_watch_filter(WatchFilters* table, int wd)
+{
+	if (table == NULL || table->count == 0)
+	{
+		return;
+	}
+	int mask = table->capacity - 1;
+	int slot = watch_slot(table, wd);
+	if (table->wds[slot] != wd)
+	{
+		return;
+	}
+	// shift the rest of the probe run back instead of leaving a tombstone
+	int next = (slot + 1) & mask;
+	while (table->wds[next] != 0)
+	{
+		int home = (int)(((uint32_t)table->wds[next] * 0x9e3779b1u) >> 8) & mask;
+		if (((next - home) & mask) >= ((next - slot) & mask))
+		{
+			table->wds[slot] = table->wds[next];
+			table->ids[slot] = table->ids[next];
+			slot = next;
+		}
+		next = (next + 1) & mask;
+	}
+	table->wds[slot] = 0;
+	table->count--;
+}
+
+static void put_watch_filter(WatchFilters* table, int wd, int id)
+{
+	if ((table->count + 1) * 2 > table->capacity)
+	{
+		WatchFilters old = *table;
+		int capacity = old.capacity == 0 ? 64 : old.capacity * 2;
+		int32_t* wds = (int32_t*)calloc(capacity, sizeof(int32_t));
+		int32_t* ids = (int32_t*)calloc(capacity, sizeof(int32_t));
+		if (wds == NULL || ids == NULL)
+		{
+			free(wds);
+			free(ids);
+			return;
+		}
+		table->capacity = capacity;
+		table->count = 0;
+		table->wds = wds;
+		table->ids = ids;
+		for (int i = 0; i < old.capacity; i++)
+		{
+			if (old.wds[i] != 0)
+			{
+				put_watch_filter(table, old.wds[i], old.ids[i]);
+			}
+		}
+		free(old.wds);
+		free(old.ids);
+	}
+	int slot = watch_slot(table, wd);
+	if (table->wds[slot] == 0)
+	{
+		table->wds[slot] = wd;
+		table->count++;
+	}
+	table->ids[slot] = id;
+}
+
+/* Remember the filter of a new watch; a wd handed out again gets the new one */
+static void set_watch_filter(int fd, int wd, int id)
+{
+	pthread_mutex_lock(&sFilterLock);
+	if (id != 0 && get_filter(id) != NULL)
+	{
+		WatchFilters* table = find_watch_filters(fd, true);
+		if (table != NULL)
+		{
+			put_watch_filter(table, wd, id);
+		}
+	}
+	else
+	{
+		remove_watch_filter(find_watch_filters(fd, false), wd);
+	}
+	pthread_mutex_unlock(&sFilterLock);
+}
+
+static void free_filter(NameFilter* filter)
+{
+	int count = filter->excludeCount + filter->directoryCount + filter->includeCount;
+	for (int i = 0; i < count; i++)
+	{
+		free(filter->patterns[i]);
+	}
+	free(filter->patterns);
+	free(filter);
+}
+
+/* A reference to the filter id, to be used without the lock, or NULL */
+static NameFilter* acquire_filter(int id)
+{
+	if (id == 0)
+	{
+		return NULL;
+	}
+	pthread_mutex_lock(&sFilterLock);
+	NameFilter* filter = get_filter(id);
+	if (filter != NULL)
+	{
+		filter->refs++;
+	}
+	pthread_mutex_unlock(&sFilterLock);
+	return filter;
+}
+
+/* Drop a reference, freeing the filter with the last one */
+static void release_filter(NameFilter* filter)
+{
+	if (filter == NULL)
+	{
+		return;
+	}
+	pthread_mutex_lock(&sFilterLock);
+	bool last = --filter->refs == 0;
+	pthread_mutex_unlock(&sFilterLock);
+	if (last)
+	{
+		free_filter(filter);
+	}
+}
+
+static bool copy_patterns(JNIEnv* env, jobjectArray array, char** patterns, int* count)
+{
+	jsize length = array == NULL ? 0 : env->GetArrayLength(array);
+	for (jsize i = 0; i < length; i++)
+	{
+		jstring patternString = (jstring)env->GetObjectArrayElement(array, i);
+		const char* pattern = env->GetStringUTFChars(patternString, NULL);
+		if (pattern == NULL)
+		{
+			return false;
+		}
+		patterns[*count] = strdup(pattern);
+		env->ReleaseStringUTFChars(patternString, pattern);
+		env->DeleteLocalRef(patternString);
+		if (patterns[*count] == NULL)
+		{
+			return false;
+		}
+		(*count)++;
+	}
+	return true;
+}
+
+/*
+ * Compile name patterns into a filter for the decode loop and returns its
+ * id, or 0 on failure.  Each array may be null.
+ */
+static jint Native_createFilter(JNIEnv* env, jobject object, jobjectArray excludes,
+		jobjectArray directoryExcludes, jobjectArray includes)
+{
+	jsize total = (excludes == NULL ? 0 : env->GetArrayLength(excludes))
+			+ (directoryExcludes == NULL ? 0 : env->GetArrayLength(directoryExcludes))
+			+ (includes == NULL ? 0 : env->GetArrayLength(includes));
+	NameFilter* filter = (NameFilter*)calloc(1, sizeof(NameFilter));
+	if (filter == NULL)
+	{
+		return 0;
+	}
+	filter->refs = 1;
+	filter->patterns = (char**)calloc(total + 1, sizeof(char*));
+	int count = 0;
+	bool copied = filter->patterns != NULL
+			&& copy_patterns(env, excludes, filter->patterns, &count);
+	filter->excludeCount = count;
+	copied = copied && copy_patterns(env, directoryExcludes, filter->patterns, &count);
+	filter->directoryCount = count - filter->excludeCount;
+	copied = copied && copy_patterns(env, includes, filter->patterns, &count);
+	filter->includeCount = count - filter->excludeCount - filter->directoryCount;
+	if (!copied)
+	{
+		free_filter(filter);
+		return 0;
+	}
+
+	pthread_mutex_lock(&sFilterLock);
+	jint id = 0;
+	NameFilter** grown = (NameFilter**)realloc(sFilters, (sFilterCount + 1) * sizeof(NameFilter*));
+	if (grown != NULL)
+	{
+		sFilters = grown;
+		sFilters[sFilterCount++] = filter;
+		id = sFilterCount;
+	}
+	pthread_mutex_unlock(&sFilterLock);
+
+	if (id == 0)
+	{
+		free_filter(filter);
+	}
+	return id;
+}
+
+/*
+ * Free a filter once no listing uses it any more.  Watches still mapped to
+ * it stop being filtered; their table entries go with removeWatches() or
+ * the IN_IGNORED of the watch.
+ */
+static void Native_destroyFilter(JNIEnv* env, jobject object, jint id)
+{
+	pthread_mutex_lock(&sFilterLock);
+	NameFilter* filter = get_filter(id);
+	if (filter != NULL)
+	{
+		sFilters[id - 1] = NULL;
+	}
+	pthread_mutex_unlock(&sFilterLock);
+	release_filter(filter);
+}
 
 static jint Native_init(JNIEnv* env, jobject object)
 {
@@ -46,61 +403,295 @@ static jint Native_init(JNIEnv* env, jobject object)
 #endif // HAVE_INOTIFY
 }
 
-static void Native_observe(JNIEnv* env, jobject object, jint fd)
+static void Native_close(JNIEnv* env, jobject object, jint fd)
+{
+	if (fd >= 0)
+	{
+		pthread_mutex_lock(&sFilterLock);
+		WatchFilters* table = find_watch_filters(fd, false);
+		if (table != NULL)
+		{
+			free(table->wds);
+			free(table->ids);
+			*table = sWatchFilters[--sWatchFilterCount];
+		}
+		pthread_mutex_unlock(&sFilterLock);
+		close(fd);
+	}
+}
+
+/*
+ * An epoll set over any number of inotify fds, plus an eventfd which wakes
+ * the loop up from another thread.
+ */
+struct EventLoop
+{
+	int epoll_fd;
+	int wake_fd;
+};
+
+static jlong Native_createLoop(JNIEnv* env, jobject object)
+{
+#ifdef HAVE_INOTIFY
+
+	EventLoop* loop = (EventLoop*)malloc(sizeof(EventLoop));
+	if (loop == NULL)
+	{
+		return 0;
+	}
+
+	loop->epoll_fd = epoll_create(4);
+	loop->wake_fd = eventfd(0, 0);
+	if (loop->epoll_fd >= 0 && loop->wake_fd >= 0)
+	{
+		struct epoll_event ev;
+		memset(&ev, 0, sizeof(ev));
+		ev.events = EPOLLIN;
+		ev.data.fd = loop->wake_fd;
+		if (epoll_ctl(loop->epoll_fd, EPOLL_CTL_ADD, loop->wake_fd, &ev) == 0)
+		{
+			return (jlong)(intptr_t)loop;
+		}
+	}
+
+	LOGE("***** ERROR! Native_createLoop() failed, errno %d", errno);
+	if (loop->epoll_fd >= 0)
+	{
+		close(loop->epoll_fd);
+	}
+	if (loop->wake_fd >= 0)
+	{
+		close(loop->wake_fd);
+	}
+	free(loop);
+
+#endif // HAVE_INOTIFY
+	return 0;
+}
+
+static jboolean Native_addToLoop(JNIEnv* env, jobject object, jlong handle, jint fd)
+{
+#ifdef HAVE_INOTIFY
+
+	EventLoop* loop = (EventLoop*)(intptr_t)handle;
+	if (loop == NULL || fd < 0)
+	{
+		return JNI_FALSE;
+	}
+
+	struct epoll_event ev;
+	memset(&ev, 0, sizeof(ev));
+	ev.events = EPOLLIN;
+	ev.data.fd = fd;
+	return epoll_ctl(loop->epoll_fd, EPOLL_CTL_ADD, fd, &ev) == 0 ? JNI_TRUE : JNI_FALSE;
+
+#else // HAVE_INOTIFY
+	return JNI_FALSE;
+#endif // HAVE_INOTIFY
+}
+
+static void Native_wakeup(JNIEnv* env, jobject object, jlong handle)
+{
+#ifdef HAVE_INOTIFY
+
+	EventLoop* loop = (EventLoop*)(intptr_t)handle;
+	if (loop != NULL)
+	{
+		uint64_t one = 1;
+		while (write(loop->wake_fd, &one, sizeof(one)) < 0 && errno == EINTR)
+		{
+		}
+	}
+
+#endif // HAVE_INOTIFY
+}
+
+static void Native_destroyLoop(JNIEnv* env, jobject object, jlong handle)
+{
+#ifdef HAVE_INOTIFY
+
+	EventLoop* loop = (EventLoop*)(intptr_t)handle;
+	if (loop != NULL)
+	{
+		close(loop->epoll_fd);
+		close(loop->wake_fd);
+		free(loop);
+	}
+
+#endif // HAVE_INOTIFY
+}
+
+#ifdef HAVE_INOTIFY
+static int64_t monotonic_millis()
+{
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (int64_t)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+#endif // HAVE_INOTIFY
+
+/*
+ * Wait on every fd of the loop.  Each read() of a ready inotify fd is decoded
+ * into the direct buffer and handed over with onEvents(fd, count), a wakeup
+ * asks onWakeup() whether to carry on, and onTimeout() is called every
+ * timeoutMillis whether or not events keep arriving.
+ */
+static void Native_loop(JNIEnv* env, jobject object, jlong handle,
+		jobject buffer, jint readSize, jint timeoutMillis)
 {
 #ifdef HAVE_INOTIFY
 
-	char event_buf[512];
+	EventLoop* loop = (EventLoop*)(intptr_t)handle;
+	char* event_buf = (char*)env->GetDirectBufferAddress(buffer);
+	jlong capacity = env->GetDirectBufferCapacity(buffer);
 	struct inotify_event* event;
 
+	if (loop == NULL || event_buf == NULL || readSize < (jint)sizeof(*event)
+			|| capacity < readSize + (jlong)(readSize / sizeof(*event)) * (jlong)RECORD_SIZE)
+	{
+		LOGE("***** ERROR! Native_loop() got an unusable loop or event buffer!");
+		return;
+	}
+
+	int32_t* records = (int32_t*)(event_buf + readSize);
+	int64_t deadline = monotonic_millis() + timeoutMillis;
+	struct epoll_event ready[8];
+
 	while (1)
 	{
-		int event_pos = 0;
-		int num_bytes = read(fd, event_buf, sizeof(event_buf));
+		int wait = -1;
+		if (timeoutMillis > 0)
+		{
+			int64_t left = deadline - monotonic_millis();
+			wait = left > 0 ? (int)left : 0;
+		}
 
-		if (num_bytes < (int)sizeof(*event))
+		int ready_count = epoll_wait(loop->epoll_fd, ready, 8, wait);
+		if (ready_count < 0)
 		{
 			if (errno == EINTR)
 			continue;
 
-			LOGE("***** ERROR! Native_observe() got a short event!");
+			LOGE("***** ERROR! Native_loop() epoll_wait failed, errno %d", errno);
 			return;
 		}
 
-		while (num_bytes >= (int)sizeof(*event))
+		for (int i = 0; i < ready_count; i++)
 		{
-			int event_size;
-			event = (struct inotify_event *)(event_buf + event_pos);
+			int fd = ready[i].data.fd;
+
+			if (fd == loop->wake_fd)
+			{
+				uint64_t value;
+				while (read(loop->wake_fd, &value, sizeof(value)) < 0 && errno == EINTR)
+				{
+				}
+				jboolean keep_going = env->CallBooleanMethod(object, method_onWakeup);
+				if (env->ExceptionCheck())
+				{
+					env->ExceptionDescribe();
+					env->ExceptionClear();
+				}
+				if (!keep_going)
+				{
+					return;
+				}
+				continue;
+			}
+
+			int event_pos = 0;
+			int count = 0;
+			int num_bytes = read(fd, event_buf, readSize);
 
-			jstring path = NULL;
+			if (num_bytes < (int)sizeof(*event))
+			{
+				if (num_bytes < 0 && (errno == EINTR || errno == EAGAIN))
+				continue;
+
+				LOGE("***** ERROR! Native_loop() got a short event on fd %d, dropping it", fd);
+				epoll_ctl(loop->epoll_fd, EPOLL_CTL_DEL, fd, NULL);
+				continue;
+			}
 
-			if (event->len > 0)
+			pthread_mutex_lock(&sFilterLock);
+			WatchFilters* filters = find_watch_filters(fd, false);
+			while (num_bytes >= (int)sizeof(*event))
 			{
-				path = env->NewStringUTF(event->name);
+				int event_size;
+				int32_t* record = records + count * RECORD_INTS;
+				event = (struct inotify_event *)(event_buf + event_pos);
+				event_size = sizeof(*event) + event->len;
+				num_bytes -= event_size;
+				event_pos += event_size;
+
+				if (filters != NULL)
+				{
+					if (event->mask & IN_IGNORED)
+					{
+						remove_watch_filter(filters, event->wd);
+					}
+					else if (event->len > 0)
+					{
+						NameFilter* filter = get_filter(get_watch_filter(filters, event->wd));
+						if (filter != NULL && is_excluded(filter, event->name,
+								(event->mask & IN_ISDIR) != 0))
+						{
+							continue;
+						}
+					}
+				}
+
+				record[0] = event->wd;
+				record[1] = event->mask;
+				record[2] = event->cookie;
+				if (event->len > 0)
+				{
+					record[3] = event_pos - event->len;
+					record[4] = strnlen(event->name, event->len);
+				}
+				else
+				{
+					record[3] = 0;
+					record[4] = 0;
+				}
+				count++;
 			}
+			pthread_mutex_unlock(&sFilterLock);
 
-			env->CallVoidMethod(object, method_onEvent, event->wd, event->mask,event->cookie,path);
+			if (count == 0)
+			{
+				continue;
+			}
+
+			env->CallVoidMethod(object, method_onEvents, fd, count);
 			if (env->ExceptionCheck())
 			{
 				env->ExceptionDescribe();
 				env->ExceptionClear();
 			}
-			if (path != NULL)
+		}
+
+		if (timeoutMillis > 0 && monotonic_millis() >= deadline)
+		{
+			env->CallVoidMethod(object, method_onTimeout);
+			if (env->ExceptionCheck())
 			{
-				env->DeleteLocalRef(path);
+				env->ExceptionDescribe();
+				env->ExceptionClear();
 			}
-
-			event_size = sizeof(*event) + event->len;
-			num_bytes -= event_size;
-			event_pos += event_size;
+			deadline = monotonic_millis() + timeoutMillis;
 		}
 	}
 
 #endif // HAVE_INOTIFY
 }
 
+/*
+ * Watch pathString and return the wd, or the negative errno on failure.  Its
+ * events are filtered by the filter filterId, or not at all if that is 0.
+ */
 static jint Native_startWatching(JNIEnv* env, jobject object, jint fd,
-		jstring pathString, jint mask)
+		jstring pathString, jint mask, jint filterId)
 {
 	int res = -1;
 
@@ -111,31 +702,456 @@ static jint Native_startWatching(JNIEnv* env, jobject object, jint fd,
 		const char* path = env->GetStringUTFChars(pathString, NULL);
 
 		res = inotify_add_watch(fd, path, mask);
+		if (res < 0)
+		{
+			res = -errno;
+		}
 
 		//LOGD("inotify_add_watch res %d,errno:%d",res,errno);
 		env->ReleaseStringUTFChars(pathString, path);
+		if (res > 0)
+		{
+			set_watch_filter(fd, res, filterId);
+		}
 	}
 
 #endif // HAVE_INOTIFY
 	return res;
 }
 
-static void Native_stopWatching(JNIEnv* env, jobject object, jint fd, jint wfd)
+/*
+ * NUL separated names collected by readdir() loops, turned into a String[]
+ * once the directory is closed.
+ */
+struct NameBuffer
+{
+	char* data;
+	size_t used;
+	size_t capacity;
+	jsize count;
+};
+
+/* The values per entry written by scanDirectory() */
+#define SCAN_LONGS 4
+
+#ifdef __BIONIC__
+#define STAT_MTIME_NSEC(st) ((st).st_mtime_nsec)
+#else
+#define STAT_MTIME_NSEC(st) ((st).st_mtim.tv_nsec)
+#endif
+
+static bool is_dot_entry(const char* name)
+{
+	return name[0] == '.' && (name[1] == '\0' || (name[1] == '.' && name[2] == '\0'));
+}
+
+static bool append_name(NameBuffer* names, const char* name)
+{
+	size_t length = strlen(name) + 1;
+	if (names->used + length > names->capacity)
+	{
+		size_t grown = names->capacity == 0 ? 1024 : names->capacity * 2;
+		while (names->used + length > grown)
+		{
+			grown *= 2;
+		}
+		char* moved = (char*)realloc(names->data, grown);
+		if (moved == NULL)
+		{
+			return false;
+		}
+		names->data = moved;
+		names->capacity = grown;
+	}
+	memcpy(names->data + names->used, name, length);
+	names->used += length;
+	names->count++;
+	return true;
+}
+
+static jobjectArray to_string_array(JNIEnv* env, NameBuffer* names)
+{
+	jobjectArray result = NULL;
+	jclass stringClass = env->FindClass("java/lang/String");
+	if (stringClass != NULL)
+	{
+		result = env->NewObjectArray(names->count, stringClass, NULL);
+		size_t pos = 0;
+		for (jsize i = 0; result != NULL && i < names->count; i++)
+		{
+			jstring name = env->NewStringUTF(names->data + pos);
+			if (name == NULL)
+			{
+				result = NULL;
+				break;
+			}
+			env->SetObjectArrayElement(result, i, name);
+			env->DeleteLocalRef(name);
+			pos += strlen(names->data + pos) + 1;
+		}
+		env->DeleteLocalRef(stringClass);
+	}
+	return result;
+}
+
+/*
+ * Names of the subdirectories of pathString, or NULL if it can't be opened.
+ * The entry type comes from d_type so no stat is needed; only file systems
+ * which report DT_UNKNOWN cost an fstatat() per entry.  Symbolic links are
+ * not followed.  Directories excluded by the filter filterId are left out
+ * before any String is made for them.
+ */
+static jobjectArray Native_listDirectories(JNIEnv* env, jobject object, jstring pathString,
+		jint filterId)
+{
+	const char* path = env->GetStringUTFChars(pathString, NULL);
+	DIR* dir = opendir(path);
+	env->ReleaseStringUTFChars(pathString, path);
+
+	if (dir == NULL)
+	{
+		return NULL;
+	}
+
+	// referenced rather than locked, the reader threads decode meanwhile
+	NameFilter* filter = acquire_filter(filterId);
+
+	NameBuffer names = { NULL, 0, 0, 0 };
+	struct dirent* entry;
+
+	while ((entry = readdir(dir)) != NULL)
+	{
+		const char* name = entry->d_name;
+		if (is_dot_entry(name))
+		{
+			continue;
+		}
+
+		bool isDir = entry->d_type == DT_DIR;
+		if (entry->d_type == DT_UNKNOWN)
+		{
+			struct stat st;
+			isDir = fstatat(dirfd(dir), name, &st, AT_SYMLINK_NOFOLLOW) == 0 && S_ISDIR(st.st_mode);
+		}
+		if (!isDir || (filter != NULL && is_excluded(filter, name, true)))
+		{
+			continue;
+		}
+		if (!append_name(&names, name))
+		{
+			break;
+		}
+	}
+	closedir(dir);
+	release_filter(filter);
+
+	jobjectArray result = to_string_array(env, &names);
+	free(names.data);
+	return result;
+}
+
+/*
+ * Names of every entry of pathString, the subdirectories first, or NULL if
+ * it can't be opened; directoryCountOut[0] receives how many subdirectories
+ * there are.  For a directory which just appeared: one pass of readdir()
+ * tells what to watch and what to report, with the types from d_type as in
+ * listDirectories().  Entries excluded by the filter filterId are left out.
+ */
+static jobjectArray Native_listEntries(JNIEnv* env, jobject object, jstring pathString,
+		jint filterId, jintArray directoryCountOut)
+{
+	const char* path = env->GetStringUTFChars(pathString, NULL);
+	DIR* dir = opendir(path);
+	env->ReleaseStringUTFChars(pathString, path);
+
+	if (dir == NULL)
+	{
+		return NULL;
+	}
+
+	NameFilter* filter = acquire_filter(filterId);
+
+	// the subdirectories, then the files are appended
+	NameBuffer entries = { NULL, 0, 0, 0 };
+	NameBuffer files = { NULL, 0, 0, 0 };
+	struct dirent* entry;
+
+	while ((entry = readdir(dir)) != NULL)
+	{
+		const char* name = entry->d_name;
+		if (is_dot_entry(name))
+		{
+			continue;
+		}
+
+		bool isDir = entry->d_type == DT_DIR;
+		if (entry->d_type == DT_UNKNOWN)
+		{
+			struct stat st;
+			isDir = fstatat(dirfd(dir), name, &st, AT_SYMLINK_NOFOLLOW) == 0 && S_ISDIR(st.st_mode);
+		}
+		if (filter != NULL && is_excluded(filter, name, isDir))
+		{
+			continue;
+		}
+		if (!append_name(isDir ? &entries : &files, name))
+		{
+			break;
+		}
+	}
+	closedir(dir);
+	release_filter(filter);
+
+	jint directoryCount = entries.count;
+	for (size_t pos = 0; pos < files.used; pos += strlen(files.data + pos) + 1)
+	{
+		if (!append_name(&entries, files.data + pos))
+		{
+			break;
+		}
+	}
+	free(files.data);
+
+	jobjectArray result = to_string_array(env, &entries);
+	free(entries.data);
+	if (result != NULL)
+	{
+		env->SetIntArrayRegion(directoryCountOut, 0, 1, &directoryCount);
+	}
+	return result;
+}
+
+/*
+ * List every entry of pathString with its lstat() data.  attributesOut[0]
+ * receives a long[] of SCAN_LONGS values per entry: inode, size, mtime in
+ * milliseconds and 1 for a directory, 0 otherwise.  Entries which vanish
+ * between readdir() and the stat are left out.  Returns the names, or null if
+ * the directory can not be read.
+ */
+static jobjectArray Native_scanDirectory(JNIEnv* env, jclass clazz, jstring pathString,
+		jobjectArray attributesOut)
+{
+	const char* path = env->GetStringUTFChars(pathString, NULL);
+	DIR* dir = opendir(path);
+	env->ReleaseStringUTFChars(pathString, path);
+
+	if (dir == NULL)
+	{
+		return NULL;
+	}
+
+	NameBuffer names = { NULL, 0, 0, 0 };
+	jlong* attributes = NULL;
+	size_t attributesCapacity = 0;
+	struct dirent* entry;
+
+	while ((entry = readdir(dir)) != NULL)
+	{
+		const char* name = entry->d_name;
+		if (is_dot_entry(name))
+		{
+			continue;
+		}
+
+		struct stat st;
+		if (fstatat(dirfd(dir), name, &st, AT_SYMLINK_NOFOLLOW) != 0)
+		{
+			continue;
+		}
+
+		if ((size_t)(names.count + 1) * SCAN_LONGS > attributesCapacity)
+		{
+			size_t grown = attributesCapacity == 0 ? 64 * SCAN_LONGS : attributesCapacity * 2;
+			jlong* moved = (jlong*)realloc(attributes, grown * sizeof(jlong));
+			if (moved == NULL)
+			{
+				break;
+			}
+			attributes = moved;
+			attributesCapacity = grown;
+		}
+		jlong* values = attributes + (size_t)names.count * SCAN_LONGS;
+		if (!append_name(&names, name))
+		{
+			break;
+		}
+		values[0] = (jlong)st.st_ino;
+		values[1] = (jlong)st.st_size;
+		values[2] = (jlong)st.st_mtime * 1000 + STAT_MTIME_NSEC(st) / 1000000;
+		values[3] = S_ISDIR(st.st_mode) ? 1 : 0;
+	}
+	closedir(dir);
+
+	jobjectArray result = to_string_array(env, &names);
+	if (result != NULL)
+	{
+		jlongArray longs = env->NewLongArray(names.count * SCAN_LONGS);
+		if (longs == NULL)
+		{
+			result = NULL;
+		}
+		else
+		{
+			env->SetLongArrayRegion(longs, 0, names.count * SCAN_LONGS, attributes);
+			env->SetObjectArrayElement(attributesOut, 0, longs);
+			env->DeleteLocalRef(longs);
+		}
+	}
+	free(attributes);
+	free(names.data);
+	return result;
+}
+
+/*
+ * lstat() pathString into attributesOut, SCAN_LONGS values laid out as by
+ * scanDirectory().  Returns false if the path can not be stat'ed.
+ */
+static jboolean Native_statFile(JNIEnv* env, jclass clazz, jstring pathString,
+		jlongArray attributesOut)
+{
+	const char* path = env->GetStringUTFChars(pathString, NULL);
+	struct stat st;
+	int res = lstat(path, &st);
+	env->ReleaseStringUTFChars(pathString, path);
+
+	if (res != 0)
+	{
+		return JNI_FALSE;
+	}
+
+	jlong values[SCAN_LONGS];
+	values[0] = (jlong)st.st_ino;
+	values[1] = (jlong)st.st_size;
+	values[2] = (jlong)st.st_mtime * 1000 + STAT_MTIME_NSEC(st) / 1000000;
+	values[3] = S_ISDIR(st.st_mode) ? 1 : 0;
+	env->SetLongArrayRegion(attributesOut, 0, SCAN_LONGS, values);
+	return JNI_TRUE;
+}
+
+/*
+ * Add a watch for every parentString/names[i] in one JNI crossing.  wds[i]
+ * receives the watch descriptor, or the negative errno on failure.  The
+ * events of the new watches are filtered by the filter filterId.
+ */
+static void Native_addWatches(JNIEnv* env, jobject object, jint fd,
+		jstring parentString, jobjectArray names, jint mask, jintArray wdArray, jint filterId)
+{
+	char path[PATH_MAX];
+	jsize count = env->GetArrayLength(names);
+	jint* wds = env->GetIntArrayElements(wdArray, NULL);
+
+	if (wds == NULL)
+	{
+		return;
+	}
+
+	const char* parent = env->GetStringUTFChars(parentString, NULL);
+	size_t parentLength = strlen(parent);
+	if (parentLength >= sizeof(path) - 1)
+	{
+		parentLength = sizeof(path) - 1;
+	}
+	memcpy(path, parent, parentLength);
+	env->ReleaseStringUTFChars(parentString, parent);
+	if (parentLength == 0 || path[parentLength - 1] != '/')
+	{
+		path[parentLength++] = '/';
+	}
+
+	for (jsize i = 0; i < count; i++)
+	{
+		jstring nameString = (jstring)env->GetObjectArrayElement(names, i);
+		const char* name = env->GetStringUTFChars(nameString, NULL);
+		size_t nameLength = strlen(name);
+
+		if (parentLength + nameLength >= sizeof(path))
+		{
+			wds[i] = -ENAMETOOLONG;
+		}
+		else
+		{
+#ifdef HAVE_INOTIFY
+			memcpy(path + parentLength, name, nameLength + 1);
+			int res = inotify_add_watch(fd, path, mask);
+			wds[i] = res < 0 ? -errno : res;
+			if (res > 0)
+			{
+				set_watch_filter(fd, res, filterId);
+			}
+#else // HAVE_INOTIFY
+			wds[i] = -ENOSYS;
+#endif // HAVE_INOTIFY
+		}
+
+		env->ReleaseStringUTFChars(nameString, name);
+		env->DeleteLocalRef(nameString);
+	}
+
+	env->ReleaseIntArrayElements(wdArray, wds, 0);
+}
+
+/*
+ * Remove the first count watches of wdArray in one JNI crossing.
+ */
+static void Native_removeWatches(JNIEnv* env, jobject object, jint fd, jintArray wdArray, jint count)
 {
 #ifdef HAVE_INOTIFY
 
-	inotify_rm_watch((int)fd, (uint32_t)wfd);
+	jint* wds = env->GetIntArrayElements(wdArray, NULL);
+	if (wds == NULL)
+	{
+		return;
+	}
+
+	for (jint i = 0; i < count; i++)
+	{
+		inotify_rm_watch((int)fd, (uint32_t)wds[i]);
+	}
+
+	pthread_mutex_lock(&sFilterLock);
+	WatchFilters* table = find_watch_filters(fd, false);
+	for (jint i = 0; table != NULL && i < count; i++)
+	{
+		remove_watch_filter(table, wds[i]);
+	}
+	pthread_mutex_unlock(&sFilterLock);
+
+	env->ReleaseIntArrayElements(wdArray, wds, JNI_ABORT);
 
 #endif // HAVE_INOTIFY
 }
 
-static JNINativeMethod sMethods[] =
+static JNINativeMethod sShardMethods[] =
 {
 /* name, signature, funcPtr */
 { "init", "()I", (void*) Native_init },
-{ "observe", "(I)V", (void*) Native_observe },
-{ "startWatching", "(ILjava/lang/String;I)I", (void*) Native_startWatching },
-{ "stopWatching", "(II)V", (void*) Native_stopWatching }
+{ "close", "(I)V", (void*) Native_close },
+{ "startWatching", "(ILjava/lang/String;II)I", (void*) Native_startWatching },
+{ "removeWatches", "(I[II)V", (void*) Native_removeWatches },
+{ "listDirectories", "(Ljava/lang/String;I)[Ljava/lang/String;", (void*) Native_listDirectories },
+{ "listEntries", "(Ljava/lang/String;I[I)[Ljava/lang/String;", (void*) Native_listEntries },
+{ "addWatches", "(ILjava/lang/String;[Ljava/lang/String;I[II)V", (void*) Native_addWatches },
+{ "createFilter", "([Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;)I", (void*) Native_createFilter },
+{ "destroyFilter", "(I)V", (void*) Native_destroyFilter }
+
+};
+
+static JNINativeMethod sThreadMethods[] =
+{
+/* name, signature, funcPtr */
+{ "createLoop", "()J", (void*) Native_createLoop },
+{ "addToLoop", "(JI)Z", (void*) Native_addToLoop },
+{ "wakeup", "(J)V", (void*) Native_wakeup },
+{ "destroyLoop", "(J)V", (void*) Native_destroyLoop },
+{ "loop", "(JLjava/nio/ByteBuffer;II)V", (void*) Native_loop }
+
+};
+
+static JNINativeMethod sSnapshotMethods[] =
+{
+/* name, signature, funcPtr */
+{ "scanDirectory", "(Ljava/lang/String;[[J)[Ljava/lang/String;", (void*) Native_scanDirectory },
+{ "statFile", "(Ljava/lang/String;[J)Z", (void*) Native_statFile }
 
 };
 
@@ -144,6 +1160,21 @@ int register_os_android_FileWatcher(JNIEnv* env)
 {
 	jclass clazz;
 
+	clazz = env->FindClass("custom/fileobserver/FileObserver$Shard");
+
+	if (clazz == NULL)
+	{
+		LOGE("Can't find custom.fileobserver.FileObserver$Shard");
+		return -1;
+	}
+
+	int res = env->RegisterNatives(clazz, sShardMethods,
+			(sizeof(sShardMethods) / sizeof(sShardMethods[0])));
+	if (res < 0)
+	{
+		return res;
+	}
+
 	clazz = env->FindClass("custom/fileobserver/FileObserver$ObserverThread");
 
 	if (clazz == NULL)
@@ -152,15 +1183,32 @@ int register_os_android_FileWatcher(JNIEnv* env)
 		return -1;
 	}
 
-	method_onEvent = env->GetMethodID(clazz, "onEvent","(IIILjava/lang/String;)V");
-	if (method_onEvent == NULL)
+	method_onEvents = env->GetMethodID(clazz, "onEvents","(II)V");
+	method_onTimeout = env->GetMethodID(clazz, "onTimeout","()V");
+	method_onWakeup = env->GetMethodID(clazz, "onWakeup","()Z");
+	if (method_onEvents == NULL || method_onTimeout == NULL || method_onWakeup == NULL)
+	{
+		LOGE("Can't find FileObserver$ObserverThread.onEvents(int, int), onTimeout() or onWakeup()");
+		return -1;
+	}
+
+	res = env->RegisterNatives(clazz, sThreadMethods,
+			(sizeof(sThreadMethods) / sizeof(sThreadMethods[0])));
+	if (res < 0)
+	{
+		return res;
+	}
+
+	clazz = env->FindClass("custom/fileobserver/TreeSnapshot");
+
+	if (clazz == NULL)
 	{
-		LOGE("Can't find FileObserver.onEvent(int, int, String)");
+		LOGE("Can't find custom.fileobserver.TreeSnapshot");
 		return -1;
 	}
 
-	int res = env->RegisterNatives(clazz, sMethods,
-			(sizeof(sMethods) / sizeof(sMethods[0])));
+	res = env->RegisterNatives(clazz, sSnapshotMethods,
+			(sizeof(sSnapshotMethods) / sizeof(sSnapshotMethods[0])));
 	return res;
 }
 
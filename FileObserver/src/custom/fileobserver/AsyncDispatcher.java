@@ -0,0 +1,243 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the delivery of one observer's events off the reader thread.
+ *
+ * <p>The reader thread copies each event, name bytes included, into a slot
+ * of a ring preallocated at construction and returns to reading.  A drain
+ * task on the executor delivers the slots in order; at most one drain task
+ * per observer runs at a time, so the observer sees its events in kernel
+ * order, one at a time.  Each slot carries a sequence number telling whose
+ * turn it is, so neither side takes a lock.</p>
+ *
+ * <p>When the ring is full the policy decides:
+ * {@link FileObserver#DISPATCH_BLOCK} waits for the drain,
+ * {@link FileObserver#DISPATCH_DROP_OLDEST} discards the oldest pending event,
+ * and {@link FileObserver#DISPATCH_COALESCE} discards the new event if an
+ * identical one is still pending, else waits.  Every such decision is counted
+ * in {@link FileObserverMetrics}.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class AsyncDispatcher {
+    private static final String LOG_TAG = "AsyncDispatcher";
+    /** NAME_MAX + 1 */
+    private static final int MAX_NAME_LENGTH = 256;
+    private static final long BLOCK_PARK_NANOS = 50000;
+    private static final long NO_HOUSEKEEPING = Long.MIN_VALUE;
+
+    private final FileObserver mObserver;
+    private final Executor mExecutor;
+    private final int mPolicy;
+    private final int mCapacity;
+
+    // slot contents, written by the producer only
+    private final int[] mWds;
+    private final int[] mMasks;
+    private final int[] mCookies;
+    private final int[] mNameLengths;
+    private final Watch[] mDirectories;
+    private final byte[] mNames;
+    /**
+     * Slot i is free for the producer at position p when it holds p, and
+     * ready for the consumer at position p when it holds p + 1.
+     */
+    private final AtomicLongArray mSequences;
+    /** Next position to consume; also advanced by the producer when dropping */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Next position to publish, written by the producer only */
+    private volatile long mTail;
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile long mHousekeeping = NO_HOUSEKEEPING;
+    /** Owned by the drain task */
+    private final FileEvent mEvent = new FileEvent();
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    AsyncDispatcher(FileObserver observer, Executor executor, int capacity, int policy) {
+        mObserver = observer;
+        mExecutor = executor;
+        mPolicy = policy;
+        mCapacity = Math.max(2, capacity);
+        mWds = new int[mCapacity];
+        mMasks = new int[mCapacity];
+        mCookies = new int[mCapacity];
+        mNameLengths = new int[mCapacity];
+        mDirectories = new Watch[mCapacity];
+        mNames = new byte[mCapacity * MAX_NAME_LENGTH];
+        mSequences = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /** Called on the reader thread with an event record of the native buffer */
+    void publish(int wd, int mask, int cookie, Watch directory,
+            ByteBuffer buffer, int nameOffset, int nameLength) {
+        long tail = mTail;
+        int slot = (int) (tail % mCapacity);
+        if (mSequences.get(slot) != tail) {
+            if (mPolicy == FileObserver.DISPATCH_COALESCE
+                    && isPending(wd, mask, cookie, buffer, nameOffset, nameLength)) {
+                FileObserverMetrics.DISPATCH_COALESCED.increment();
+                return;
+            }
+            makeRoom(tail, slot);
+        }
+
+        mWds[slot] = wd;
+        mMasks[slot] = mask;
+        mCookies[slot] = cookie;
+        mDirectories[slot] = directory;
+        mNameLengths[slot] = nameLength;
+        if (nameLength > 0) {
+            buffer.position(nameOffset);
+            buffer.get(mNames, slot * MAX_NAME_LENGTH, nameLength);
+        }
+        mSequences.set(slot, tail + 1);
+        mTail = tail + 1;
+        schedule();
+    }
+
+    /** Called on the reader thread, housekeeping runs on the drain task after the pending events */
+    void housekeeping(long nowMillis) {
+        mHousekeeping = nowMillis;
+        schedule();
+    }
+
+    /** Wait until the slot for {@code tail} is free, or free it by dropping the oldest event */
+    private void makeRoom(long tail, int slot) {
+        boolean counted = false;
+        while (mSequences.get(slot) != tail) {
+            if (mPolicy == FileObserver.DISPATCH_DROP_OLDEST) {
+                long head = mHead.get();
+                if (head == tail - mCapacity && mSequences.get(slot) == head + 1
+                        && mHead.compareAndSet(head, head + 1)) {
+                    // the slot is ours, it never reaches the observer
+                    mDirectories[slot] = null;
+                    mSequences.set(slot, tail);
+                    FileObserverMetrics.DISPATCH_DROPPED.increment();
+                    return;
+                }
+            } else if (!counted) {
+                FileObserverMetrics.DISPATCH_BLOCKED.increment();
+                counted = true;
+            }
+            schedule();
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+    }
+
+    /** True if an event equal to the new one is published and not yet taken */
+    private boolean isPending(int wd, int mask, int cookie,
+            ByteBuffer buffer, int nameOffset, int nameLength) {
+        long tail = mTail;
+        for (long position = tail - 1; position >= mHead.get(); position--) {
+            int slot = (int) (position % mCapacity);
+            if (mWds[slot] != wd || mMasks[slot] != mask || mCookies[slot] != cookie
+                    || mNameLengths[slot] != nameLength) {
+                continue;
+            }
+            int base = slot * MAX_NAME_LENGTH;
+            boolean same = true;
+            for (int i = 0; i < nameLength && same; i++) {
+                same = mNames[base + i] == buffer.get(nameOffset + i);
+            }
+            if (same && mSequences.get(slot) == position + 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+                Log.e(LOG_TAG, "executor rejected the dispatch of " + mObserver, e);
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            boolean delivered = false;
+            while (deliverNext()) {
+                // keep going while events are published
+                delivered = true;
+            }
+            if (delivered) {
+                try {
+                    mObserver.onEventsDelivered();
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + mObserver, throwable);
+                }
+            }
+            long housekeeping = mHousekeeping;
+            if (housekeeping != NO_HOUSEKEEPING) {
+                mHousekeeping = NO_HOUSEKEEPING;
+                try {
+                    mObserver.onHousekeeping(housekeeping);
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + mObserver, throwable);
+                }
+            }
+
+            mScheduled.set(false);
+            // something published after the last look would wait for the next event
+            if ((mHead.get() == mTail && mHousekeeping == NO_HOUSEKEEPING)
+                    || !mScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /** @return false if nothing was pending */
+    private boolean deliverNext() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail) {
+                return false;
+            }
+            int slot = (int) (head % mCapacity);
+            if (mSequences.get(slot) != head + 1) {
+                // the producer is dropping it right now
+                continue;
+            }
+            // copy first, the slot belongs to the producer again once the
+            // head moved and the sequence is reset
+            Watch directory = mDirectories[slot];
+            int nameLength = mNameLengths[slot];
+            mEvent.set(mWds[slot], mMasks[slot], mCookies[slot], directory,
+                    mNames, slot * MAX_NAME_LENGTH, nameLength);
+            if (!mHead.compareAndSet(head, head + 1)) {
+                continue;
+            }
+            mDirectories[slot] = null;
+            mSequences.set(slot, head + mCapacity);
+            try {
+                mObserver.deliver(mEvent);
+            } catch (Throwable throwable) {
+                Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + mObserver, throwable);
+            }
+            return true;
+        }
+    }
+}
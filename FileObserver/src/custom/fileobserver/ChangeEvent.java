@@ -0,0 +1,62 @@
+package custom.fileobserver;
+
+/**
+ * A file event which outlives the callback, as {@link FileEventPublisher}
+ * hands them out.  Unlike {@link FileEvent}, which the observer thread
+ * reuses, an instance never changes and may be kept and passed between
+ * threads.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class ChangeEvent {
+    private final int mMask;
+    private final int mCookie;
+    private final String mPath;
+    private final long mTimeMillis;
+
+    ChangeEvent(int mask, int cookie, String path, long timeMillis) {
+        mMask = mask;
+        mCookie = cookie;
+        mPath = path;
+        mTimeMillis = timeMillis;
+    }
+
+    /**
+     * The event type bits, as in {@link FileObserver#onEvent(int, int, String)};
+     * several types OR-ed together for an event coalesced from a window.
+     */
+    public int getMask() {
+        return mMask;
+    }
+
+    /** Pairs a MOVED_FROM with its MOVED_TO, 0 for other events */
+    public int getCookie() {
+        return mCookie;
+    }
+
+    /** The absolute path of the file or directory the event is about */
+    public String getPath() {
+        return mPath;
+    }
+
+    /** Whether the event is about a directory */
+    public boolean isDirectory() {
+        return (mMask & FileObserver.ISDIR) != 0;
+    }
+
+    /** When the event was handed over by the observer, see {@link System#currentTimeMillis()} */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /** This event with the types of {@code later}, a later event for the same path, added */
+    ChangeEvent merge(ChangeEvent later) {
+        return new ChangeEvent(mMask | later.mMask, later.mCookie, mPath, later.mTimeMillis);
+    }
+
+    @Override
+    public String toString() {
+        return LogTracer.describe(mMask) + " " + mPath;
+    }
+}
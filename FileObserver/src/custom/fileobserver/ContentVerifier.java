@@ -0,0 +1,359 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link FileListener} which passes a modification on only if the content
+ * of the file changed, so a file rewritten with the same bytes, or only
+ * touched, is not reported.
+ *
+ * <p>A modification is verified once the path has seen no further
+ * modification for a short while, which for a writer is after its
+ * CLOSE_WRITE.  The file is then read in chunks on a small shared pool and
+ * its MD5 compared with the one cached from the previous verification.  The
+ * cache holds a bounded number of files, least recently verified first out,
+ * and an entry only counts for the same inode and size.  A file whose size
+ * changed is reported at once without being read, and its digest dropped:
+ * a file which keeps growing is never hashed, one which settles is hashed in
+ * full at its next modification, which is reported too.</p>
+ *
+ * <p>Whatever can not be verified is passed on: a file seen for the first
+ * time, a directory, a read error, more pending verifications than the
+ * bound.  Creations, deletions and renames are passed on at once; a
+ * deletion cancels the pending verification of the path and a rename moves
+ * it, and the cache entry, to the new name.  Notifications are delivered
+ * one at a time, on the pool or the thread which brought the event.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class ContentVerifier implements FileListener {
+    private static final String LOG_TAG = "ContentVerifier";
+    private static final String ALGORITHM = "MD5";
+    /** How long a path must see no modification before it is verified */
+    private static final long SETTLE_MILLIS = 100;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /** Verifications waiting or running; beyond that modifications are passed on unverified */
+    private static final int MAX_JOBS = 1024;
+    private static final int THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ScheduledThreadPoolExecutor sPool;
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private static synchronized ScheduledThreadPoolExecutor pool() {
+        if (sPool == null) {
+            sPool = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ContentVerifier #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sPool.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /** What the previous verification of a path found */
+    private static final class Digest {
+        final long inode;
+        final long size;
+        /** null if only the size is known, the content was not hashed */
+        final byte[] value;
+
+        Digest(long inode, long size, byte[] value) {
+            this.inode = inode;
+            this.size = size;
+            this.value = value;
+        }
+    }
+
+    /** A modification waiting to be verified, the current one of its path while in {@link #mJobs} */
+    private final class Job implements Runnable {
+        final String path;
+        long deadline;
+        boolean running;
+        /** Modified again while running */
+        boolean again;
+        /** Whether this run has decided about the modification yet */
+        boolean decided;
+
+        Job(String path) {
+            this.path = path;
+        }
+
+        public void run() {
+            verify(this);
+        }
+    }
+
+    private final int mMaxCached;
+    private volatile FileListener mDownstream;
+
+    // guarded by this
+    private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+
+    /** By path, guarded by itself */
+    private final LinkedHashMap<String, Digest> mCache;
+
+    ContentVerifier(FileListener downstream, int maxCached) {
+        mDownstream = downstream;
+        mMaxCached = Math.max(1, maxCached);
+        mCache = new LinkedHashMap<String, Digest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+                return size() > mMaxCached;
+            }
+        };
+    }
+
+    void setDownstream(FileListener downstream) {
+        mDownstream = downstream;
+    }
+
+    public synchronized void onFileCreated(String name) {
+        mJobs.remove(name);
+        forget(name);
+        FileListener downstream = mDownstream;
+        if (downstream != null) {
+            downstream.onFileCreated(name);
+        }
+    }
+
+    public synchronized void onFileDeleted(String name) {
+        mJobs.remove(name);
+        forget(name);
+        FileListener downstream = mDownstream;
+        if (downstream != null) {
+            downstream.onFileDeleted(name);
+        }
+    }
+
+    public synchronized void onFileModified(String name) {
+        Job job = mJobs.get(name);
+        long deadline = System.nanoTime() / 1000000 + SETTLE_MILLIS;
+        if (job != null) {
+            // the scheduled run waits out the new deadline
+            job.deadline = deadline;
+            if (job.running) {
+                job.again = true;
+            }
+            return;
+        }
+        if (mJobs.size() >= MAX_JOBS) {
+            pass(name);
+            return;
+        }
+        job = new Job(name);
+        job.deadline = deadline;
+        mJobs.put(name, job);
+        schedule(job, SETTLE_MILLIS);
+    }
+
+    public synchronized void onFileRenamed(String oldName, String newName) {
+        Job job = oldName == null ? null : mJobs.remove(oldName);
+        mJobs.remove(newName);
+        synchronized (mCache) {
+            Digest digest = oldName == null ? null : mCache.remove(oldName);
+            mCache.remove(newName);
+            if (digest != null) {
+                // same inode, so it still counts under the new name
+                mCache.put(newName, digest);
+            }
+        }
+        FileListener downstream = mDownstream;
+        if (downstream != null) {
+            downstream.onFileRenamed(oldName, newName);
+        }
+        if (job != null) {
+            Job moved = new Job(newName);
+            moved.deadline = job.deadline;
+            mJobs.put(newName, moved);
+            schedule(moved, Math.max(0, job.deadline - System.nanoTime() / 1000000));
+        }
+    }
+
+    /** Pass every pending modification on unverified, for a verifier being replaced */
+    synchronized void flush() {
+        ArrayList<String> paths = new ArrayList<String>(mJobs.keySet());
+        mJobs.clear();
+        for (int i = 0; i < paths.size(); i++) {
+            pass(paths.get(i));
+        }
+    }
+
+    /** Called holding the lock */
+    private void schedule(Job job, long delayMillis) {
+        try {
+            pool().schedule(job, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "verifier pool rejected " + job.path, e);
+            mJobs.remove(job.path);
+            pass(job.path);
+        }
+    }
+
+    /** Called holding the lock */
+    private void pass(String path) {
+        FileListener downstream = mDownstream;
+        if (downstream != null) {
+            downstream.onFileModified(path);
+        }
+    }
+
+    private void forget(String path) {
+        synchronized (mCache) {
+            mCache.remove(path);
+        }
+    }
+
+    private void verify(Job job) {
+        synchronized (this) {
+            if (mJobs.get(job.path) != job) {
+                // deleted, created or renamed meanwhile
+                return;
+            }
+            long wait = job.deadline - System.nanoTime() / 1000000;
+            if (wait > 0) {
+                schedule(job, wait);
+                return;
+            }
+            job.running = true;
+            job.decided = false;
+        }
+
+        try {
+            check(job);
+        } catch (Throwable throwable) {
+            Log.e(LOG_TAG, "cannot verify " + job.path, throwable);
+            forget(job.path);
+            if (!job.decided) {
+                decide(job, true);
+            }
+        }
+
+        synchronized (this) {
+            if (mJobs.get(job.path) != job) {
+                return;
+            }
+            if (job.again) {
+                job.again = false;
+                job.running = false;
+                schedule(job, Math.max(0, job.deadline - System.nanoTime() / 1000000));
+            } else {
+                mJobs.remove(job.path);
+            }
+        }
+    }
+
+    /** Pass the modification on if it changed the content and is still current */
+    private synchronized void decide(Job job, boolean changed) {
+        job.decided = true;
+        FileObserverMetrics.MODIFICATIONS_VERIFIED.increment();
+        if (!changed) {
+            FileObserverMetrics.MODIFICATIONS_SUPPRESSED.increment();
+            return;
+        }
+        if (mJobs.get(job.path) == job) {
+            pass(job.path);
+        }
+    }
+
+    private void check(Job job) throws IOException {
+        long[] attributes = new long[DirectoryScanner.STRIDE];
+        if (!DirectoryScanner.stat(job.path, attributes)) {
+            // gone, its deletion follows
+            forget(job.path);
+            return;
+        }
+        if (attributes[DirectoryScanner.TYPE] == DirectoryScanner.DIRECTORY) {
+            decide(job, true);
+            return;
+        }
+
+        long inode = attributes[DirectoryScanner.INODE];
+        long size = attributes[DirectoryScanner.SIZE];
+        Digest known;
+        synchronized (mCache) {
+            known = mCache.get(job.path);
+        }
+        if (known != null && known.inode != inode) {
+            known = null;
+        }
+
+        if (known != null && known.size != size) {
+            // a different size is a change whatever the bytes
+            decide(job, true);
+            synchronized (mCache) {
+                mCache.put(job.path, new Digest(inode, size, null));
+            }
+            return;
+        }
+
+        Digest digest;
+        RandomAccessFile file = new RandomAccessFile(job.path, "r");
+        try {
+            digest = hash(file, inode, size);
+        } finally {
+            file.close();
+        }
+        decide(job, known == null || known.value == null
+                || !Arrays.equals(digest.value, known.value));
+        synchronized (mCache) {
+            mCache.put(job.path, digest);
+        }
+    }
+
+    /** Digest the whole content */
+    private static Digest hash(RandomAccessFile file, long inode, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        update(file, 0, size, digest);
+        return new Digest(inode, size, digest.digest());
+    }
+
+    /** Hash the bytes from {@code start} to {@code end}, which throws if the file got shorter */
+    private static void update(RandomAccessFile file, long start, long end, MessageDigest digest)
+            throws IOException {
+        byte[] buffer = sBuffer.get();
+        file.seek(start);
+        for (long position = start; position < end; ) {
+            int length = (int) Math.min(buffer.length, end - position);
+            file.readFully(buffer, 0, length);
+            digest.update(buffer, 0, length);
+            position += length;
+        }
+        FileObserverMetrics.BYTES_VERIFIED.add(end - start);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
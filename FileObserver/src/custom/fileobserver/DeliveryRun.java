@@ -0,0 +1,47 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+/**
+ * The observers which got events delivered since the deliverer last ran
+ * out of events at hand, so that each can be told once through
+ * {@link FileObserver#onEventsDelivered()}.  Owned by one delivering thread.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class DeliveryRun {
+    private static final String LOG_TAG = "DeliveryRun";
+
+    private FileObserver[] mObservers = new FileObserver[4];
+    private int mCount;
+
+    /** Note that {@code observer} got an event in this run */
+    void add(FileObserver observer) {
+        if (observer.mInDeliveryRun) {
+            return;
+        }
+        observer.mInDeliveryRun = true;
+        if (mCount == mObservers.length) {
+            FileObserver[] observers = new FileObserver[mCount * 2];
+            System.arraycopy(mObservers, 0, observers, 0, mCount);
+            mObservers = observers;
+        }
+        mObservers[mCount++] = observer;
+    }
+
+    /** End the run, telling every observer in it */
+    void end() {
+        for (int i = 0; i < mCount; i++) {
+            FileObserver observer = mObservers[i];
+            mObservers[i] = null;
+            observer.mInDeliveryRun = false;
+            try {
+                observer.onEventsDelivered();
+            } catch (Throwable throwable) {
+                Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+            }
+        }
+        mCount = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks a directory tree in parallel.  Subclasses decide what happens to each
+ * directory in {@link #expand(Object)}; the crawler only spreads the
+ * directories it returns over a shared pool of worker threads and waits until
+ * the whole tree has been expanded.
+ *
+ * <p>A worker keeps descending into the first child of every directory itself
+ * and hands the siblings to the pool, so narrow trees cost no queueing while
+ * wide trees keep every core busy.  The pool threads time out when idle.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+abstract class DirectoryCrawler<T> {
+    private static final String LOG_TAG = "DirectoryCrawler";
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ThreadPoolExecutor sPool;
+
+    private static synchronized ThreadPoolExecutor pool() {
+        if (sPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "DirectoryCrawler #" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /** Run {@code task} on the crawler pool, next to the expansions of the crawls */
+    static void execute(Runnable task) {
+        pool().execute(task);
+    }
+
+    /** Directories queued or being expanded, the crawl is done when it drops to 0 */
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Process one directory.  Called concurrently from several threads.
+     *
+     * @return the subdirectories to descend into, or null
+     */
+    protected abstract T[] expand(T directory);
+
+    /**
+     * Expand {@code root} on the calling thread and everything below it on the
+     * pool, returning once the whole tree is done.  A crawler is single use.
+     */
+    public void crawl(T root) {
+        mPending.set(1);
+        new Task(root).run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(T directory) {
+        try {
+            pool().execute(new Task(directory));
+        } catch (RejectedExecutionException e) {
+            new Task(directory).run();
+        }
+    }
+
+    private class Task implements Runnable {
+        private final T mDirectory;
+
+        Task(T directory) {
+            mDirectory = directory;
+        }
+
+        public void run() {
+            T directory = mDirectory;
+            try {
+                while (directory != null) {
+                    T[] children = expand(directory);
+                    directory = null;
+                    if (children != null && children.length > 0) {
+                        mPending.addAndGet(children.length - 1);
+                        for (int i = 1; i < children.length; i++) {
+                            submit(children[i]);
+                        }
+                        directory = children[0];
+                    }
+                }
+            } catch (Throwable throwable) {
+                Log.e(LOG_TAG, "crawl failed below " + mDirectory, throwable);
+            } finally {
+                if (mPending.decrementAndGet() == 0) {
+                    mDone.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package custom.fileobserver;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Lists a directory with the inode, size, mtime and type of every entry,
+ * sorted by name, in the layout {@link TreeSnapshot} and {@link WatchPoller}
+ * keep.
+ *
+ * <p>With the native library this is one JNI call which reads the entries
+ * with lstat(), inode included.  Without it java.io does the work, which
+ * can't see inodes and needs a stat per attribute; an incremental scan
+ * passes the previous listing, so an entry whose mtime did not change keeps
+ * its type and size, the way d_type spares a stat, and costs one stat
+ * only.  Such entries have the inode {@link #UNKNOWN_INODE}.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class DirectoryScanner {
+    /** Values per entry, see fileobserver_jni.cpp */
+    static final int STRIDE = 4;
+    static final int INODE = 0;
+    static final int SIZE = 1;
+    static final int MTIME = 2;
+    static final int TYPE = 3;
+    static final long DIRECTORY = 1;
+    static final long FILE = 0;
+    /** The inode of an entry read without the native library */
+    static final long UNKNOWN_INODE = 0;
+
+    private DirectoryScanner() {
+    }
+
+    /**
+     * Read {@code path} from scratch.
+     *
+     * @param out receives the attributes in out[0]
+     * @return the sorted names, or null if the directory can not be read
+     */
+    static String[] scan(String path, long[][] out) {
+        return scan(path, null, null, out);
+    }
+
+    /**
+     * Read {@code path} again, reusing what the previous listing knew.
+     *
+     * @param previousNames the sorted names of the previous listing, or null
+     * @param previousAttributes their attributes
+     * @param out receives the attributes in out[0]
+     * @return the sorted names, or null if the directory can not be read
+     */
+    static String[] scan(String path, String[] previousNames, long[] previousAttributes,
+            long[][] out) {
+        if (FileObserver.isNativeLoaded()) {
+            String[] names = TreeSnapshot.scanDirectory(path, out);
+            if (names != null) {
+                TreeSnapshot.sort(names, out[0], 0, names.length - 1);
+            }
+            return names;
+        }
+
+        File directory = new File(path);
+        String[] names = directory.list();
+        if (names == null) {
+            return null;
+        }
+        Arrays.sort(names);
+        long[] attributes = new long[names.length * STRIDE];
+        int previous = 0;
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            File file = new File(directory, name);
+            long mtime = file.lastModified();
+            if (mtime == 0 && !file.exists()) {
+                // gone since the listing
+                continue;
+            }
+
+            int entry = count * STRIDE;
+            while (previousNames != null && previous < previousNames.length
+                    && previousNames[previous].compareTo(name) < 0) {
+                previous++;
+            }
+            int known = previousNames != null && previous < previousNames.length
+                    && previousNames[previous].equals(name) ? previous * STRIDE : -1;
+            if (known >= 0 && previousAttributes[known + MTIME] == mtime) {
+                attributes[entry + TYPE] = previousAttributes[known + TYPE];
+                attributes[entry + SIZE] = previousAttributes[known + SIZE];
+            } else if (file.isDirectory()) {
+                attributes[entry + TYPE] = DIRECTORY;
+            } else {
+                attributes[entry + TYPE] = FILE;
+                attributes[entry + SIZE] = file.length();
+            }
+            attributes[entry + INODE] = UNKNOWN_INODE;
+            attributes[entry + MTIME] = mtime;
+            names[count++] = name;
+        }
+
+        if (count < names.length) {
+            names = Arrays.copyOf(names, count);
+            attributes = Arrays.copyOf(attributes, count * STRIDE);
+        }
+        out[0] = attributes;
+        return names;
+    }
+
+    /**
+     * Stat a single path, without following a symbolic link when the native
+     * library does the work.
+     *
+     * @param attributes receives {@link #STRIDE} values
+     * @return false if {@code path} does not exist
+     */
+    static boolean stat(String path, long[] attributes) {
+        if (FileObserver.isNativeLoaded()) {
+            return TreeSnapshot.statFile(path, attributes);
+        }
+
+        File file = new File(path);
+        long mtime = file.lastModified();
+        if (mtime == 0 && !file.exists()) {
+            return false;
+        }
+        boolean directory = file.isDirectory();
+        attributes[INODE] = UNKNOWN_INODE;
+        attributes[SIZE] = directory ? 0 : file.length();
+        attributes[MTIME] = mtime;
+        attributes[TYPE] = directory ? DIRECTORY : FILE;
+        return true;
+    }
+}
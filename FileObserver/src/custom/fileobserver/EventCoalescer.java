@@ -0,0 +1,359 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A {@link FileListener} which holds back notifications until a path has
+ * been quiet for a while and merges what happened in between:
+ *
+ * <ul>
+ * <li>repeated modifications become one {@link FileListener#onFileModified(String)}</li>
+ * <li>a creation followed by modifications stays one {@link FileListener#onFileCreated(String)}</li>
+ * <li>a creation followed by a deletion is dropped altogether</li>
+ * <li>a modification followed by a deletion becomes the deletion</li>
+ * <li>a deletion followed by a creation becomes a modification</li>
+ * </ul>
+ *
+ * <p>Renames are not held back, they go to the outbox right behind whatever
+ * was pending for the old and the new path, except that a rename of a file
+ * still pending creation just moves the creation to the new name.  Whatever
+ * that creation replaces, a deletion or a modification of the new name,
+ * goes out first, so the new name reads as replaced rather than as newly
+ * created.</p>
+ *
+ * <p>Deadlines live on a single hashed timer wheel, advanced by one thread
+ * which only runs while something is pending, on the monotonic clock.  At
+ * most {@code maxPending} paths are held back; beyond that the oldest one is
+ * delivered early.</p>
+ *
+ * <p>Whatever is due, expired by the ticker or forced out by an event, goes
+ * to one queue in the order it was taken, and that queue is only ever
+ * drained under one lock: notifications reach the listener one at a time
+ * and in order, on the ticker thread, and on the calling thread only when
+ * the bound forces something out.  A rename thus never waits for a listener
+ * on the thread which brought it.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class EventCoalescer implements FileListener {
+    private static final String LOG_TAG = "EventCoalescer";
+    private static final int WHEEL_SIZE = 64;
+    private static final long MIN_TICK_MILLIS = 5;
+
+    private static final int CREATED = 1;
+    private static final int MODIFIED = 2;
+    private static final int DELETED = 3;
+    /** Only ever in the outbox, a rename passed on in order */
+    private static final int RENAMED = 4;
+
+    /** A path with a notification held back, linked into a wheel slot and the age list */
+    private static final class Pending {
+        final String path;
+        int kind;
+        long deadline;
+        /** The old name of a {@link #RENAMED} notification */
+        String from;
+        Pending slotPrev, slotNext;
+        Pending agePrev, ageNext;
+
+        Pending(String path) {
+            this.path = path;
+        }
+    }
+
+    private final long mQuietMillis;
+    private final long mTickMillis;
+    private final int mMaxPending;
+    /** Where {@link #now()} counts from, so wheel positions stay positive */
+    private final long mOriginNanos = System.nanoTime();
+    private volatile FileListener mDownstream;
+    /** Held while draining {@link #mOutbox}, so notifications never overlap or overtake */
+    private final Object mDeliveryLock = new Object();
+
+    // all guarded by this
+    private final Pending[] mWheel = new Pending[WHEEL_SIZE];
+    private final HashMap<String, Pending> mPending = new HashMap<String, Pending>();
+    private Pending mOldest, mYoungest;
+    /** Notifications taken off the wheel, in order, waiting for {@link #deliver()} */
+    private final ArrayDeque<Pending> mOutbox = new ArrayDeque<Pending>();
+    private Thread mTicker;
+
+    EventCoalescer(FileListener downstream, long quietMillis, int maxPending) {
+        mDownstream = downstream;
+        mQuietMillis = quietMillis;
+        mTickMillis = Math.max(MIN_TICK_MILLIS, quietMillis / 8);
+        mMaxPending = Math.max(1, maxPending);
+    }
+
+    void setDownstream(FileListener downstream) {
+        mDownstream = downstream;
+    }
+
+    public void onFileCreated(String name) {
+        if (record(name, CREATED)) {
+            deliver();
+        }
+    }
+
+    public void onFileDeleted(String name) {
+        if (record(name, DELETED)) {
+            deliver();
+        }
+    }
+
+    public void onFileModified(String name) {
+        if (record(name, MODIFIED)) {
+            deliver();
+        }
+    }
+
+    /** Queue the rename for the ticker, the calling thread never delivers it */
+    public synchronized void onFileRenamed(String oldName, String newName) {
+        Pending old = oldName == null ? null : mPending.get(oldName);
+        if (old != null) {
+            unlink(old);
+            mPending.remove(oldName);
+        }
+        Pending target = mPending.remove(newName);
+        if (target != null) {
+            unlink(target);
+        }
+        if (old != null && old.kind == CREATED) {
+            // created and renamed within the window, just create the new name
+            if (target != null && target.kind != CREATED) {
+                // it replaces what the new name was
+                mOutbox.add(target);
+            }
+            record(newName, CREATED);
+            return;
+        }
+
+        if (old != null) {
+            mOutbox.add(old);
+        }
+        if (target != null) {
+            mOutbox.add(target);
+        }
+        Pending renamed = new Pending(newName);
+        renamed.kind = RENAMED;
+        renamed.from = oldName;
+        mOutbox.add(renamed);
+        startTicker();
+    }
+
+    /** Deliver everything held back right away */
+    void flush() {
+        synchronized (this) {
+            for (Pending pending = mOldest; pending != null; pending = pending.ageNext) {
+                mPending.remove(pending.path);
+                mOutbox.add(pending);
+            }
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                mWheel[i] = null;
+            }
+            mOldest = mYoungest = null;
+        }
+        deliver();
+    }
+
+    /** Milliseconds on the monotonic clock, immune to wall clock steps */
+    private long now() {
+        return (System.nanoTime() - mOriginNanos) / 1000000;
+    }
+
+    /**
+     * Merge {@code kind} into what is pending for {@code path}.
+     *
+     * @return whether the outbox got an entry, because the bound was hit
+     */
+    private synchronized boolean record(String path, int kind) {
+        boolean due = false;
+        Pending pending = mPending.get(path);
+        if (pending == null) {
+            if (mPending.size() >= mMaxPending) {
+                Pending oldest = mOldest;
+                unlink(oldest);
+                mPending.remove(oldest.path);
+                mOutbox.add(oldest);
+                due = true;
+            }
+            pending = new Pending(path);
+            pending.kind = kind;
+            mPending.put(path, pending);
+        } else {
+            unlink(pending);
+            int merged = merge(pending.kind, kind);
+            if (merged == 0) {
+                mPending.remove(path);
+                return due;
+            }
+            pending.kind = merged;
+        }
+
+        pending.deadline = now() + mQuietMillis;
+        link(pending);
+        startTicker();
+        return due;
+    }
+
+    /** Called holding the lock */
+    private void startTicker() {
+        if (mTicker == null) {
+            mTicker = new Thread(new Ticker(), LOG_TAG);
+            mTicker.setDaemon(true);
+            mTicker.start();
+        }
+    }
+
+    /** The combined notification for {@code previous} then {@code next}, 0 if they cancel out */
+    private static int merge(int previous, int next) {
+        if (previous == CREATED) {
+            return next == DELETED ? 0 : CREATED;
+        }
+        // a deletion followed by a creation is a replaced file
+        return next == DELETED ? DELETED : MODIFIED;
+    }
+
+    private void link(Pending pending) {
+        int slot = (int) ((pending.deadline / mTickMillis) % WHEEL_SIZE);
+        pending.slotPrev = null;
+        pending.slotNext = mWheel[slot];
+        if (mWheel[slot] != null) {
+            mWheel[slot].slotPrev = pending;
+        }
+        mWheel[slot] = pending;
+
+        pending.ageNext = null;
+        pending.agePrev = mYoungest;
+        if (mYoungest != null) {
+            mYoungest.ageNext = pending;
+        } else {
+            mOldest = pending;
+        }
+        mYoungest = pending;
+    }
+
+    private void unlink(Pending pending) {
+        if (pending.slotPrev != null) {
+            pending.slotPrev.slotNext = pending.slotNext;
+        } else {
+            int slot = (int) ((pending.deadline / mTickMillis) % WHEEL_SIZE);
+            if (mWheel[slot] == pending) {
+                mWheel[slot] = pending.slotNext;
+            }
+        }
+        if (pending.slotNext != null) {
+            pending.slotNext.slotPrev = pending.slotPrev;
+        }
+        pending.slotPrev = pending.slotNext = null;
+
+        if (pending.agePrev != null) {
+            pending.agePrev.ageNext = pending.ageNext;
+        } else {
+            mOldest = pending.ageNext;
+        }
+        if (pending.ageNext != null) {
+            pending.ageNext.agePrev = pending.agePrev;
+        } else {
+            mYoungest = pending.agePrev;
+        }
+        pending.agePrev = pending.ageNext = null;
+    }
+
+    /**
+     * Move the entries whose deadline passed from the slots for {@code now}
+     * and the tick before it, or from every slot if the ticker fell behind,
+     * to the outbox.  Entries a full turn or more away stay in place.
+     *
+     * @return false when nothing is pending any more and the ticker should
+     *     stop after draining the outbox
+     */
+    private synchronized boolean expire(long now, boolean allSlots) {
+        if (mPending.isEmpty()) {
+            mTicker = null;
+            return false;
+        }
+        int slot = (int) ((now / mTickMillis) % WHEEL_SIZE);
+        int slots = allSlots ? WHEEL_SIZE : 2;
+        for (int i = 0; i < slots; i++, slot = (slot + WHEEL_SIZE - 1) % WHEEL_SIZE) {
+            Pending pending = mWheel[slot];
+            while (pending != null) {
+                Pending next = pending.slotNext;
+                if (pending.deadline <= now) {
+                    unlink(pending);
+                    mPending.remove(pending.path);
+                    mOutbox.add(pending);
+                }
+                pending = next;
+            }
+        }
+        return true;
+    }
+
+    private synchronized Pending takeDue() {
+        return mOutbox.poll();
+    }
+
+    /**
+     * Pass the outbox on.  Whoever holds the delivery lock empties it in
+     * the order entries were taken, including those added meanwhile by
+     * other threads, which then find it empty.
+     */
+    private void deliver() {
+        synchronized (mDeliveryLock) {
+            Pending pending;
+            while ((pending = takeDue()) != null) {
+                FileListener downstream = mDownstream;
+                if (downstream == null) {
+                    continue;
+                }
+                try {
+                    switch (pending.kind) {
+                    case CREATED:
+                        downstream.onFileCreated(pending.path);
+                        break;
+                    case DELETED:
+                        downstream.onFileDeleted(pending.path);
+                        break;
+                    case RENAMED:
+                        downstream.onFileRenamed(pending.from, pending.path);
+                        break;
+                    default:
+                        downstream.onFileModified(pending.path);
+                        break;
+                    }
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in FileListener " + downstream, throwable);
+                }
+            }
+        }
+    }
+
+    private class Ticker implements Runnable {
+        public void run() {
+            long tick = now() / mTickMillis;
+            while (true) {
+                long wait = (tick + 1) * mTickMillis - now();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        // keep ticking, an empty wheel is the only way out
+                    }
+                }
+                long now = now();
+                long current = now / mTickMillis;
+                boolean running = expire(now, current - tick > 1);
+                tick = current;
+                deliver();
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+}
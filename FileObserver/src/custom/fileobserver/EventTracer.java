@@ -0,0 +1,18 @@
+package custom.fileobserver;
+
+/**
+ * Sees every event of a {@link FileObserver} before it is dispatched, for
+ * logging and tracing.  Install one with
+ * {@link FileObserver#setEventTracer(EventTracer)}; without one the observer
+ * thread pays a single null check per event.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public interface EventTracer {
+	/**
+	 * Called on the observer thread.  The event is only valid for the
+	 * duration of the call, and nothing about it is decoded until asked for.
+	 */
+	public void onEvent(FileObserver observer, FileEvent event);
+}
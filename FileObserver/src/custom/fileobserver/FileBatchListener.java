@@ -0,0 +1,19 @@
+package custom.fileobserver;
+
+/**
+ * Receives the events of a {@link FileWatcher} a run at a time, for
+ * consumers which work in bulk and would rather not pay a call and a path
+ * String per event.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ * @see FileWatcher#addBatchListener(FileBatchListener)
+ */
+public interface FileBatchListener {
+    /**
+     * Called with the events which arrived together, in order.
+     *
+     * @param batch the events, only valid for the duration of the call
+     */
+    public void onEvents(FileEventBatch batch);
+}
@@ -0,0 +1,185 @@
+package custom.fileobserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A single inotify event as handed to {@link FileObserver#onEvent(FileEvent)}.
+ *
+ * <p>The event keeps the watch descriptor and the raw name bytes reported by
+ * the kernel.  Nothing is decoded until it is asked for: {@link #getName()}
+ * and {@link #path()} build Strings on demand, and
+ * {@link #appendPath(StringBuilder)} writes into a caller owned builder.  An
+ * observer which only looks at {@link #getMask()} allocates nothing.</p>
+ *
+ * <p class="caution">The instance is owned by the observer thread and reused
+ * for every event, so it is only valid for the duration of the callback.  Keep
+ * the path String, not the event.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class FileEvent {
+    /** NAME_MAX + 1 */
+    private static final int MAX_NAME_LENGTH = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mWatchDescriptor;
+    private int mMask;
+    private int mCookie;
+    private Watch mDirectory;
+    private final byte[] mName = new byte[MAX_NAME_LENGTH];
+    private int mNameLength;
+    private String mPath;
+
+    FileEvent() {
+    }
+
+    /**
+     * Fill the event from a record of the native event buffer.
+     *
+     * @param directory the watched directory the event was reported on
+     */
+    void set(int wd, int mask, int cookie, Watch directory,
+            ByteBuffer buffer, int nameOffset, int nameLength) {
+        mWatchDescriptor = wd;
+        mMask = mask;
+        mCookie = cookie;
+        mDirectory = directory;
+        mNameLength = nameLength;
+        mPath = null;
+        if (nameLength > 0) {
+            buffer.position(nameOffset);
+            buffer.get(mName, 0, nameLength);
+        }
+    }
+
+    /** Fill the event from a copy of a record, the name taken from {@code names} */
+    void set(int wd, int mask, int cookie, Watch directory,
+            byte[] names, int nameOffset, int nameLength) {
+        mWatchDescriptor = wd;
+        mMask = mask;
+        mCookie = cookie;
+        mDirectory = directory;
+        mNameLength = nameLength;
+        mPath = null;
+        System.arraycopy(names, nameOffset, mName, 0, nameLength);
+    }
+
+    /**
+     * Report the event on {@code directory} instead, the node of another
+     * observer sharing the kernel watch
+     */
+    void setDirectory(Watch directory) {
+        if (directory != mDirectory) {
+            mDirectory = directory;
+            mPath = null;
+        }
+    }
+
+    /** The inotify watch descriptor the event was reported on */
+    public int getWatchDescriptor() {
+        return mWatchDescriptor;
+    }
+
+    /** The event mask, see the event type constants of {@link FileObserver} */
+    public int getMask() {
+        return mMask;
+    }
+
+    /** The cookie relating a {@link FileObserver#MOVED_FROM} to its {@link FileObserver#MOVED_TO} */
+    public int getCookie() {
+        return mCookie;
+    }
+
+    /** True if the subject of the event is a directory */
+    public boolean isDirectory() {
+        return (mMask & FileObserver.ISDIR) != 0;
+    }
+
+    /** True if the event names an entry inside the watched directory */
+    public boolean hasName() {
+        return mNameLength > 0;
+    }
+
+    /** Length in bytes of the UTF-8 encoded name, 0 if there is none */
+    public int getNameLength() {
+        return mNameLength;
+    }
+
+    /** Byte {@code index} of the UTF-8 encoded name, for allocation free matching */
+    public byte getNameByte(int index) {
+        return mName[index];
+    }
+
+    /** The name of the entry inside the watched directory, or null */
+    public String getName() {
+        if (mNameLength == 0) {
+            return null;
+        }
+        return new String(mName, 0, mNameLength, UTF_8);
+    }
+
+    /**
+     * The absolute path of the file or directory which triggered the event.
+     * The String is built on the first call and cached for the rest of the
+     * callback.
+     */
+    public String path() {
+        if (mPath == null) {
+            String directory = mDirectory.path();
+            if (mNameLength == 0) {
+                mPath = directory;
+            } else {
+                mPath = appendPath(new StringBuilder(directory.length() + 1 + mNameLength)).toString();
+            }
+        }
+        return mPath;
+    }
+
+    /**
+     * Append the absolute path to {@code sb} without creating intermediate
+     * Strings.  Names which are plain ASCII are copied byte by byte.
+     *
+     * @return sb
+     */
+    public StringBuilder appendPath(StringBuilder sb) {
+        return appendPath(sb, mDirectory.path(), mName, 0, mNameLength);
+    }
+
+    /** Append {@code directory}, and the UTF-8 name if there is one, as a path */
+    static StringBuilder appendPath(StringBuilder sb, String directory,
+            byte[] name, int offset, int length) {
+        sb.append(directory);
+        if (length == 0) {
+            return sb;
+        }
+        if (!directory.endsWith("/")) {
+            sb.append('/');
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (name[i] < 0) {
+                return sb.append(new String(name, offset, length, UTF_8));
+            }
+        }
+        for (int i = offset; i < offset + length; i++) {
+            sb.append((char) name[i]);
+        }
+        return sb;
+    }
+
+    /** The path of the watched directory the event was reported on */
+    String directoryPath() {
+        return mDirectory.path();
+    }
+
+    /** The buffer holding the name in its first {@link #getNameLength()} bytes */
+    byte[] nameBytes() {
+        return mName;
+    }
+
+    @Override
+    public String toString() {
+        return "FileEvent(" + Integer.toHexString(mMask) + ") " + path();
+    }
+}
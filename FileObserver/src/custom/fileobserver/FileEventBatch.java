@@ -0,0 +1,162 @@
+package custom.fileobserver;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A run of events in columns, as handed to
+ * {@link FileBatchListener#onEvents(FileEventBatch)}.
+ *
+ * <p>Event {@code i}, for {@code i} below {@link #size()}, has its mask in
+ * {@code getMasks()[i]} and its cookie in {@code getCookies()[i]}.  Its path
+ * is the directory {@link #getDirectory(int)} plus, unless the event is
+ * about the directory itself, the UTF-8 name packed into
+ * {@link #getNames()} at {@code getNameOffsets()[i]}, {@code
+ * getNameLengths()[i]} bytes long.  The directory Strings are the ones the
+ * watches keep anyway, so filling a batch allocates nothing; only
+ * {@link #getPath(int)} and {@link #getName(int)} build Strings.</p>
+ *
+ * <p class="caution">The batch and its arrays are reused for the next run,
+ * so they are only valid for the duration of the callback, and the arrays
+ * are longer than the batch.  Copy out what is needed later.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class FileEventBatch {
+    /** NAME_MAX + 1 */
+    private static final int MAX_NAME_LENGTH = 256;
+    /** Room for names per event; a batch is cut short when a long name no longer fits */
+    private static final int NAME_BYTES_PER_EVENT = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int[] mMasks;
+    private final int[] mCookies;
+    private final String[] mDirectories;
+    private final int[] mNameOffsets;
+    private final int[] mNameLengths;
+    private final byte[] mNames;
+    private int mSize;
+    private int mNamesEnd;
+
+    /** @param capacity how many events the batch holds at most */
+    FileEventBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        mMasks = new int[capacity];
+        mCookies = new int[capacity];
+        mDirectories = new String[capacity];
+        mNameOffsets = new int[capacity];
+        mNameLengths = new int[capacity];
+        mNames = new byte[Math.max(MAX_NAME_LENGTH, capacity * NAME_BYTES_PER_EVENT)];
+    }
+
+    /**
+     * Append {@code event}.
+     *
+     * @return true if the batch has no room for another event
+     */
+    boolean add(FileEvent event) {
+        return add(event.getMask(), event.getCookie(), event.directoryPath(),
+                event.nameBytes(), 0, event.getNameLength());
+    }
+
+    /** Like {@link #add(FileEvent)}, with the name taken from {@code name} */
+    boolean add(int mask, int cookie, String directory, byte[] name, int offset, int length) {
+        int i = mSize++;
+        mMasks[i] = mask;
+        mCookies[i] = cookie;
+        mDirectories[i] = directory;
+        mNameOffsets[i] = mNamesEnd;
+        mNameLengths[i] = length;
+        System.arraycopy(name, offset, mNames, mNamesEnd, length);
+        mNamesEnd += length;
+        return mSize == mMasks.length || mNames.length - mNamesEnd < MAX_NAME_LENGTH;
+    }
+
+    /** Forget the events, for the next run */
+    void clear() {
+        Arrays.fill(mDirectories, 0, mSize, null);
+        mSize = 0;
+        mNamesEnd = 0;
+    }
+
+    /** The number of events */
+    public int size() {
+        return mSize;
+    }
+
+    /** The event masks, see the event type constants of {@link FileObserver} */
+    public int[] getMasks() {
+        return mMasks;
+    }
+
+    /** The cookies relating a {@link FileObserver#MOVED_FROM} to its {@link FileObserver#MOVED_TO} */
+    public int[] getCookies() {
+        return mCookies;
+    }
+
+    /** Where the name of each event starts in {@link #getNames()} */
+    public int[] getNameOffsets() {
+        return mNameOffsets;
+    }
+
+    /** The length in bytes of the name of each event, 0 if there is none */
+    public int[] getNameLengths() {
+        return mNameLengths;
+    }
+
+    /** The UTF-8 names of all events, back to back */
+    public byte[] getNames() {
+        return mNames;
+    }
+
+    public int getMask(int i) {
+        return mMasks[i];
+    }
+
+    public int getCookie(int i) {
+        return mCookies[i];
+    }
+
+    /** True if the subject of event {@code i} is a directory */
+    public boolean isDirectory(int i) {
+        return (mMasks[i] & FileObserver.ISDIR) != 0;
+    }
+
+    /** The absolute path of the watched directory event {@code i} was reported on */
+    public String getDirectory(int i) {
+        return mDirectories[i];
+    }
+
+    /** The name of the entry inside the directory, or null if the event is about the directory */
+    public String getName(int i) {
+        if (mNameLengths[i] == 0) {
+            return null;
+        }
+        return new String(mNames, mNameOffsets[i], mNameLengths[i], UTF_8);
+    }
+
+    /** The absolute path of the file or directory which triggered event {@code i} */
+    public String getPath(int i) {
+        if (mNameLengths[i] == 0) {
+            return mDirectories[i];
+        }
+        return appendPath(i, new StringBuilder(mDirectories[i].length() + 1 + mNameLengths[i]))
+                .toString();
+    }
+
+    /**
+     * Append the absolute path of event {@code i} to {@code sb} without
+     * creating intermediate Strings.
+     *
+     * @return sb
+     */
+    public StringBuilder appendPath(int i, StringBuilder sb) {
+        return FileEvent.appendPath(sb, mDirectories[i], mNames, mNameOffsets[i], mNameLengths[i]);
+    }
+
+    @Override
+    public String toString() {
+        return "FileEventBatch(" + mSize + ")";
+    }
+}
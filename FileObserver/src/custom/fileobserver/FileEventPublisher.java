@@ -0,0 +1,347 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the events of one watched file or tree to any number of
+ * {@link Flow.Subscriber}s, which pull them at their own pace.
+ *
+ * <p>All subscribers share one {@link FileObserver} and so one set of
+ * kernel watches.  It starts watching with the first subscriber and keeps
+ * watching, for subscribers which come later too, until {@link #close()}.
+ * Every subscriber has its own buffer of {@code bufferSize} events, filled
+ * on the observer thread and drained on the executor no faster than the
+ * subscriber requests.  When a buffer is full the policy decides, as for
+ * {@link FileObserver#setAsyncDispatch(java.util.concurrent.Executor, int, int)}:
+ * {@link FileObserver#DISPATCH_BLOCK} holds the observer thread until the
+ * subscriber asks for more, which slows down the intake of every
+ * subscriber; {@link FileObserver#DISPATCH_DROP_OLDEST} discards the oldest
+ * buffered event; {@link FileObserver#DISPATCH_COALESCE} discards an event
+ * identical to a buffered one, else waits.</p>
+ *
+ * <p>{@link #window(int, long)} and {@link #coalesce(int, long)} turn the
+ * stream into batches, for consumers which work in bulk.</p>
+ *
+ * <pre>
+ * FileEventPublisher publisher = new FileEventPublisher(path, true,
+ *         FileObserver.FILE_CHANGED, executor, 4096, FileObserver.DISPATCH_BLOCK);
+ * publisher.coalesce(500, 1000).subscribe(store);
+ * </pre>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class FileEventPublisher implements Flow.Publisher<ChangeEvent> {
+    private static final String LOG_TAG = "FileEventPublisher";
+
+    private final Source mSource;
+    private final Executor mExecutor;
+    private final int mBufferSize;
+    private final int mPolicy;
+    private final CopyOnWriteArrayList<EventSubscription> mSubscriptions =
+            new CopyOnWriteArrayList<EventSubscription>();
+    /** guarded by mSubscriptions */
+    private boolean mStarted;
+    /** guarded by mSubscriptions */
+    private boolean mClosed;
+
+    /** The observer all subscribers share */
+    private final class Source extends FileObserver {
+        Source(String path, boolean watchSubDir, int mask) {
+            super(path, watchSubDir, mask);
+        }
+
+        @Override
+        public void onEvent(int event, int cookie, String path) {
+            ChangeEvent change = new ChangeEvent(event, cookie, path, System.currentTimeMillis());
+            Iterator<EventSubscription> it = mSubscriptions.iterator();
+            while (it.hasNext()) {
+                it.next().offer(change);
+            }
+        }
+    }
+
+    /**
+     * @param path the file or directory to watch
+     * @param watchSubDir whether the subdirectories are watched too
+     * @param mask the event types to publish
+     * @param executor delivers the events to the subscribers
+     * @param bufferSize how many events a subscriber may have pending
+     * @param policy what happens when a buffer is full: {@link FileObserver#DISPATCH_BLOCK},
+     *     {@link FileObserver#DISPATCH_DROP_OLDEST} or {@link FileObserver#DISPATCH_COALESCE}
+     */
+    public FileEventPublisher(String path, boolean watchSubDir, int mask, Executor executor,
+            int bufferSize, int policy) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        mSource = new Source(path, watchSubDir, mask);
+        mExecutor = executor;
+        mBufferSize = Math.max(1, bufferSize);
+        mPolicy = policy;
+    }
+
+    /** See {@link FileObserver#setPathFilter(PathFilter)}, call before the first subscriber */
+    public void setPathFilter(PathFilter filter) {
+        mSource.setPathFilter(filter);
+    }
+
+    public void subscribe(Flow.Subscriber<? super ChangeEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        EventSubscription subscription = new EventSubscription(subscriber);
+        boolean first;
+        synchronized (mSubscriptions) {
+            first = !mClosed && !mStarted;
+            mStarted = true;
+            if (mClosed) {
+                subscription.mDone = true;
+            } else {
+                mSubscriptions.add(subscription);
+            }
+        }
+        if (first) {
+            mSource.startWatching();
+        }
+        subscriber.onSubscribe(subscription);
+        if (subscription.mDone) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Publish batches of up to {@code maxCount} events, each closed once it
+     * is full or {@code maxMillis} after its first event, whichever comes
+     * first.  Every subscriber gets its own windows.
+     *
+     * @param maxMillis the longest a batch stays open, 0 or less for count windows only
+     */
+    public Flow.Publisher<List<ChangeEvent>> window(final int maxCount, final long maxMillis) {
+        return new Flow.Publisher<List<ChangeEvent>>() {
+            public void subscribe(Flow.Subscriber<? super List<ChangeEvent>> subscriber) {
+                WindowProcessor processor = new WindowProcessor(maxCount, maxMillis, false);
+                processor.subscribe(subscriber);
+                FileEventPublisher.this.subscribe(processor);
+            }
+        };
+    }
+
+    /**
+     * Like {@link #window(int, long)}, except that a batch holds one event
+     * per path: the masks of the events of a path in the window are OR-ed
+     * into its first one, so a file written a hundred times is one event.
+     * {@code maxCount} counts distinct paths.
+     */
+    public Flow.Publisher<List<ChangeEvent>> coalesce(final int maxCount, final long maxMillis) {
+        return new Flow.Publisher<List<ChangeEvent>>() {
+            public void subscribe(Flow.Subscriber<? super List<ChangeEvent>> subscriber) {
+                WindowProcessor processor = new WindowProcessor(maxCount, maxMillis, true);
+                processor.subscribe(subscriber);
+                FileEventPublisher.this.subscribe(processor);
+            }
+        };
+    }
+
+    /**
+     * Stop watching and complete every subscriber once it received what is
+     * buffered for it.  Later subscribers are completed at once.
+     */
+    public void close() {
+        boolean started;
+        synchronized (mSubscriptions) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            started = mStarted;
+        }
+        if (started) {
+            mSource.stopWatching();
+        }
+        Iterator<EventSubscription> it = mSubscriptions.iterator();
+        while (it.hasNext()) {
+            it.next().complete();
+        }
+    }
+
+    private void remove(EventSubscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    /**
+     * One subscriber's buffer and demand.  The observer thread adds to the
+     * buffer; a drain task on the executor, at most one at a time, hands out
+     * as many events as were requested.
+     */
+    private final class EventSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ChangeEvent> mSubscriber;
+        /** Drain requests, the task runs while this is above 0 */
+        private final AtomicInteger mWip = new AtomicInteger();
+        // guarded by this
+        private final ArrayDeque<ChangeEvent> mBuffer = new ArrayDeque<ChangeEvent>();
+        private long mDemand;
+        private boolean mCancelled;
+        private boolean mDone;
+        private Throwable mError;
+
+        EventSubscription(Flow.Subscriber<? super ChangeEvent> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        /** Called on the observer thread */
+        void offer(ChangeEvent event) {
+            synchronized (this) {
+                boolean counted = false;
+                while (!mCancelled && !mDone && mBuffer.size() >= mBufferSize) {
+                    if (mPolicy == FileObserver.DISPATCH_DROP_OLDEST) {
+                        mBuffer.poll();
+                        FileObserverMetrics.DISPATCH_DROPPED.increment();
+                        break;
+                    }
+                    if (mPolicy == FileObserver.DISPATCH_COALESCE && isPending(event)) {
+                        FileObserverMetrics.DISPATCH_COALESCED.increment();
+                        return;
+                    }
+                    if (!counted) {
+                        FileObserverMetrics.DISPATCH_BLOCKED.increment();
+                        counted = true;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (mCancelled || mDone) {
+                    return;
+                }
+                mBuffer.add(event);
+                if (mDemand == 0) {
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private boolean isPending(ChangeEvent event) {
+            Iterator<ChangeEvent> it = mBuffer.iterator();
+            while (it.hasNext()) {
+                ChangeEvent pending = it.next();
+                if (pending.getMask() == event.getMask() && pending.getCookie() == event.getCookie()
+                        && pending.getPath().equals(event.getPath())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void request(long n) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    mError = new IllegalArgumentException("non-positive request " + n);
+                    mDone = true;
+                } else {
+                    mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+                }
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                mBuffer.clear();
+                notifyAll();
+            }
+            remove(this);
+        }
+
+        /** The publisher closed, finish once the buffer is drained */
+        void complete() {
+            synchronized (this) {
+                mDone = true;
+                notifyAll();
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (mWip.getAndIncrement() == 0) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    Log.e(LOG_TAG, "executor rejected the delivery to " + mSubscriber, e);
+                    mWip.set(0);
+                }
+            }
+        }
+
+        /** The drain task */
+        public void run() {
+            int missed = 1;
+            while (true) {
+                while (true) {
+                    ChangeEvent event;
+                    Throwable error = null;
+                    boolean finished = false;
+                    synchronized (this) {
+                        if (mCancelled) {
+                            return;
+                        }
+                        if (mDone && (mError != null || mBuffer.isEmpty())) {
+                            mCancelled = true;
+                            error = mError;
+                            finished = true;
+                            event = null;
+                        } else if (mDemand > 0 && !mBuffer.isEmpty()) {
+                            event = mBuffer.poll();
+                            if (mDemand != Long.MAX_VALUE) {
+                                mDemand--;
+                            }
+                            notifyAll();
+                        } else {
+                            break;
+                        }
+                    }
+                    if (finished) {
+                        remove(this);
+                        if (error != null) {
+                            mSubscriber.onError(error);
+                        } else {
+                            mSubscriber.onComplete();
+                        }
+                        return;
+                    }
+                    try {
+                        mSubscriber.onNext(event);
+                    } catch (Throwable throwable) {
+                        // a subscriber which throws is treated as cancelled
+                        Log.wtf(LOG_TAG, "Unhandled exception in subscriber " + mSubscriber, throwable);
+                        cancel();
+                        return;
+                    }
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
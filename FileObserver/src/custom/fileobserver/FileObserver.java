@@ -22,10 +22,23 @@ import android.util.Log;
 
 
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Monitors files (using <a href="http://en.wikipedia.org/wiki/Inotify">inotify</a>)
@@ -44,6 +57,43 @@ import java.util.Iterator;
  * <p class="caution"><b>Warning</b>: If a FileObserver is garbage collected, it
  * will stop sending events.  To ensure you keep receiving events, you must
  * keep a reference to the FileObserver instance from some other live object.</p>
+ *
+ * <p>Events are read from the kernel in batches.  The size of the native read
+ * buffer defaults to {@link #DEFAULT_READ_BUFFER_SIZE} and can be changed with
+ * the <code>custom.fileobserver.readBufferSize</code> system property.</p>
+ *
+ * <p>Watches are spread over several inotify instances, each with its own
+ * kernel queue, so one busy tree can not overflow the queue of another.  Each
+ * observer is placed on the least loaded instance when it starts watching,
+ * unless its tree overlaps the tree of an observer already watching: then
+ * both are placed on one instance and share the kernel watches of the
+ * overlap, each event read once and handed to every observer which asked
+ * for it.
+ * The number of instances defaults to the number of cores, at most
+ * {@link #MAX_DEFAULT_SHARDS}, and can be set with the
+ * <code>custom.fileobserver.shards</code> system property.  The instances are
+ * read by epoll driven reader threads, by default one per instance; the
+ * <code>custom.fileobserver.readerThreads</code> system property lets fewer
+ * threads multiplex them.</p>
+ *
+ * <p>The instances and their threads only exist while at least one observer
+ * is watching.  They are created when the first observer starts, which is
+ * when the system properties above are read, and released when the last one
+ * stops.</p>
+ *
+ * <p>Watches count against the kernel's max_user_watches.  When a tree needs
+ * more than {@link #setWatchBudget(int)} allows, the directories left over
+ * are polled instead, and directories trade places between watching and
+ * polling as their activity changes, so the whole tree stays covered.</p>
+ *
+ * <p>Without the fileobserver_jni library, or with the
+ * <code>custom.fileobserver.backend</code> system property set to
+ * <code>polling</code>, the trees are polled from Java instead.  The events
+ * are the same, only later, and without the kinds polling can't see, such as
+ * {@link #ACCESS}, {@link #OPEN} or {@link #ATTRIB}.</p>
+ *
+ * <p>{@link FileObserverMetrics} reports what the engine is doing: event
+ * rates, watch counts, read batch sizes and callback latencies.</p>
  */
 /**
  * 
@@ -97,157 +147,1657 @@ public abstract class FileObserver {
             | DELETE_SELF | MOVE_SELF;
     public static int FILE_CHANGED = CREATE | DELETE | MOVED_FROM | MOVED_TO | CLOSE_WRITE;/* MODIFY | ATTRIB*/;
     
+    /** Full dispatch ring policy: the reader thread waits for room */
+    public static final int DISPATCH_BLOCK = 0;
+    /** Full dispatch ring policy: the oldest pending event is discarded */
+    public static final int DISPATCH_DROP_OLDEST = 1;
+    /** Full dispatch ring policy: an event identical to a pending one is discarded, otherwise wait */
+    public static final int DISPATCH_COALESCE = 2;
+    /** Default number of events an asynchronous observer can have pending */
+    public static final int DEFAULT_DISPATCH_CAPACITY = 1024;
+
+    /** Default size in bytes of the buffer each native read() fills */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+    /** Upper bound of the default number of inotify instances */
+    public static final int MAX_DEFAULT_SHARDS = 4;
+
     private static final String LOG_TAG = "FileObserver";
 
+    /** sizeof(struct inotify_event) + NAME_MAX + 1, the smallest usable read */
+    private static final int MIN_READ_BUFFER_SIZE = 16 + 255 + 1;
+    /** sizeof(struct inotify_event), so a read never holds more events than this divides */
+    private static final int MIN_EVENT_SIZE = 16;
+    /** wd, mask, cookie, name offset, name length; see fileobserver_jni.cpp */
+    private static final int RECORD_SIZE = 5 * 4;
+    /** How often the reader threads run their housekeeping */
+    private static final int HOUSEKEEPING_MILLIS = 1000;
+    /**
+     * The kernel queues a MOVED_FROM and its MOVED_TO back to back, so a
+     * directory move still unmatched after this long left the watched tree.
+     */
+    private static final int MOVE_PAIR_MILLIS = 50;
+    /**
+     * How long the entries found by the scan of a new directory are
+     * remembered, so the CREATE queued for them meanwhile is dropped
+     */
+    private static final long SCANNED_MILLIS = 1000;
+    /** A watched directory without events for this long may give its watch to a hot polled one */
+    private static final long DEMOTE_IDLE_MILLIS = 5 * 60 * 1000;
+    /**
+     * How much older than the overflow a directory modification may look,
+     * for file systems which keep the mtime to the second
+     */
+    private static final long MTIME_SLACK_MILLIS = 2000;
+    private static final int ENOSPC = 28;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Reads the events of one or more shards, multiplexed with epoll.  An
+     * eventfd wakes the loop up when the thread is shut down or has work
+     * posted, and the loop timeout drives the periodic housekeeping of the
+     * shards.
+     */
+    private static class ObserverThread extends Thread {
+        private final int mReadSize;
+        private final ByteBuffer mEventBuffer;
+        private final FileEvent mEvent = new FileEvent();
+        /** Events per bit number since the last publish, see {@link FileObserverMetrics} */
+        private final int[] mEventCounts = new int[32];
+        /** Only changed before the thread is started */
+        private Shard[] mShards = new Shard[0];
+        /** guarded by this, 0 once the loop is gone */
+        private long mLoop;
+        /** guarded by this */
+        private boolean mStopping;
+        /** Work for the shards, run between two reads; guarded by this */
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+        public ObserverThread(String name, int readSize) {
+            super(name);
+            setDaemon(true);
+            // keep the record area behind the read area int aligned
+            mReadSize = (Math.max(readSize, MIN_READ_BUFFER_SIZE) + 3) & ~3;
+            mEventBuffer = ByteBuffer.allocateDirect(mReadSize
+                    + (mReadSize / MIN_EVENT_SIZE) * RECORD_SIZE);
+            mEventBuffer.order(ByteOrder.nativeOrder());
+            mLoop = createLoop();
+        }
+
+        /** Read the events of {@code shard} on this thread, only before it is started */
+        void addShard(Shard shard) {
+            Shard[] shards = Arrays.copyOf(mShards, mShards.length + 1);
+            shards[mShards.length] = shard;
+            mShards = shards;
+            shard.attach(this, mEventBuffer, mReadSize, mEvent, mEventCounts);
+            if (mLoop == 0 || !addToLoop(mLoop, shard.m_fd)) {
+                Log.e(LOG_TAG, getName() + " can not read inotify fd " + shard.m_fd);
+            }
+        }
+
+        public void run() {
+            try {
+                if (mLoop != 0) {
+                    loop(mLoop, mEventBuffer, mReadSize, HOUSEKEEPING_MILLIS);
+                }
+            } finally {
+                synchronized (this) {
+                    if (mLoop != 0) {
+                        destroyLoop(mLoop);
+                        mLoop = 0;
+                    }
+                }
+                for (int i = 0; i < mShards.length; i++) {
+                    mShards[i].close();
+                }
+            }
+        }
+
+        /** Leave the loop and release the thread, its shards and their fds */
+        synchronized void shutdown() {
+            mStopping = true;
+            if (mLoop != 0) {
+                wakeup(mLoop);
+            }
+        }
+
+        /** Called from native with the number of records decoded from one read() of {@code fd} */
+        public void onEvents(int fd, int count) {
+            Shard[] shards = mShards;
+            for (int i = 0; i < shards.length; i++) {
+                if (shards[i].m_fd == fd) {
+                    long start = System.nanoTime();
+                    shards[i].onEvents(count);
+                    FileObserverMetrics.UPCALL_MICROS.record((System.nanoTime() - start) / 1000);
+                    FileObserverMetrics.READ_BATCH.record(count);
+                    return;
+                }
+            }
+        }
 
-    private static class FolderFilter implements FileFilter{
-        public boolean accept(File pathname) {
-            return pathname.isDirectory();
+        /** Called from native every {@link #HOUSEKEEPING_MILLIS} */
+        public void onTimeout() {
+            long now = System.nanoTime() / 1000000;
+            Shard[] shards = mShards;
+            for (int i = 0; i < shards.length; i++) {
+                shards[i].housekeeping(now);
+            }
         }
+
+        /**
+         * Run {@code task} on this thread, after the read being decoded, so
+         * it never overlaps an event.  Dropped once the thread is shutting
+         * down.
+         */
+        synchronized void post(Runnable task) {
+            if (mLoop != 0 && !mStopping) {
+                mTasks.add(task);
+                wakeup(mLoop);
+            }
+        }
+
+        /** Called from native when the loop is woken up, false ends it */
+        public boolean onWakeup() {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in " + getName(), throwable);
+                }
+            }
+            synchronized (this) {
+                return !mStopping;
+            }
+        }
+
+        private synchronized Runnable nextTask() {
+            return mStopping ? null : mTasks.poll();
+        }
+
+        private native long createLoop();
+        private native boolean addToLoop(long loop, int fd);
+        private native void wakeup(long loop);
+        private native void destroyLoop(long loop);
+        private native void loop(long loop, ByteBuffer buffer, int readSize, int timeoutMillis);
     }
-    private static class ObserverThread extends Thread {
-        private HashMap<Integer, WeakReference<Object>> mObservers = new HashMap<Integer, WeakReference<Object>>();
-        private HashMap<Integer,String> mListPath = new HashMap<Integer,String>();
-        private FolderFilter mFilter = new FolderFilter();
-        private int m_fd;
 
-        public ObserverThread() {
-            super("FileObserver");
+    /**
+     * One inotify instance: its kernel queue, its watches and the directory
+     * trees they form.  Its events are read by the {@link ObserverThread} it
+     * is attached to.
+     */
+    private static class Shard {
+        private final WatchTable mWatches = new WatchTable();
+        /** Observers placed on this instance, counted from placement on */
+        private final AtomicInteger mObserverCount = new AtomicInteger();
+        /** Observers with watches here, copied on write under this and read by the reader thread */
+        private volatile WeakReference<FileObserver>[] mObservers = newObserverArray(0);
+        private final int m_fd;
+        private int mReadSize;
+        private ByteBuffer mEventBuffer;
+        private FileEvent mEvent;
+        private int[] mEventCounts;
+        /** When the last two reads started, to tell when an overflow began losing events */
+        private long mReadNanos;
+        private long mPreviousReadNanos;
+        /** Reader thread only: a recovery is posted and has not looked at anything yet */
+        private boolean mRecoveryPosted;
+        /** Reader thread only: the trees still being recovered after an overflow */
+        private int mRecoveries;
+        /** Reader thread only: another overflow came in during the recovery, lost events since */
+        private boolean mRecoverAgain;
+        private long mRecoverSinceMillis;
+        /** The nodes of a watched directory seen in a MOVED_FROM, waiting for its MOVED_TO */
+        private final ArrayList<Watch> mPendingMoves = new ArrayList<Watch>();
+        private int mPendingMoveCookie;
+        private long mPendingMoveMillis;
+        /** Observers given events by this read or poll, told when it is over */
+        private final DeliveryRun mDeliveryRun = new DeliveryRun();
+        /** Names reported by the scans of new directories, by node; reader thread only */
+        private final HashMap<Watch, HashSet<String>> mScanned = new HashMap<Watch, HashSet<String>>();
+        private long mScannedMillis;
+        /**
+         * Nodes of new directories watched but whose scan is not reported
+         * yet, with the names given a CREATE meanwhile; guarded by itself
+         */
+        private final HashMap<Watch, Unscanned> mUnscanned = new HashMap<Watch, Unscanned>();
+        /** The thread reading this instance */
+        private ObserverThread mThread;
+        /** The events made up on the reader thread, see {@link #deliverScanned} */
+        private final FileEvent mScanEvent = new FileEvent();
+        /** The clock of the reader thread as of the last housekeeping */
+        private long mNowMillis = System.nanoTime() / 1000000;
+        /** The last housekeeping which looked for a watch to demote */
+        private long mDemoteSearchMillis;
+        /** The directories the watch budget had no room for */
+        private final WatchPoller mPoller = new WatchPoller() {
+            @Override
+            protected void onChange(Watch directory, int mask, int cookie, String name) {
+                onPolledEvent(directory, mask, cookie, name);
+            }
+
+            @Override
+            protected void onGone(Watch directory) {
+                stopWatching(directory);
+            }
+
+            @Override
+            protected boolean onHot(Watch directory) {
+                return promote(directory);
+            }
+        };
+
+        public Shard() {
             m_fd = init();
         }
 
-        public void run() {
-            observe(m_fd);
+        /** Share the event buffer and the event counts of the reader thread */
+        void attach(ObserverThread thread, ByteBuffer eventBuffer, int readSize, FileEvent event,
+                int[] eventCounts) {
+            mThread = thread;
+            mEventBuffer = eventBuffer;
+            mReadSize = readSize;
+            mEvent = event;
+            mEventCounts = eventCounts;
         }
 
-        public int startWatching(String observed, String path, int mask, FileObserver observer) {
-            int wfd = startWatching(m_fd, path, mask);
+        /**
+         * Drop a pending directory move whose MOVED_TO never came, poll the
+         * directories which are due, and let every observer do its own
+         * housekeeping on the reader thread.
+         */
+        void housekeeping(long nowMillis) {
+            mNowMillis = nowMillis;
+            if (!mPendingMoves.isEmpty() && nowMillis - mPendingMoveMillis >= MOVE_PAIR_MILLIS) {
+                for (int i = 0; i < mPendingMoves.size(); i++) {
+                    stopWatching(mPendingMoves.get(i));
+                }
+                mPendingMoves.clear();
+            }
+            if (!mScanned.isEmpty() && nowMillis - mScannedMillis >= SCANNED_MILLIS) {
+                mScanned.clear();
+            }
+            dropUnscanned(nowMillis);
+            mPoller.poll(nowMillis);
+            mDeliveryRun.end();
+
+            WeakReference<FileObserver>[] observers = mObservers;
+            for (int i = 0; i < observers.length; i++) {
+                FileObserver observer = observers[i].get();
+                if (observer == null) {
+                    continue;
+                }
+                try {
+                    AsyncDispatcher dispatcher = observer.mDispatcher;
+                    if (dispatcher != null) {
+                        dispatcher.housekeeping(nowMillis);
+                    } else {
+                        observer.onHousekeeping(nowMillis);
+                    }
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in FileObserver "
+                            + observer, throwable);
+                }
+            }
+        }
+
+        private synchronized void addObserver(FileObserver observer) {
+            WeakReference<FileObserver>[] observers = newObserverArray(mObservers.length + 1);
+            System.arraycopy(mObservers, 0, observers, 0, mObservers.length);
+            observers[mObservers.length] = new WeakReference<FileObserver>(observer);
+            mObservers = observers;
+        }
+
+        /** Remove {@code observer} and any observer which was garbage collected */
+        private synchronized void removeObserver(FileObserver observer) {
+            WeakReference<FileObserver>[] observers = newObserverArray(mObservers.length);
+            int count = 0;
+            for (int i = 0; i < mObservers.length; i++) {
+                FileObserver other = mObservers[i].get();
+                if (other != null && other != observer) {
+                    observers[count++] = mObservers[i];
+                }
+            }
+            mObservers = Arrays.copyOf(observers, count);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static WeakReference<FileObserver>[] newObserverArray(int length) {
+            return new WeakReference[length];
+        }
+
+        void close() {
+            close(m_fd);
+        }
+
+        public int startWatching(String path, int mask, FileObserver observer) {
+            long start = System.nanoTime();
+            observer.setSubtreeCrawlsOpen(true);
+            PathFilter filter = observer.mFilter;
+            if (filter != null && filter.hasNameRules()) {
+                observer.mFilterId = createFilter(filter.excludes(),
+                        filter.directoryExcludes(), filter.includes());
+            }
+            int wfd = startWatching(m_fd, path, mask | MASK_ADD, observer.mFilterId);
 
-            Integer i = new Integer(wfd);
             if (wfd <= 0) {
-            	
-            	return i;
+            	if (wfd == -ENOSPC) {
+            		WatchBudget.exhausted();
+            		Log.e(LOG_TAG, "no inotify watch left for " + path);
+            	}
+            	releaseFilter(observer);
+            	return wfd;
             }
+            WatchBudget.take(1);
             
-            synchronized (mObservers) {
-                mObservers.put(i, new WeakReference<Object>(observer));
-                mListPath.put(i, path.replaceFirst(observed, ""));
-
-                if(observer.mWatchSubDir){
-                	File rootFolder = new File(path);
-                    File[] childFolders = rootFolder.listFiles(mFilter);
-                    if((childFolders != null))
-                    {
-                        for(int index = 0; index < childFolders.length; index++)
-                            startWatching(observed, childFolders[index].getPath(), mask, observer);
+            // no lock is held across the crawl, so events keep flowing while
+            // a big tree is registered
+            Watch root = new Watch(wfd, observer, path);
+            register(root, observer);
+            addObserver(observer);
+
+            // the root and its subdirectories are watched before this
+            // returns, the levels below them in the background
+            crawl(root, mask, observer, start);
+            
+            return wfd;
+        }
+
+        /** Register the tree below {@code root} breadth first, see {@link ProgressiveCrawler} */
+        private void crawl(Watch root, int mask, final FileObserver observer, final long start) {
+            final WatchCrawler walker = new WatchCrawler(mask, observer, false);
+            ProgressiveCrawler crawler = new ProgressiveCrawler(
+                    observer.mWatchSubDir ? observer.mMaxDepth : 0, observer.mCoverage) {
+                @Override
+                protected Watch[] expand(Watch directory) {
+                    Watch parent = directory.parent();
+                    if (parent != null && parent.child(directory.name()) != directory) {
+                        // removed or replaced while it waited
+                        return null;
+                    }
+                    return walker.expand(directory);
+                }
+
+                @Override
+                protected void onFinished() {
+                    observer.mCrawler = null;
+                    FileObserverMetrics.CRAWL_MILLIS.record((System.nanoTime() - start) / 1000000);
+                }
+            };
+            observer.mCrawler = crawler;
+            crawler.start(root);
+        }
+
+        /**
+         * Run {@code task} on the reader thread, between two reads, with the
+         * observers it delivers to told when it is done.
+         */
+        private void post(final Runnable task) {
+            ObserverThread thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            thread.post(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mDeliveryRun.end();
                     }
                 }
+            });
+        }
+
+        /**
+         * Watch the new subdirectory {@code name} of {@code parent} right
+         * away, and everything below it in the background, so a big tree
+         * moved in never holds up the reader thread.  Each directory is
+         * listed once its watch is in place, and
+         * {@link #reportScanned(Watch, String[], int)} reports what the
+         * listing found on the reader thread, so entries made before the
+         * watches are not missed.
+         */
+        private void startWatching(Watch parent, String name, int mask, FileObserver observer) {
+            if (isPruned(observer, parent, name) || parent.depth() >= observer.mMaxDepth) {
+                return;
             }
-            
-            return i;
-        }
-
-        public void stopWatching(int descriptor, FileObserver observer) {
-            synchronized(mObservers)
-            {
-                stopWatching(m_fd, descriptor);
-                mListPath.remove(descriptor);
-                mObservers.remove(descriptor);
-
-                Iterator <Integer> it = mListPath.keySet().iterator();
-                while(it.hasNext())
-                {
-                    Integer fd = it.next();
-                    if(mObservers.get(fd).get() == observer)
-                    {
-                        stopWatching(m_fd, fd);
+            final WatchCrawler walker = new WatchCrawler(mask, observer, true);
+            Watch[] children = new Watch[1];
+            if (addChildren(parent, parent.path(), new String[] { name }, walker, children, 0) == 0) {
+                return;
+            }
+
+            final FileObserver owner = observer;
+            ProgressiveCrawler crawler = new ProgressiveCrawler(Integer.MAX_VALUE, new WatchCoverage()) {
+                @Override
+                protected Watch[] expand(Watch directory) {
+                    Watch parent = directory.parent();
+                    if (parent != null && parent.child(directory.name()) != directory) {
+                        // removed or replaced while it waited
+                        return null;
+                    }
+                    return walker.expand(directory);
+                }
+
+                @Override
+                protected void onFinished() {
+                    walker.mFinishedMillis = System.nanoTime() / 1000000;
+                    owner.removeSubtreeCrawl(this);
+                }
+            };
+            if (owner.addSubtreeCrawl(crawler)) {
+                crawler.fork(children[0]);
+            } else {
+                // stopping, what was added goes with the index
+                walker.mFinishedMillis = System.nanoTime() / 1000000;
+            }
+        }
+
+        /** A new directory waiting for its scan, see {@link #mUnscanned} */
+        private static final class Unscanned {
+            final WatchCrawler crawler;
+            final HashSet<String> created = new HashSet<String>();
+
+            Unscanned(WatchCrawler crawler) {
+                this.crawler = crawler;
+            }
+        }
+
+        /** Called before the node of a new directory is entered, its scan is to come */
+        private void expectScan(Watch directory, WatchCrawler crawler) {
+            synchronized (mUnscanned) {
+                mUnscanned.put(directory, new Unscanned(crawler));
+            }
+        }
+
+        /** Remember a CREATE delivered in a new directory before its scan */
+        private void createdBeforeScan(Watch directory, String name) {
+            synchronized (mUnscanned) {
+                if (mUnscanned.isEmpty()) {
+                    return;
+                }
+                Unscanned unscanned = mUnscanned.get(directory);
+                if (unscanned != null) {
+                    unscanned.created.add(name);
+                }
+            }
+        }
+
+        /** Forget the directories whose crawl ended without reporting them, cancelled or pruned */
+        private void dropUnscanned(long nowMillis) {
+            synchronized (mUnscanned) {
+                Iterator<Unscanned> it = mUnscanned.values().iterator();
+                while (it.hasNext()) {
+                    long finished = it.next().crawler.mFinishedMillis;
+                    if (finished != 0 && nowMillis - finished >= SCANNED_MILLIS) {
                         it.remove();
-                        mObservers.remove(fd);
                     }
                 }
             }
         }
 
-		public void onEvent(int wfd, int mask, int cookie, String path) {
-			// look up our observer, fixing up the map if necessary...
-			FileObserver observer = null;
+        /**
+         * On the reader thread: report every entry the listing of a new
+         * directory found as a {@link #CREATE}.  The parent's listing is
+         * always reported before its children's, and all of them after the
+         * event which announced the directory.  An entry which got its own
+         * CREATE before is left out, and the CREATE still queued for an
+         * entry made between the watch and the listing is dropped when it
+         * comes.
+         *
+         * @param entries the subdirectories, then the files; null if the
+         *     directory could not be read
+         */
+        private void reportScanned(Watch directory, String[] entries, int directories) {
+            Unscanned unscanned;
+            synchronized (mUnscanned) {
+                unscanned = mUnscanned.remove(directory);
+            }
+            FileObserver observer = directory.observer.get();
+            if (entries == null || observer == null || (observer.mMask & CREATE) == 0
+                    || mWatches.find(directory.wd, observer) != directory) {
+                // unreadable, or the directory or its observer went meanwhile
+                return;
+            }
+            HashSet<String> scanned = mScanned.get(directory);
+            if (scanned == null) {
+                scanned = new HashSet<String>();
+                mScanned.put(directory, scanned);
+            }
+            for (int j = 0; j < entries.length; j++) {
+                boolean isDir = j < directories;
+                if (isDir && isPruned(observer, directory, entries[j])) {
+                    continue;
+                }
+                if (unscanned != null && unscanned.created.contains(entries[j])) {
+                    continue;
+                }
+                scanned.add(entries[j]);
+                deliverScanned(observer, directory, isDir ? CREATE | ISDIR : CREATE, entries[j]);
+            }
+            mScannedMillis = mNowMillis;
+        }
 
-			synchronized (mObservers) {
-				WeakReference<Object> weak = mObservers.get(wfd);
-				if (weak != null) { // can happen with lots of events from a
-									// dead wfd
-					observer = (FileObserver) weak.get();
-					if (observer == null) {
-						mObservers.remove(wfd);
-						mListPath.remove(wfd);
-					}
-				}
+        /** Whether a scan reported the entry {@code name} of {@code directory} already, see {@link #reportScanned} */
+        private boolean wasScanned(Watch directory, String name) {
+            HashSet<String> scanned = mScanned.get(directory);
+            return scanned != null && scanned.remove(name);
+        }
+
+        private void deliverScanned(FileObserver observer, Watch directory, int mask, String name) {
+            try {
+                byte[] bytes = name.getBytes(UTF_8);
+                AsyncDispatcher dispatcher = observer.mDispatcher;
+                if (dispatcher != null) {
+                    dispatcher.publish(directory.wd, mask, 0, directory,
+                            ByteBuffer.wrap(bytes), 0, bytes.length);
+                } else {
+                    mScanEvent.set(directory.wd, mask, 0, directory, bytes, 0, bytes.length);
+                    observer.deliver(mScanEvent);
+                    mDeliveryRun.add(observer);
+                }
+            } catch (Throwable throwable) {
+                Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+            }
+        }
+
+        /**
+         * Watch the subdirectories {@code names} of {@code directory} as far
+         * as the {@link WatchBudget} goes, and poll the rest.
+         *
+         * @param crawler the crawl they belong to; if it is one of directories
+         *     which appeared while watching, whatever they hold is reported,
+         *     by their scan or by the first poll
+         * @param out receives the new nodes from {@code offset} on
+         * @return how many nodes were made; directories gone meanwhile, or
+         *     given a node by another crawl meanwhile, get none
+         */
+        private int addChildren(Watch directory, String path, String[] names,
+                WatchCrawler crawler, Watch[] out, int offset) {
+            int mask = crawler.mMask;
+            FileObserver observer = crawler.mObserver;
+            boolean fresh = crawler.mFresh;
+            int granted = WatchBudget.reserve(names.length);
+            int[] wds = new int[names.length];
+            if (granted > 0) {
+                addWatches(m_fd, path, granted == names.length ? names : Arrays.copyOf(names, granted),
+                        mask | MASK_ADD, wds, observer.mFilterId);
+            }
+            int count = 0;
+            int failed = 0;
+            boolean exhausted = false;
+            for (int i = 0; i < names.length; i++) {
+                Watch child;
+                if (i < granted && wds[i] > 0) {
+                    synchronized (directory) {
+                        Watch known = directory.child(names[i]);
+                        if (known != null && known.wd == wds[i]) {
+                            // the reader thread and a crawl both found it, the
+                            // crawl which made the node covers it
+                            failed++;
+                            continue;
+                        }
+                        child = new Watch(wds[i], observer, directory, names[i]);
+                    }
+                    if (fresh) {
+                        // before its events can find the node
+                        expectScan(child, crawler);
+                    }
+                    register(child, observer);
+                } else if (i >= granted || wds[i] == -ENOSPC) {
+                    if (i < granted) {
+                        failed++;
+                        exhausted = true;
+                    }
+                    child = new Watch(Watch.POLLED, observer, directory, names[i]);
+                    mPoller.add(child, fresh, System.nanoTime() / 1000000);
+                    FileObserverMetrics.WATCHES_REFUSED.increment();
+                } else {
+                    failed++;
+                    continue;
+                }
+                out[offset + count++] = child;
+            }
+            WatchBudget.release(failed);
+            if (exhausted) {
+                WatchBudget.exhausted();
+            }
+            return count;
+        }
+
+        /**
+         * Enter a node whose directory was just added.  Watches are always
+         * added with {@link #MASK_ADD}, so when the kernel handed out the
+         * descriptor of a directory another observer watches already, its
+         * mask only grew; the node then joins the other observers' nodes.
+         */
+        private void register(Watch watch, FileObserver observer) {
+            watch.activeMillis = System.nanoTime() / 1000000;
+            Watch old = mWatches.put(watch.wd, watch);
+            if (old != null) {
+                // the same directory added again, the new node replaces it
+                old.detach();
+            }
+            int sharers = mWatches.sharers(watch.wd);
+            if (old != null || sharers > 1) {
+                // the kernel counts one watch
+                WatchBudget.release(1);
+            }
+            if (sharers > 1) {
+                // the add just gave the watch this observer's native filter
+                reconfigure(watch.wd);
+            }
+            observer.mWatchIndex.add(watch.wd);
+        }
+
+        /**
+         * Set the kernel mask of {@code wd} to what its observers ask for
+         * together, and its native filter to the one of its observer if it
+         * has only one.  The events of a watch observers share are not
+         * filtered natively; {@link #onEvent(int, int, int, int, int)}
+         * applies the filter of each observer instead.
+         */
+        private void reconfigure(int wd) {
+            synchronized (mWatches) {
+                Watch head = mWatches.get(wd);
+                int mask = 0;
+                int filterId = 0;
+                int observers = 0;
+                for (Watch node = head; node != null; node = node.nextShared) {
+                    FileObserver observer = node.observer.get();
+                    if (observer != null) {
+                        mask |= observer.mMask;
+                        filterId = observer.mFilterId;
+                        observers++;
+                    }
+                }
+                if (observers == 0) {
+                    return;
+                }
+                int res = startWatching(m_fd, head.path(), mask, observers == 1 ? filterId : 0);
+                if (res > 0 && res != wd && mWatches.get(res) == null) {
+                    // the path names another directory by now
+                    removeWatches(m_fd, new int[] { res }, 1);
+                }
+            }
+        }
+
+        /** Remove the node {@code watch}, and the kernel watch with the last node */
+        private boolean unregister(Watch watch) {
+            int left = mWatches.remove(watch.wd, watch);
+            if (left >= 0) {
+                unindex(watch);
+            }
+            if (left > 0) {
+                reconfigure(watch.wd);
+            }
+            return left == 0;
+        }
+
+        /** Take the descriptor of a node out of the table off its observer's index */
+        private static void unindex(Watch watch) {
+            FileObserver observer = watch.observer.get();
+            if (observer != null) {
+                observer.mWatchIndex.remove(watch.wd);
+            }
+        }
+
+        /**
+         * Watches every subdirectory of the directories it expands, one
+         * native listing and one batched native add per directory.
+         * Subdirectories which already have a node are kept, and nodes whose
+         * directory is gone are dropped, so crawling an existing tree again
+         * only adds and removes what changed.
+         */
+        private class WatchCrawler extends DirectoryCrawler<Watch> {
+            private final int mMask;
+            private final FileObserver mObserver;
+            /**
+             * Whether the directories it finds are new: each one is listed in
+             * full and its entries reported, see {@link #reportScanned}
+             */
+            private final boolean mFresh;
+            /** When the crawl ended on the reader thread's clock, 0 while it runs */
+            volatile long mFinishedMillis;
+
+            WatchCrawler(int mask, FileObserver observer, boolean fresh) {
+                mMask = mask;
+                mObserver = observer;
+                mFresh = fresh;
+            }
+
+            @Override
+            protected Watch[] expand(Watch directory) {
+                int maxDepth = mObserver.mMaxDepth;
+                boolean deepest = maxDepth != Integer.MAX_VALUE && directory.depth() >= maxDepth;
+                String path = directory.path();
+                String[] names;
+                if (mFresh && !directory.isPolled()) {
+                    // one pass tells the subdirectories and the entries to report;
+                    // the poller reports the entries of a polled one itself
+                    final Watch scanned = directory;
+                    final int[] directories = new int[1];
+                    final String[] entries = listEntries(path, mObserver.mFilterId, directories);
+                    post(new Runnable() {
+                        public void run() {
+                            reportScanned(scanned, entries, directories[0]);
+                        }
+                    });
+                    if (entries == null || deepest) {
+                        return null;
+                    }
+                    names = directories[0] == entries.length ? entries
+                            : Arrays.copyOf(entries, directories[0]);
+                } else {
+                    if (deepest) {
+                        return null;
+                    }
+                    names = listDirectories(path, mObserver.mFilterId);
+                    if (names == null) {
+                        return null;
+                    }
+                }
+                names = excludePaths(path, names);
+                prune(directory, names);
+                if (names.length == 0) {
+                    return null;
+                }
+
+                Watch[] children = new Watch[names.length];
+                String[] added = new String[names.length];
+                int count = 0;
+                int addedCount = 0;
+                for (int i = 0; i < names.length; i++) {
+                    Watch known = directory.child(names[i]);
+                    if (known != null) {
+                        if (!mFresh) {
+                            children[count++] = known;
+                        }
+                        // a new directory's node was made by the crawl its own event started
+                    } else {
+                        added[addedCount++] = names[i];
+                    }
+                }
+
+                if (addedCount > 0) {
+                    if (addedCount < added.length) {
+                        added = Arrays.copyOf(added, addedCount);
+                    }
+                    count += addChildren(directory, path, added, this, children, count);
+                }
+                return count == children.length ? children : Arrays.copyOf(children, count);
+            }
+
+            /** Leave out the subdirectories pruned by a path rule of the observer's filter */
+            private String[] excludePaths(String path, String[] names) {
+                PathFilter filter = mObserver.mFilter;
+                if (filter == null || !filter.hasPathRules()) {
+                    return names;
+                }
+                String relative = PathFilter.relativePath(mObserver.mPath, path);
+                String[] kept = new String[names.length];
+                int count = 0;
+                for (int i = 0; i < names.length; i++) {
+                    String name = names[i];
+                    if (!filter.excludesDirectory(relative.length() == 0 ? name : relative + "/" + name)) {
+                        kept[count++] = name;
+                    }
+                }
+                return count == names.length ? names : Arrays.copyOf(kept, count);
+            }
+
+            /** Drop the nodes below {@code directory} which are not in {@code names} any more */
+            private void prune(Watch directory, String[] names) {
+                Watch[] known = directory.children();
+                if (known.length == 0) {
+                    return;
+                }
+                HashSet<String> present = new HashSet<String>(Arrays.asList(names));
+                for (int i = 0; i < known.length; i++) {
+                    if (!present.contains(known[i].name())) {
+                        stopWatching(known[i]);
+                    }
+                }
+            }
+        }
+
+        /** Drop the watches of a directory which left the watched tree */
+        private void stopWatching(Watch directory) {
+            ArrayList<Watch> subtree = directory.subtree();
+            directory.detach();
+            int[] wds = new int[subtree.size()];
+            int count = 0;
+            for (int i = 0; i < wds.length; i++) {
+                Watch watch = subtree.get(i);
+                if (watch.isPolled()) {
+                    mPoller.remove(watch);
+                } else if (unregister(watch)) {
+                    wds[count++] = watch.wd;
+                }
+            }
+            removeWatches(m_fd, wds, count);
+            WatchBudget.release(count);
+        }
+
+        /**
+         * Remove every watch registered for {@code observer}.  Only the
+         * observer's own index is walked, and the kernel watches go in a
+         * single native call.
+         */
+        public void stopWatching(FileObserver observer) {
+            ProgressiveCrawler crawler = observer.mCrawler;
+            if (crawler != null) {
+                // nothing may be registered once the index is drained
+                crawler.cancel(true);
+            }
+            observer.setSubtreeCrawlsOpen(false);
+            removeObserver(observer);
+            int[] wds = observer.mWatchIndex.drain();
+            int count = 0;
+            for (int i = 0; i < wds.length; i++) {
+                // skip descriptors the kernel already dropped and handed out
+                // again, and keep the ones other observers still share
+                Watch watch = mWatches.find(wds[i], observer);
+                if (watch != null && unregister(watch)) {
+                    wds[count++] = wds[i];
+                }
+            }
+            removeWatches(m_fd, wds, count);
+            WatchBudget.release(count);
+            mPoller.removeAll(observer);
+            releaseFilter(observer);
+        }
+
+        /** Free the native name filter of {@code observer}, if it has one */
+        private void releaseFilter(FileObserver observer) {
+            int id = observer.mFilterId;
+            if (id != 0) {
+                observer.mFilterId = 0;
+                destroyFilter(id);
+            }
+        }
+
+        /** Whether a path rule of the observer's filter prunes the subdirectory {@code name} of {@code parent} */
+        private static boolean isPruned(FileObserver observer, Watch parent, String name) {
+            PathFilter filter = observer.mFilter;
+            if (filter == null || !filter.hasPathRules()) {
+                return false;
+            }
+            String parentPath = parent.path();
+            String path = parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+            return filter.excludesDirectory(PathFilter.relativePath(observer.mPath, path));
+        }
+
+        /**
+         * Called on the reader thread once per read() with the number of
+         * event records decoded behind the read area of {@link #mEventBuffer}.
+         */
+        void onEvents(int count) {
+            mPreviousReadNanos = mReadNanos;
+            mReadNanos = System.nanoTime();
+            ByteBuffer buffer = mEventBuffer;
+            int[] counts = mEventCounts;
+            int seen = 0;
+            int record = mReadSize;
+            for (int i = 0; i < count; i++, record += RECORD_SIZE) {
+                int mask = buffer.getInt(record + 4);
+                seen |= mask;
+                for (int bits = mask; bits != 0; bits &= bits - 1) {
+                    counts[Integer.numberOfTrailingZeros(bits)]++;
+                }
+                onEvent(buffer.getInt(record), mask,
+                        buffer.getInt(record + 8), buffer.getInt(record + 12),
+                        buffer.getInt(record + 16));
+            }
+            mDeliveryRun.end();
+
+            // publish once per read, not once per event
+            for (int bits = seen; bits != 0; bits &= bits - 1) {
+                int bit = Integer.numberOfTrailingZeros(bits);
+                FileObserverMetrics.EVENTS[bit].add(counts[bit]);
+                counts[bit] = 0;
+            }
+        }
+
+		private void onEvent(int wfd, int mask, int cookie, int nameOffset, int nameLength) {
+			if ((mask & Q_OVERFLOW) != 0) {
+				// the kernel queue overflowed and events of every tree on
+				// this instance were lost
+				FileObserverMetrics.OVERFLOWS.increment();
+				recover();
+				return;
 			}
 
-			// ...then call out to the observer without the sync lock held
-			if (observer == null) {
-				Log.i(LOG_TAG,"onEvent observer null ,return...");
+			// one node per observer sharing the watch
+			Watch head = mWatches.get(wfd);
+			if (head == null) {
+				// events still queued for a watch already removed
 				return;
 			}
 
-			try {
-				String observed = observer.mPath ;
-				String newAbsPath = observed + mListPath.get(wfd);
-				if (path != null) {
-					if (newAbsPath.length() > 0) {
-						newAbsPath += "/";
-					}
-					newAbsPath += path;
+			if ((mask & IGNORED) != 0) {
+				// the kernel dropped the watch, the directory is gone
+				Watch removed = mWatches.remove(wfd);
+				for (Watch node = removed; node != null; node = node.nextShared) {
+					unindex(node);
+					node.detach();
+				}
+				if (removed != null) {
+					WatchBudget.release(1);
 				}
+			}
 
-				if ((mask & (CREATE | ISDIR)) != 0) {
-					//auto to watch new created subdirectory
-					if(observer.mWatchSubDir){
-						startWatching(observed, newAbsPath, observer.mMask, observer);
+			FileEvent event = mEvent;
+			event.set(wfd, mask, cookie, head, mEventBuffer, nameOffset, nameLength);
+			boolean moved = trackMove(head, event);
+			boolean shared = head.nextShared != null;
+			for (Watch watch = head; watch != null; watch = watch.nextShared) {
+				// look up our observer, fixing up the table if necessary...
+				FileObserver observer = watch.observer.get();
+				if (observer == null) {
+					if (unregister(watch)) {
+						// nobody else shares it, the kernel watch goes too
+						removeWatches(m_fd, new int[] { wfd }, 1);
+						WatchBudget.release(1);
 					}
-					
+					continue;
+				}
+				if ((mask & ALL_EVENTS) != 0 && (mask & observer.mMask & ALL_EVENTS) == 0) {
+					// only another observer sharing the watch asked for it
+					continue;
+				}
+				watch.activeMillis = mNowMillis;
+				ProgressiveCrawler crawler = observer.mCrawler;
+				if (crawler != null) {
+					// a busy directory gets its subdirectories watched first
+					crawler.promote(watch);
 				}
 
-				observer.onEvent(mask, cookie,newAbsPath);
-			} catch (Throwable throwable) {
-				Log.wtf(LOG_TAG, "Unhandled exception in FileObserver "
-						+ observer, throwable);
+				try {
+					event.setDirectory(watch);
+					if (event.hasName() && isFiltered(observer, watch, event, shared)) {
+						continue;
+					}
+					if ((mask & CREATE) != 0 && !mScanned.isEmpty() && event.hasName()
+							&& wasScanned(watch, event.getName())) {
+						// reported by the scan of its new directory already
+						continue;
+					}
+					if ((mask & (CREATE | MOVED_TO)) != 0 && event.hasName()) {
+						// its directory may still wait for the scan, which must leave it out
+						createdBeforeScan(watch, event.getName());
+					}
+					holdMove(watch, event);
+
+					if (observer.mWatchSubDir && isNewDirectory(watch, event, moved)) {
+						//auto to watch new created subdirectory
+						startWatching(watch, event.getName(), observer.mMask, observer);
+					}
+
+					AsyncDispatcher dispatcher = observer.mDispatcher;
+					if (dispatcher != null) {
+						dispatcher.publish(wfd, mask, cookie, watch, mEventBuffer, nameOffset, nameLength);
+					} else {
+						observer.deliver(event);
+						mDeliveryRun.add(observer);
+					}
+				} catch (Throwable throwable) {
+					Log.wtf(LOG_TAG, "Unhandled exception in FileObserver "
+							+ observer, throwable);
+				}
 			}
 
 		}
 
+        /**
+         * Whether {@code event} brings a directory into the tree of
+         * {@code watch}: created there, or moved in from outside.  Any other
+         * event, on a file or on a directory, registers nothing, and a
+         * directory moved within the tree keeps its watches, see
+         * {@link #trackMove(Watch, FileEvent)}.
+         */
+        private static boolean isNewDirectory(Watch watch, FileEvent event, boolean moved) {
+            int mask = event.getMask();
+            if ((mask & ISDIR) == 0 || !event.hasName()) {
+                return false;
+            }
+            if ((mask & CREATE) != 0) {
+                return true;
+            }
+            return (mask & MOVED_TO) != 0 && !(moved && watch.child(event.getName()) != null);
+        }
+
+        /**
+         * Whether the filter of {@code observer} leaves out the entry
+         * {@code event} names.  Name rules were applied natively unless the
+         * watch is shared, path rules are only applied here.
+         */
+        private static boolean isFiltered(FileObserver observer, Watch watch, FileEvent event,
+                boolean shared) {
+            PathFilter filter = observer.mFilter;
+            if (filter == null) {
+                return false;
+            }
+            if (shared && filter.hasNameRules()) {
+                return filter.excludes(PathFilter.relativePath(observer.mPath, watch.path()),
+                        event.getName(), event.isDirectory());
+            }
+            return event.isDirectory() && isPruned(observer, watch, event.getName());
+        }
+
+        /**
+         * Handle a change the poller found in {@code directory} like the
+         * event inotify would have sent, on the reader thread.
+         */
+        private void onPolledEvent(Watch directory, int mask, int cookie, String name) {
+            FileObserver observer = directory.observer.get();
+            if (observer == null) {
+                return;
+            }
+            PathFilter filter = observer.mFilter;
+            if (filter != null && filter.excludes(PathFilter.relativePath(observer.mPath,
+                    directory.path()), name, (mask & ISDIR) != 0)) {
+                return;
+            }
+            ProgressiveCrawler crawler = observer.mCrawler;
+            if (crawler != null) {
+                crawler.promote(directory);
+            }
+
+            try {
+                byte[] bytes = name.getBytes(UTF_8);
+                FileEvent event = mEvent;
+                event.set(directory.wd, mask, cookie, directory, bytes, 0, bytes.length);
+
+                boolean moved = trackMove(directory, event);
+                holdMove(directory, event);
+                if (!moved && (mask & (CREATE | ISDIR)) == (CREATE | ISDIR) && observer.mWatchSubDir
+                        && directory.child(name) == null) {
+                    // a subdirectory the crawl of a new polled directory knows already is not new
+                    startWatching(directory, name, observer.mMask, observer);
+                } else if ((mask & (DELETE | ISDIR)) == (DELETE | ISDIR)) {
+                    // no IGNORED comes for a polled subdirectory
+                    Watch child = directory.child(name);
+                    if (child != null) {
+                        stopWatching(child);
+                    }
+                }
+                if ((mask & observer.mMask & ALL_EVENTS) == 0) {
+                    return;
+                }
+
+                AsyncDispatcher dispatcher = observer.mDispatcher;
+                if (dispatcher != null) {
+                    dispatcher.publish(directory.wd, mask, cookie, directory,
+                            ByteBuffer.wrap(bytes), 0, bytes.length);
+                } else {
+                    observer.deliver(event);
+                    mDeliveryRun.add(observer);
+                }
+            } catch (Throwable throwable) {
+                Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+            }
+        }
+
+        /**
+         * Give the polled {@code directory} a kernel watch because it keeps
+         * changing, taking the watch of a long idle directory if the budget
+         * has no room.
+         *
+         * @return true if it is watched now
+         */
+        private boolean promote(Watch directory) {
+            FileObserver observer = directory.observer.get();
+            if (observer == null
+                    || (WatchBudget.reserve(1) == 0 && (!demoteIdle() || WatchBudget.reserve(1) == 0))) {
+                return false;
+            }
+            int wd = startWatching(m_fd, directory.path(), observer.mMask | MASK_ADD,
+                    observer.mFilterId);
+            if (wd <= 0) {
+                WatchBudget.release(1);
+                if (wd == -ENOSPC) {
+                    WatchBudget.exhausted();
+                }
+                return false;
+            }
+            register(directory.replace(wd, observer), observer);
+            FileObserverMetrics.PROMOTIONS.increment();
+            return true;
+        }
+
+        /**
+         * Move the watched directory idle for longest, and at least
+         * {@link #DEMOTE_IDLE_MILLIS}, over to the poller.  Looks at most
+         * once per housekeeping.
+         *
+         * @return true if a watch was freed
+         */
+        private boolean demoteIdle() {
+            long now = mNowMillis;
+            if (mDemoteSearchMillis == now) {
+                return false;
+            }
+            mDemoteSearchMillis = now;
+            Watch[] watches = mWatches.snapshot();
+            Watch coldest = null;
+            for (int i = 0; i < watches.length; i++) {
+                Watch watch = watches[i];
+                // a shared watch stays, the other observers need it anyway
+                if (watch.parent() != null && now - watch.activeMillis >= DEMOTE_IDLE_MILLIS
+                        && mWatches.sharers(watch.wd) == 1
+                        && (coldest == null || watch.activeMillis < coldest.activeMillis)) {
+                    coldest = watch;
+                }
+            }
+            FileObserver observer = coldest == null ? null : coldest.observer.get();
+            if (observer == null) {
+                return false;
+            }
+
+            // the baseline comes first, so nothing changed meanwhile is missed
+            long[][] out = new long[1][];
+            String[] names = DirectoryScanner.scan(coldest.path(), out);
+            int left = names == null ? -1 : mWatches.remove(coldest.wd, coldest);
+            if (left < 0) {
+                return false;
+            }
+            unindex(coldest);
+            if (left == 0) {
+                removeWatches(m_fd, new int[] { coldest.wd }, 1);
+                WatchBudget.release(1);
+            } else {
+                // another observer came to share it meanwhile
+                reconfigure(coldest.wd);
+            }
+            mPoller.add(coldest.replace(Watch.POLLED, observer), names, out[0], now);
+            FileObserverMetrics.DEMOTIONS.increment();
+            return left == 0;
+        }
+
+        /**
+         * Keep the directory trees in step with directory renames.  The nodes
+         * of a watched directory seen in a MOVED_FROM, one per observer
+         * sharing its watch, are held until the next event; if that is the
+         * matching MOVED_TO, each is re-parented in place below the node of
+         * its observer among {@code head} and the nodes chained to it,
+         * otherwise the directory left that observer's tree and its watches
+         * go.  The same happens in {@link #housekeeping(long)} if no event
+         * follows.
+         *
+         * @return true if the event completed a move inside a tree
+         */
+        private boolean trackMove(Watch head, FileEvent event) {
+            if (mPendingMoves.isEmpty()) {
+                return false;
+            }
+            boolean paired = (event.getMask() & (MOVED_TO | ISDIR)) == (MOVED_TO | ISDIR)
+                    && event.getCookie() == mPendingMoveCookie;
+            boolean moved = false;
+            for (int i = 0; i < mPendingMoves.size(); i++) {
+                Watch pending = mPendingMoves.get(i);
+                Watch target = null;
+                if (paired) {
+                    FileObserver observer = pending.observer.get();
+                    for (Watch node = head; node != null && target == null; node = node.nextShared) {
+                        if (node.observer.get() == observer) {
+                            target = node;
+                        }
+                    }
+                }
+                if (target != null) {
+                    pending.moveTo(target, event.getName());
+                    moved = true;
+                } else {
+                    stopWatching(pending);
+                }
+            }
+            mPendingMoves.clear();
+            return moved;
+        }
+
+        /** Hold the node of the directory a MOVED_FROM on {@code watch} names, see {@link #trackMove} */
+        private void holdMove(Watch watch, FileEvent event) {
+            if ((event.getMask() & (MOVED_FROM | ISDIR)) != (MOVED_FROM | ISDIR)) {
+                return;
+            }
+            Watch moving = watch.child(event.getName());
+            if (moving != null) {
+                mPendingMoves.add(moving);
+                mPendingMoveCookie = event.getCookie();
+                mPendingMoveMillis = System.nanoTime() / 1000000;
+            }
+        }
+
+        /**
+         * Catch up after a queue overflow, see {@link #startRecovery(long)}.
+         * Events may have been lost from the moment the read before this
+         * one drained the queue; the recovery starts once the events of this
+         * read are delivered.
+         */
+        private void recover() {
+            long lostNanos = System.nanoTime() - mPreviousReadNanos;
+            final long sinceMillis = System.currentTimeMillis() - lostNanos / 1000000
+                    - MTIME_SLACK_MILLIS;
+            if (mRecoveryPosted) {
+                // it looks back further and finds these too
+                return;
+            }
+            if (mRecoveries > 0) {
+                // the trees being recovered may have been scanned past a directory already
+                mRecoverSinceMillis = mRecoverAgain ? Math.min(mRecoverSinceMillis, sinceMillis)
+                        : sinceMillis;
+                mRecoverAgain = true;
+                return;
+            }
+            mRecoveryPosted = true;
+            post(new Runnable() {
+                public void run() {
+                    mRecoveryPosted = false;
+                    startRecovery(sinceMillis);
+                }
+            });
+        }
+
+        /**
+         * On the reader thread: for every tree on this instance, find the
+         * directories which may have lost events, in the background, and
+         * hand the observer a {@link #Q_OVERFLOW} event for each of them so
+         * it can rescan their entries.  A directory lost events if it was
+         * active around the overflow, or if it was modified since
+         * {@code sinceMillis}; only the changed ones are listed again, to
+         * watch their new subdirectories and drop the ones removed.
+         *
+         * @param sinceMillis the wall clock time events may have been lost from
+         */
+        private void startRecovery(long sinceMillis) {
+            Log.w(LOG_TAG, "inotify queue overflow on fd " + m_fd + ", recovering");
+            // the node activity goes by the clock of the housekeeping
+            long activeSince = (mPreviousReadNanos / 1000000) - HOUSEKEEPING_MILLIS;
+            Watch[] watches = mWatches.snapshot();
+            for (int i = 0; i < watches.length; i++) {
+                Watch root = watches[i];
+                FileObserver observer = root.observer.get();
+                if (root.parent() != null || observer == null) {
+                    continue;
+                }
+                List<Watch> nodes = observer.mWatchSubDir ? root.subtree()
+                        : Collections.singletonList(root);
+                HashSet<Watch> active = new HashSet<Watch>();
+                for (int j = 0; j < nodes.size(); j++) {
+                    if (nodes.get(j).activeMillis >= activeSince) {
+                        active.add(nodes.get(j));
+                    }
+                }
+                if (recoverTree(root, observer, active, sinceMillis)) {
+                    mRecoveries++;
+                }
+            }
+        }
+
+        /**
+         * Look for the directories of one tree which lost events on the
+         * crawler pool, and report them on the reader thread.
+         *
+         * @return false if the observer is stopping
+         */
+        private boolean recoverTree(final Watch root, final FileObserver observer,
+                final HashSet<Watch> active, final long sinceMillis) {
+            final WatchCrawler walker = new WatchCrawler(observer.mMask, observer, false);
+            // changed in the order they were found, parents first; guarded by itself
+            final ArrayList<Watch> changed = new ArrayList<Watch>();
+            // made by this recovery, covered by the rescan of their parent
+            final Set<Watch> added = Collections.synchronizedSet(new HashSet<Watch>());
+            ProgressiveCrawler crawler = new ProgressiveCrawler(Integer.MAX_VALUE, new WatchCoverage()) {
+                @Override
+                protected Watch[] expand(Watch directory) {
+                    Watch parent = directory.parent();
+                    if (parent != null && parent.child(directory.name()) != directory) {
+                        // removed or replaced while it waited
+                        return null;
+                    }
+                    boolean isNew = added.contains(directory);
+                    if (!isNew && !active.contains(directory)
+                            && new File(directory.path()).lastModified() < sinceMillis) {
+                        return observer.mWatchSubDir ? directory.children() : null;
+                    }
+                    if (!isNew) {
+                        synchronized (changed) {
+                            changed.add(directory);
+                        }
+                    }
+                    if (!observer.mWatchSubDir) {
+                        return null;
+                    }
+                    HashSet<Watch> known = new HashSet<Watch>(Arrays.asList(directory.children()));
+                    Watch[] children = walker.expand(directory);
+                    for (int i = 0; children != null && i < children.length; i++) {
+                        if (!known.contains(children[i])) {
+                            added.add(children[i]);
+                        }
+                    }
+                    return children;
+                }
+
+                @Override
+                protected void onFinished() {
+                    observer.removeSubtreeCrawl(this);
+                    post(new Runnable() {
+                        public void run() {
+                            Watch[] lost;
+                            synchronized (changed) {
+                                lost = changed.toArray(new Watch[changed.size()]);
+                            }
+                            deliverOverflow(root, observer, lost);
+                            endRecovery();
+                        }
+                    });
+                }
+            };
+            if (!observer.addSubtreeCrawl(crawler)) {
+                return false;
+            }
+            crawler.fork(root);
+            return true;
+        }
+
+        /** On the reader thread once a tree is recovered, start over if more events were lost meanwhile */
+        private void endRecovery() {
+            if (--mRecoveries == 0 && mRecoverAgain) {
+                mRecoverAgain = false;
+                startRecovery(mRecoverSinceMillis);
+            }
+        }
+
+        /**
+         * Hand {@code observer} a {@link #Q_OVERFLOW} event for each of the
+         * directories {@code lost}, through the same path as its other
+         * events.  The root always gets one, so the observer learns of the
+         * overflow.
+         */
+        private void deliverOverflow(Watch root, FileObserver observer, Watch[] lost) {
+            if (mWatches.find(root.wd, observer) != root) {
+                // stopped meanwhile
+                return;
+            }
+            if (lost.length == 0 || lost[0] != root) {
+                Watch[] withRoot = new Watch[lost.length + 1];
+                withRoot[0] = root;
+                System.arraycopy(lost, 0, withRoot, 1, lost.length);
+                lost = withRoot;
+            }
+            for (int i = 0; i < lost.length; i++) {
+                Watch directory = lost[i];
+                Watch parent = directory.parent();
+                if (parent != null && parent.child(directory.name()) != directory) {
+                    // gone again, its parent is rescanned
+                    continue;
+                }
+                try {
+                    AsyncDispatcher dispatcher = observer.mDispatcher;
+                    if (dispatcher != null) {
+                        dispatcher.publish(directory.wd, Q_OVERFLOW, 0, directory, null, 0, 0);
+                    } else {
+                        mScanEvent.set(directory.wd, Q_OVERFLOW, 0, directory, (ByteBuffer) null, 0, 0);
+                        observer.deliver(mScanEvent);
+                        mDeliveryRun.add(observer);
+                    }
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+                }
+            }
+        }
+
         private native int init();
-        private native void observe(int fd);
-        private native int startWatching(int fd, String path, int mask);
-        private native void stopWatching(int fd, int wfd);
+        private native void close(int fd);
+        private native int startWatching(int fd, String path, int mask, int filterId);
+        private native void removeWatches(int fd, int[] wds, int count);
+        private native String[] listDirectories(String path, int filterId);
+        private native String[] listEntries(String path, int filterId, int[] directoryCount);
+        private native void addWatches(int fd, String parent, String[] names, int mask, int[] wds,
+                int filterId);
+        private native int createFilter(String[] excludes, String[] directoryExcludes,
+                String[] includes);
+        private native void destroyFilter(int filterId);
     }
 
    
-    private static ObserverThread s_observerThread;
+    /**
+     * Hands every observer to a {@link Shard}: the shards and reader threads
+     * come up with the first observer and go with the last one.
+     */
+    private static final class InotifyBackend implements ObserverBackend {
+        public int startWatching(FileObserver observer) {
+            Shard shard = acquireShard(observer);
+            int wd = shard.startWatching(observer.mPath, observer.mMask, observer);
+            if (wd < 0) {
+                releaseShard(shard);
+            } else {
+                observer.mShard = shard;
+            }
+            return wd;
+        }
+
+        public void stopWatching(FileObserver observer) {
+            Shard shard = observer.mShard;
+            if (shard != null) {
+                shard.stopWatching(observer);
+                releaseShard(shard);
+                observer.mShard = null;
+            }
+        }
+
+        public int collectWatches(Map<String, Integer> perObserver) {
+            synchronized (s_lock) {
+                if (s_shards == null) {
+                    return 0;
+                }
+                int total = 0;
+                for (int i = 0; i < s_shards.length; i++) {
+                    Shard shard = s_shards[i];
+                    total += shard.mWatches.size();
+                    WeakReference<FileObserver>[] observers = shard.mObservers;
+                    for (int j = 0; j < observers.length; j++) {
+                        FileObserver observer = observers[j].get();
+                        if (observer != null) {
+                            Integer known = perObserver.get(observer.mPath);
+                            perObserver.put(observer.mPath, observer.mWatchIndex.size()
+                                    + (known == null ? 0 : known));
+                        }
+                    }
+                }
+                return total;
+            }
+        }
+
+        public int countPolled() {
+            synchronized (s_lock) {
+                int total = 0;
+                for (int i = 0; s_shards != null && i < s_shards.length; i++) {
+                    total += s_shards[i].mPoller.size();
+                }
+                return total;
+            }
+        }
+    }
+
+    private static final Object s_lock = new Object();
+    /** guarded by s_lock, null while no observer is watching */
+    private static Shard[] s_shards;
+    /** guarded by s_lock */
+    private static ObserverThread[] s_observerThreads;
+    /** guarded by s_lock */
+    private static int s_watchingObservers;
+    private static final boolean s_nativeLoaded;
+    private static final ObserverBackend s_backend;
 
     static {
-    	try{
-    		System.loadLibrary("fileobserver_jni");
-    	}catch (UnsatisfiedLinkError e) {
-			e.printStackTrace();
-		}
-    	
-    	
-    	/*try {
-			Thread.sleep(5000);
-    	} catch (InterruptedException e) {
-    	    e.printStackTrace();
-    	}*/
-    	
-        s_observerThread = new ObserverThread();
-        s_observerThread.start();
+        boolean loaded = false;
+        try {
+            System.loadLibrary("fileobserver_jni");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(LOG_TAG, "fileobserver_jni not available, polling instead", e);
+        }
+        s_nativeLoaded = loaded;
+        s_backend = loaded && !"polling".equals(System.getProperty("custom.fileobserver.backend"))
+                ? new InotifyBackend() : new PollingBackend();
+    }
+
+    /** Whether the native library is there, for inotify and the native directory scans */
+    static boolean isNativeLoaded() {
+        return s_nativeLoaded;
+    }
+
+    /**
+     * Count the watches of the backend, and per watching observer by path.
+     *
+     * @return the total number of watches
+     */
+    static int collectWatches(Map<String, Integer> perObserver) {
+        return s_backend.collectWatches(perObserver);
+    }
+
+    /** Count the directories polled, for lack of watches or of inotify */
+    static int countPolled() {
+        return s_backend.countPolled();
+    }
+
+    /**
+     * Cap the inotify watches all observers of the process hold together.
+     * Directories beyond it are polled instead, and the ones which keep
+     * changing trade places with watched ones which stay idle.  The default
+     * is {@value WatchBudget#DEFAULT_SHARE_PERCENT}% of
+     * /proc/sys/fs/inotify/max_user_watches.
+     *
+     * @param maxWatches the cap, 0 or less for the default
+     */
+    public static void setWatchBudget(int maxWatches) {
+        WatchBudget.setBudget(maxWatches);
+    }
+
+    /**
+     * Place an observer which starts watching, bringing up the shards and
+     * reader threads if it is the first one.  An observer whose tree
+     * overlaps the tree of one already watching joins its shard, so that
+     * they share the kernel watches of the overlap.  Otherwise the shard with
+     * the fewest watches wins, and among those the one with the fewest
+     * observers, so that observers started together still spread out.
+     */
+    private static Shard acquireShard(FileObserver observer) {
+        synchronized (s_lock) {
+            if (s_shards == null) {
+                int readSize = Integer.getInteger("custom.fileobserver.readBufferSize",
+                        DEFAULT_READ_BUFFER_SIZE);
+                int shards = Math.max(1, Integer.getInteger("custom.fileobserver.shards",
+                        Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_SHARDS)));
+                int threads = Math.max(1, Math.min(shards,
+                        Integer.getInteger("custom.fileobserver.readerThreads", shards)));
+
+                s_shards = new Shard[shards];
+                s_observerThreads = new ObserverThread[threads];
+                for (int i = 0; i < threads; i++) {
+                    s_observerThreads[i] = new ObserverThread("FileObserver #" + i, readSize);
+                }
+                for (int i = 0; i < shards; i++) {
+                    s_shards[i] = new Shard();
+                    s_observerThreads[i % threads].addShard(s_shards[i]);
+                }
+                for (int i = 0; i < threads; i++) {
+                    s_observerThreads[i].start();
+                }
+            }
+            s_watchingObservers++;
+
+            for (int i = 0; i < s_shards.length; i++) {
+                Shard shard = s_shards[i];
+                WeakReference<FileObserver>[] observers = shard.mObservers;
+                for (int j = 0; j < observers.length; j++) {
+                    FileObserver other = observers[j].get();
+                    if (other != null && overlaps(other, observer)) {
+                        shard.mObserverCount.incrementAndGet();
+                        return shard;
+                    }
+                }
+            }
+
+            Shard best = s_shards[0];
+            for (int i = 1; i < s_shards.length; i++) {
+                Shard shard = s_shards[i];
+                int watches = shard.mWatches.size();
+                int bestWatches = best.mWatches.size();
+                if (watches < bestWatches || (watches == bestWatches
+                        && shard.mObserverCount.get() < best.mObserverCount.get())) {
+                    best = shard;
+                }
+            }
+            best.mObserverCount.incrementAndGet();
+            return best;
+        }
+    }
+
+    /** Whether {@code a} and {@code b} watch directories in common */
+    private static boolean overlaps(FileObserver a, FileObserver b) {
+        return contains(a, b.mPath) || contains(b, a.mPath);
+    }
+
+    /** Whether {@code observer} watches the directory {@code path} */
+    private static boolean contains(FileObserver observer, String path) {
+        String root = observer.mPath;
+        if (path.equals(root)) {
+            return true;
+        }
+        if (!observer.mWatchSubDir || !path.startsWith(root)) {
+            return false;
+        }
+        return root.endsWith("/") || path.charAt(root.length()) == '/';
+    }
+
+    /**
+     * An observer stopped watching.  When it was the last one the reader
+     * threads are shut down, which closes every inotify fd, so an idle
+     * process holds neither threads nor fds.
+     */
+    private static void releaseShard(Shard shard) {
+        synchronized (s_lock) {
+            shard.mObserverCount.decrementAndGet();
+            if (--s_watchingObservers == 0) {
+                for (int i = 0; i < s_observerThreads.length; i++) {
+                    s_observerThreads[i].shutdown();
+                }
+                s_shards = null;
+                s_observerThreads = null;
+            }
+        }
     }
 
     // instance
-    private String mPath;
+    String mPath;
     private Integer mDescriptor;
-    private int mMask;
-    private boolean mWatchSubDir;
+    private final WatchIndex mWatchIndex = new WatchIndex();
+    /** The inotify instance this observer was placed on while watching */
+    private Shard mShard;
+    int mMask;
+    boolean mWatchSubDir;
+    /** How many levels of subdirectories are watched */
+    int mMaxDepth = Integer.MAX_VALUE;
+    /** The progress of the last {@link #startWatching()} */
+    volatile WatchCoverage mCoverage;
+    /** Registers the tree while it is not covered yet */
+    volatile ProgressiveCrawler mCrawler;
+    /** Register the directories created or moved in while watching; guarded by itself */
+    private final ArrayList<ProgressiveCrawler> mSubtreeCrawls = new ArrayList<ProgressiveCrawler>();
+    /** Whether no more subtree crawls may start, guarded by {@link #mSubtreeCrawls} */
+    private boolean mSubtreeCrawlsClosed;
+    volatile PathFilter mFilter;
+    /** The native name filter while watching, 0 for none */
+    private volatile int mFilterId;
+    private volatile EventTracer mTracer;
+    volatile AsyncDispatcher mDispatcher;
+    /** Events delivered, to pick the ones whose listener call is timed */
+    private int mDelivered;
+    /** Owned by the delivering thread, see {@link DeliveryRun} */
+    boolean mInDeliveryRun;
     
 	String mThreadName = FileObserver.class.getSimpleName();
 	HandlerThread mThread;
@@ -288,11 +1838,18 @@ public abstract class FileObserver {
      * Start watching for events.  The monitored file or directory must exist at
      * this time, or else no events will be reported (even if it appears later).
      * If monitoring is already started, this call has no effect.
+     *
+     * <p>The root and its subdirectories are watched first; deeper levels
+     * follow breadth first in the background, and events flow for each
+     * directory as soon as it is watched.  {@link #getCoverage()} tells how
+     * far the watches reach.</p>
      */
     public void startWatching() {
     	mThreadName = FileWatcher.class.getSimpleName();
 		if (mThread == null || !mThread.isAlive()) {
 			Log.i(LOG_TAG,"startFileWather new HandlerThread...");
+			final WatchCoverage coverage = new WatchCoverage();
+			mCoverage = coverage;
 			mThread = new HandlerThread(mThreadName,Process.THREAD_PRIORITY_BACKGROUND);
 			mThread.setDaemon(true);
 			mThread.start();
@@ -303,7 +1860,13 @@ public abstract class FileObserver {
 				public void run() {
 					Log.i(LOG_TAG,"startWatching mDescriptor:" + mDescriptor);
 			        if (mDescriptor < 0) {
-			            mDescriptor = s_observerThread.startWatching(mPath, mPath, mMask, FileObserver.this);
+			            mDescriptor = s_backend.startWatching(FileObserver.this);
+			            if (mDescriptor >= 0) {
+			                onWatchingStarted(mPath, mWatchSubDir);
+			            } else {
+			                coverage.fail(new IOException("cannot watch " + mPath
+			                        + ", errno " + -mDescriptor));
+			            }
 			            Log.i(LOG_TAG,"startWatching finished mDescriptor: " + mDescriptor);
 			        }
 				}
@@ -327,8 +1890,14 @@ public abstract class FileObserver {
 			        	Log.i(LOG_TAG,"stopWatching already stopped:" + mDescriptor);
 			        	return;
 			        }
-		            s_observerThread.stopWatching(mDescriptor, FileObserver.this);
+		            s_backend.stopWatching(FileObserver.this);
 		            mDescriptor = -1;
+		            WatchCoverage coverage = mCoverage;
+		            if (coverage != null) {
+		                // the registration ended with the watches
+		                coverage.cancel(false);
+		            }
+		            onWatchingStopped();
 		            Log.i(LOG_TAG,"stopWatching finished:" + mDescriptor);
 		            
 		    		mThreadHandler = null;
@@ -339,6 +1908,172 @@ public abstract class FileObserver {
 		}
     }
 
+    /**
+     * Watch subdirectories only down to {@code maxDepth} levels below the
+     * path: 1 for its direct subdirectories, 0 for the path alone.  Only
+     * matters when subdirectories are watched.  Call before
+     * {@link #startWatching()}.
+     *
+     * @param maxDepth the levels, or a negative number for no limit
+     */
+    public void setMaxDepth(int maxDepth) {
+        mMaxDepth = maxDepth < 0 ? Integer.MAX_VALUE : maxDepth;
+    }
+
+    /**
+     * How far the watches of the last {@link #startWatching()} reach, and a
+     * future completing once the whole tree is registered.
+     *
+     * @return the coverage, or null if watching never started
+     */
+    public WatchCoverage getCoverage() {
+        return mCoverage;
+    }
+
+    /**
+     * Keep the parts of the tree matching {@code filter} unwatched and
+     * unreported.  Call before {@link #startWatching()}.
+     *
+     * @param filter the rules, or null to watch everything
+     */
+    public void setPathFilter(PathFilter filter) {
+        mFilter = filter;
+    }
+
+    /** The rules given to {@link #setPathFilter(PathFilter)}, or null */
+    public PathFilter getPathFilter() {
+        return mFilter;
+    }
+
+    /**
+     * See every event before it is dispatched, for logging or tracing.
+     *
+     * @param tracer the tracer, or null for none
+     * @see LogTracer
+     */
+    public void setEventTracer(EventTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Deliver events on {@code executor} instead of the observer thread, so
+     * a slow {@link #onEvent(FileEvent)} no longer holds up reading the
+     * kernel queue.  Events are copied into a ring of {@code capacity}
+     * preallocated slots; they still reach this observer one at a time and
+     * in order.  Call before {@link #startWatching()}.
+     *
+     * @param executor runs the delivery, or null to deliver on the observer thread
+     * @param capacity how many events may be pending
+     * @param policy what happens when the ring is full: {@link #DISPATCH_BLOCK},
+     *     {@link #DISPATCH_DROP_OLDEST} or {@link #DISPATCH_COALESCE}
+     */
+    public void setAsyncDispatch(Executor executor, int capacity, int policy) {
+        mDispatcher = executor == null ? null : new AsyncDispatcher(this, executor, capacity, policy);
+    }
+
+    /** @return false if the watches are going, the crawl must not start */
+    boolean addSubtreeCrawl(ProgressiveCrawler crawler) {
+        synchronized (mSubtreeCrawls) {
+            if (mSubtreeCrawlsClosed) {
+                return false;
+            }
+            mSubtreeCrawls.add(crawler);
+            return true;
+        }
+    }
+
+    void removeSubtreeCrawl(ProgressiveCrawler crawler) {
+        synchronized (mSubtreeCrawls) {
+            mSubtreeCrawls.remove(crawler);
+        }
+    }
+
+    /** Let subtree crawls start, or stop them and wait for the running ones */
+    void setSubtreeCrawlsOpen(boolean open) {
+        ProgressiveCrawler[] running;
+        synchronized (mSubtreeCrawls) {
+            mSubtreeCrawlsClosed = !open;
+            if (open) {
+                return;
+            }
+            running = mSubtreeCrawls.toArray(new ProgressiveCrawler[mSubtreeCrawls.size()]);
+            mSubtreeCrawls.clear();
+        }
+        for (int i = 0; i < running.length; i++) {
+            running[i].cancel(true);
+        }
+    }
+
+    /** Hand one event to the tracer and to {@link #onEvent(FileEvent)} */
+    void deliver(FileEvent event) {
+        EventTracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.onEvent(this, event);
+        }
+        if ((++mDelivered & (FileObserverMetrics.LISTENER_SAMPLE_INTERVAL - 1)) == 0) {
+            long start = System.nanoTime();
+            onEvent(event);
+            FileObserverMetrics.LISTENER_MICROS.record((System.nanoTime() - start) / 1000);
+        } else {
+            onEvent(event);
+        }
+    }
+
+    /**
+     * Called on the FileObserver handler thread once the watches are in
+     * place, before {@link #startWatching()} is done.
+     *
+     * @param path the watched file or directory
+     * @param watchSubDir whether subdirectories are watched too
+     */
+    void onWatchingStarted(String path, boolean watchSubDir) {
+    }
+
+    /** Called on the FileObserver handler thread once the watches are gone */
+    void onWatchingStopped() {
+    }
+
+    /**
+     * Called after a run of events delivered back to back, once the
+     * deliverer has no more at hand: at the end of every read of the kernel
+     * queue, every poll and every drain of the dispatch ring.  On the same
+     * thread as {@link #onEvent(FileEvent)} and never concurrently with it.
+     */
+    void onEventsDelivered() {
+    }
+
+    /**
+     * Called on the observer thread, or the dispatch executor, about once a
+     * second while watching, for state which must expire even when no
+     * events come.  Never concurrently with {@link #onEvent(FileEvent)}.
+     *
+     * @param nowMillis a monotonic clock in milliseconds
+     */
+    void onHousekeeping(long nowMillis) {
+    }
+
+    /**
+     * Called on the observer thread for every event, or on the executor
+     * given to {@link #setAsyncDispatch(Executor, int, int)}.  The default
+     * implementation builds the path and forwards to
+     * {@link #onEvent(int, int, String)}.  Subclasses which can decide from
+     * {@link FileEvent#getMask()} alone should override this to skip building
+     * the path String for the events they are not interested in.
+     *
+     * <p>After the kernel queue overflowed, a {@link #Q_OVERFLOW} event
+     * arrives for each watched directory which may have lost events, the
+     * root always first, once the watches there have caught up.  They come
+     * in order with the other events, on the same thread.  The entries of
+     * such a directory should be rescanned, its subdirectories only if they
+     * are new; those which changed get a {@link #Q_OVERFLOW} of their
+     * own.</p>
+     *
+     * @param event The event, only valid for the duration of the call
+     */
+    public void onEvent(FileEvent event) {
+        onEvent(event.getMask(), event.getCookie(), event.path());
+    }
+
     /**
      * The event handler, which must be implemented by subclasses.
      *
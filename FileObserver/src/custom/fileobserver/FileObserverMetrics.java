@@ -0,0 +1,384 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runtime statistics of the watch engine shared by every {@link FileObserver}
+ * in the process.  Take a {@link Snapshot} whenever needed, or have one
+ * delivered periodically with {@link #setSnapshotListener(SnapshotListener, long)}.
+ *
+ * <p>The observer threads count events into plain per-thread arrays and
+ * publish them once per native read, into counters striped over cache lines.
+ * Callback latencies are timed for one event in
+ * {@value #LISTENER_SAMPLE_INTERVAL}, whole batches are timed always.  Counts
+ * and distributions are totals since the process started.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class FileObserverMetrics {
+    private static final String LOG_TAG = "FileObserverMetrics";
+
+    /** One event in this many has its listener call timed */
+    public static final int LISTENER_SAMPLE_INTERVAL = 64;
+
+    // recorded by the engine
+    static final StripedCounter[] EVENTS = new StripedCounter[32];
+    static final StripedCounter OVERFLOWS = new StripedCounter();
+    static final StripedCounter RENAMES_EXPIRED = new StripedCounter();
+    static final StripedCounter RENAMES_EVICTED = new StripedCounter();
+    /** Events which found the ring of an asynchronous observer full, see {@link FileObserver#setAsyncDispatch} */
+    static final StripedCounter DISPATCH_BLOCKED = new StripedCounter();
+    static final StripedCounter DISPATCH_DROPPED = new StripedCounter();
+    static final StripedCounter DISPATCH_COALESCED = new StripedCounter();
+    /** Directories polled because the watch budget had no room, see {@link FileObserver#setWatchBudget} */
+    static final StripedCounter WATCHES_REFUSED = new StripedCounter();
+    static final StripedCounter PROMOTIONS = new StripedCounter();
+    static final StripedCounter DEMOTIONS = new StripedCounter();
+    /** Modifications checked against their content, see {@link FileWatcher#setContentVerification} */
+    static final StripedCounter MODIFICATIONS_VERIFIED = new StripedCounter();
+    static final StripedCounter MODIFICATIONS_SUPPRESSED = new StripedCounter();
+    static final StripedCounter BYTES_VERIFIED = new StripedCounter();
+    /** Records per native read */
+    static final Log2Histogram READ_BATCH = new Log2Histogram();
+    /** Microseconds to dispatch the records of one read */
+    static final Log2Histogram UPCALL_MICROS = new Log2Histogram();
+    /** Microseconds spent in one FileObserver.onEvent, sampled */
+    static final Log2Histogram LISTENER_MICROS = new Log2Histogram();
+    /** Milliseconds to register the watches of a tree */
+    static final Log2Histogram CRAWL_MILLIS = new Log2Histogram();
+
+    static {
+        for (int i = 0; i < EVENTS.length; i++) {
+            EVENTS[i] = new StripedCounter();
+        }
+    }
+
+    /** Receives periodic snapshots */
+    public interface SnapshotListener {
+        /** Called on the metrics thread */
+        public void onSnapshot(Snapshot snapshot);
+    }
+
+    /** A distribution of values in power of two buckets */
+    public static final class Distribution {
+        private final long[] mBuckets;
+        private final long mCount;
+
+        Distribution(Log2Histogram histogram) {
+            mBuckets = histogram.buckets();
+            long count = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                count += mBuckets[i];
+            }
+            mCount = count;
+        }
+
+        /** Number of values recorded */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * An upper bound, within a factor of two, of the value below which
+         * {@code fraction} of the recorded values fall; 0 if none were
+         * recorded.
+         *
+         * @param fraction between 0 and 1, 0.99 for the 99th percentile
+         */
+        public long getPercentile(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+            long seen = 0;
+            for (int b = 0; b < mBuckets.length; b++) {
+                seen += mBuckets[b];
+                if (seen >= rank) {
+                    return Log2Histogram.upperBound(b);
+                }
+            }
+            return Log2Histogram.upperBound(mBuckets.length - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " p50=" + getPercentile(0.5) + " p90=" + getPercentile(0.9)
+                    + " p99=" + getPercentile(0.99);
+        }
+    }
+
+    /** The state of the engine at one point in time */
+    public static final class Snapshot {
+        private final long mTimeMillis;
+        private final long[] mEvents = new long[32];
+        private final long[] mEventsPerSecond = new long[32];
+        private final Map<String, Integer> mWatchesPerObserver;
+        private final int mWatches;
+        private final int mWatchLimit;
+        private final int mWatchBudget;
+        private final int mPolled;
+        private final long mWatchesRefused;
+        private final long mPromotions;
+        private final long mDemotions;
+        private final long mOverflows;
+        private final long mRenamesExpired;
+        private final long mRenamesEvicted;
+        private final long mDispatchBlocked;
+        private final long mDispatchDropped;
+        private final long mDispatchCoalesced;
+        private final long mModificationsVerified;
+        private final long mModificationsSuppressed;
+        private final long mBytesVerified;
+        private final Distribution mReadBatch;
+        private final Distribution mUpcallMicros;
+        private final Distribution mListenerMicros;
+        private final Distribution mCrawlMillis;
+
+        Snapshot(Snapshot previous) {
+            mTimeMillis = System.currentTimeMillis();
+            long elapsed = previous == null ? 0 : mTimeMillis - previous.mTimeMillis;
+            for (int i = 0; i < mEvents.length; i++) {
+                mEvents[i] = EVENTS[i].sum();
+                if (elapsed > 0) {
+                    mEventsPerSecond[i] = (mEvents[i] - previous.mEvents[i]) * 1000 / elapsed;
+                }
+            }
+            HashMap<String, Integer> watches = new HashMap<String, Integer>();
+            mWatches = FileObserver.collectWatches(watches);
+            mWatchesPerObserver = Collections.unmodifiableMap(watches);
+            mWatchLimit = WatchBudget.kernelLimit();
+            mWatchBudget = WatchBudget.budget();
+            mPolled = FileObserver.countPolled();
+            mWatchesRefused = WATCHES_REFUSED.sum();
+            mPromotions = PROMOTIONS.sum();
+            mDemotions = DEMOTIONS.sum();
+            mOverflows = OVERFLOWS.sum();
+            mRenamesExpired = RENAMES_EXPIRED.sum();
+            mRenamesEvicted = RENAMES_EVICTED.sum();
+            mDispatchBlocked = DISPATCH_BLOCKED.sum();
+            mDispatchDropped = DISPATCH_DROPPED.sum();
+            mDispatchCoalesced = DISPATCH_COALESCED.sum();
+            mModificationsVerified = MODIFICATIONS_VERIFIED.sum();
+            mModificationsSuppressed = MODIFICATIONS_SUPPRESSED.sum();
+            mBytesVerified = BYTES_VERIFIED.sum();
+            mReadBatch = new Distribution(READ_BATCH);
+            mUpcallMicros = new Distribution(UPCALL_MICROS);
+            mListenerMicros = new Distribution(LISTENER_MICROS);
+            mCrawlMillis = new Distribution(CRAWL_MILLIS);
+        }
+
+        /** When the snapshot was taken, in {@link System#currentTimeMillis()} time */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /** Events read with {@code event} set, one of the event type constants of {@link FileObserver} */
+        public long getEventCount(int event) {
+            return mEvents[Integer.numberOfTrailingZeros(event)];
+        }
+
+        /** Events per second with {@code event} set since the previous snapshot, 0 for the first */
+        public long getEventsPerSecond(int event) {
+            return mEventsPerSecond[Integer.numberOfTrailingZeros(event)];
+        }
+
+        /** Kernel watches registered by all observers */
+        public int getWatchCount() {
+            return mWatches;
+        }
+
+        /** Watches of each watching observer, by its path */
+        public Map<String, Integer> getWatchesPerObserver() {
+            return mWatchesPerObserver;
+        }
+
+        /** max_user_watches, the kernel limit of watches per user */
+        public int getWatchLimit() {
+            return mWatchLimit;
+        }
+
+        /** The most watches the observers may hold right now */
+        public int getWatchBudget() {
+            return mWatchBudget;
+        }
+
+        /** Directories currently polled instead of watched */
+        public int getPolledCount() {
+            return mPolled;
+        }
+
+        /** Directories which found no room in the watch budget and were polled */
+        public long getRefusedWatchCount() {
+            return mWatchesRefused;
+        }
+
+        /** Polled directories which got a watch because they kept changing */
+        public long getPromotionCount() {
+            return mPromotions;
+        }
+
+        /** Idle watched directories which were moved over to polling */
+        public long getDemotionCount() {
+            return mDemotions;
+        }
+
+        /** How often a kernel event queue overflowed */
+        public long getOverflowCount() {
+            return mOverflows;
+        }
+
+        /** MOVED_FROM halves whose MOVED_TO never came, reported as deletions */
+        public long getExpiredRenameCount() {
+            return mRenamesExpired;
+        }
+
+        /** MOVED_FROM halves reported as deletions early because too many were pending */
+        public long getEvictedRenameCount() {
+            return mRenamesEvicted;
+        }
+
+        /** Times the reader thread had to wait for a full dispatch ring */
+        public long getDispatchBlockedCount() {
+            return mDispatchBlocked;
+        }
+
+        /** Events discarded from full dispatch rings under {@link FileObserver#DISPATCH_DROP_OLDEST} */
+        public long getDispatchDroppedCount() {
+            return mDispatchDropped;
+        }
+
+        /** Events merged into identical pending ones under {@link FileObserver#DISPATCH_COALESCE} */
+        public long getDispatchCoalescedCount() {
+            return mDispatchCoalesced;
+        }
+
+        /** Modifications whose content was compared with the previous one */
+        public long getVerifiedModificationCount() {
+            return mModificationsVerified;
+        }
+
+        /** Verified modifications which left the content as it was and were not reported */
+        public long getSuppressedModificationCount() {
+            return mModificationsSuppressed;
+        }
+
+        /** Bytes read to verify modifications */
+        public long getVerifiedBytes() {
+            return mBytesVerified;
+        }
+
+        /** Events per native read */
+        public Distribution getReadBatchSizes() {
+            return mReadBatch;
+        }
+
+        /** Microseconds from the start to the end of dispatching one read */
+        public Distribution getUpcallMicros() {
+            return mUpcallMicros;
+        }
+
+        /** Microseconds spent in {@link FileObserver#onEvent(FileEvent)}, sampled */
+        public Distribution getListenerMicros() {
+            return mListenerMicros;
+        }
+
+        /** Milliseconds to register the watches of a tree in {@link FileObserver#startWatching()} */
+        public Distribution getCrawlMillis() {
+            return mCrawlMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("FileObserverMetrics{watches=").append(mWatches)
+                    .append('/').append(mWatchBudget).append(" (limit ").append(mWatchLimit)
+                    .append("), polled=").append(mPolled)
+                    .append(", refused=").append(mWatchesRefused)
+                    .append(", promotions=").append(mPromotions)
+                    .append(", demotions=").append(mDemotions);
+            for (int i = 0; i < mEvents.length; i++) {
+                if (mEvents[i] != 0) {
+                    sb.append(", ").append(LogTracer.describe(1 << i)).append('=').append(mEvents[i])
+                            .append(" (").append(mEventsPerSecond[i]).append("/s)");
+                }
+            }
+            return sb.append(", overflows=").append(mOverflows)
+                    .append(", renamesExpired=").append(mRenamesExpired)
+                    .append(", renamesEvicted=").append(mRenamesEvicted)
+                    .append(", dispatchBlocked=").append(mDispatchBlocked)
+                    .append(", dispatchDropped=").append(mDispatchDropped)
+                    .append(", dispatchCoalesced=").append(mDispatchCoalesced)
+                    .append(", verified=").append(mModificationsVerified)
+                    .append(", suppressed=").append(mModificationsSuppressed)
+                    .append(", verifiedBytes=").append(mBytesVerified)
+                    .append(", readBatch[").append(mReadBatch)
+                    .append("], upcallMicros[").append(mUpcallMicros)
+                    .append("], listenerMicros[").append(mListenerMicros)
+                    .append("], crawlMillis[").append(mCrawlMillis).append("]}").toString();
+        }
+    }
+
+    private static final Object sLock = new Object();
+    /** guarded by sLock */
+    private static Snapshot sLast;
+    /** guarded by sLock */
+    private static Thread sReporter;
+
+    private FileObserverMetrics() {
+    }
+
+    /** The current statistics, with rates relative to the previous snapshot */
+    public static Snapshot snapshot() {
+        synchronized (sLock) {
+            sLast = new Snapshot(sLast);
+            return sLast;
+        }
+    }
+
+    /**
+     * Deliver a snapshot every {@code periodMillis} on a daemon thread.
+     *
+     * @param listener the receiver, or null to stop the deliveries
+     */
+    public static void setSnapshotListener(final SnapshotListener listener, final long periodMillis) {
+        synchronized (sLock) {
+            if (sReporter != null) {
+                sReporter.interrupt();
+                sReporter = null;
+            }
+            if (listener == null) {
+                return;
+            }
+            sReporter = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(Math.max(1, periodMillis));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        Snapshot snapshot;
+                        synchronized (sLock) {
+                            if (sReporter != Thread.currentThread()) {
+                                return;
+                            }
+                            snapshot = snapshot();
+                        }
+                        try {
+                            listener.onSnapshot(snapshot);
+                        } catch (Throwable throwable) {
+                            Log.wtf(LOG_TAG, "Unhandled exception in SnapshotListener " + listener,
+                                    throwable);
+                        }
+                    }
+                }
+            }, LOG_TAG);
+            sReporter.setDaemon(true);
+            sReporter.start();
+        }
+    }
+}
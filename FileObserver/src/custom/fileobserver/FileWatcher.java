@@ -1,7 +1,8 @@
 
 package custom.fileobserver;
 
-import java.util.Hashtable;
+import java.io.File;
+import java.util.ArrayList;
 
 import android.util.Log;
 /**
@@ -11,8 +12,72 @@ import android.util.Log;
  * FileWatcher support subdirectory(recursively)
  */
 public class FileWatcher extends FileObserver {
+	private static final int ACTION_NONE = 0;
+	private static final int ACTION_MODIFIED = 1;
+	private static final int ACTION_CREATED = 2;
+	private static final int ACTION_DELETED = 3;
+	private static final int ACTION_MOVED_FROM = 4;
+	private static final int ACTION_MOVED_TO = 5;
+
+	/** What each event bit means to the listener, indexed by bit number */
+	private static final byte[] ACTIONS = new byte[32];
+	/** Events which reach the {@link FileListener} or the rename bookkeeping */
+	private static final int LISTENER_EVENTS;
+
+	static {
+		action(ATTRIB, ACTION_MODIFIED);
+		action(CLOSE_WRITE, ACTION_MODIFIED);
+		action(MODIFY, ACTION_MODIFIED);
+		action(CREATE, ACTION_CREATED);
+		action(DELETE, ACTION_DELETED);
+		action(DELETE_SELF, ACTION_DELETED);
+		action(MOVED_FROM, ACTION_MOVED_FROM);
+		action(MOVED_TO, ACTION_MOVED_TO);
+
+		int events = 0;
+		for (int bit = 0; bit < ACTIONS.length; bit++) {
+			if (ACTIONS[bit] != ACTION_NONE) {
+				events |= 1 << bit;
+			}
+		}
+		LISTENER_EVENTS = events;
+	}
+
+	private static void action(int event, int action) {
+		ACTIONS[Integer.numberOfTrailingZeros(event)] = (byte) action;
+	}
+
+	/** Renames waiting for their MOVED_TO; more are reported as moved out early */
+	private static final int MAX_PENDING_RENAMES = 256;
+	/**
+	 * Both halves of a rename are queued back to back, so a MOVED_FROM still
+	 * unmatched after this long was a move out of the watched tree.
+	 */
+	private static final long RENAME_PAIR_MILLIS = 50;
+
+	/** Default bound on the paths held back while coalescing */
+	public static final int DEFAULT_MAX_PENDING = 4096;
+	/** Default bound on the files whose digest is kept for content verification */
+	public static final int DEFAULT_MAX_VERIFIED_FILES = 4096;
+	/** Events per {@link FileEventBatch} at most */
+	private static final int BATCH_SIZE = 256;
+	private static final FileBatchListener[] NO_BATCH_LISTENERS = new FileBatchListener[0];
+	private static final byte[] NO_NAME = new byte[0];
+
 	FileListener mFileListener;
-	Hashtable<Integer, String> mRenameCookies = new Hashtable<Integer, String>();
+	private volatile EventCoalescer mCoalescer;
+	private volatile ContentVerifier mVerifier;
+	private volatile boolean mOverflowRecovery;
+	private volatile File mIndexFile;
+	private volatile TreeSnapshot mSnapshot;
+	/** Copied on write under this */
+	private volatile FileBatchListener[] mBatchListeners = NO_BATCH_LISTENERS;
+	/** Created with the first batch listener, then owned by event delivery */
+	private volatile FileEventBatch mBatch;
+	/** The directories a {@link #Q_OVERFLOW} named during the current run, owned by event delivery */
+	private final ArrayList<String> mOverflowed = new ArrayList<String>();
+	/** Only touched by event delivery and housekeeping, which never overlap */
+	private final RenameCorrelator mRenames = new RenameCorrelator(MAX_PENDING_RENAMES, RENAME_PAIR_MILLIS);
 	public FileWatcher(String path) {
 		this(path, ALL_EVENTS);
 	}
@@ -27,133 +92,346 @@ public class FileWatcher extends FileObserver {
 
 	public void setFileListener(FileListener fl){
 		mFileListener = fl;
+		ContentVerifier verifier = mVerifier;
+		if (verifier != null) {
+			verifier.setDownstream(fl);
+		}
+		EventCoalescer coalescer = mCoalescer;
+		if (coalescer != null) {
+			coalescer.setDownstream(afterCoalescing());
+		}
+		relink();
 	}
-	
-	@Override
-	public void onEvent(int event,int cookie,String path) {
-		switch (event) {
-		case ACCESS:
-			Log.i("FileWatcher", "ACCESS: " + path);
-			break;
-		case ATTRIB:
-			Log.i("FileWatcher", "ATTRIB: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileModified(path);
-			}
-			break;
-		case CLOSE_NOWRITE:
-			Log.i("FileWatcher", "CLOSE_NOWRITE: " + path);
-			break;
-		case CLOSE_WRITE:
-			Log.i("FileWatcher", "CLOSE_WRITE: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileModified(path);
-			}
-			break;
-		case CREATE:
-			Log.i("FileWatcher", "CREATE: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileCreated(path);
-			}
-			break;
-		case DELETE:
-			Log.i("FileWatcher", "DELETE: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileDeleted(path);
+
+	/**
+	 * Also hand the events to {@code listener}, in runs: the events of one
+	 * read of the kernel queue, one poll or one drain of the dispatch ring,
+	 * up to a few hundred at a time, in columns without a String per event.
+	 * Batch listeners get every event this watcher's mask selects, raw, on
+	 * the thread which delivers the events, right after the
+	 * {@link FileListener} saw the same events one by one.  Renames come as
+	 * their two halves, to be paired by cookie.  After events were lost a
+	 * batch listener gets a {@link #Q_OVERFLOW} for each directory which
+	 * lost them, and should rescan its entries; the differences overflow
+	 * recovery finds go to the FileListener only.
+	 */
+	public synchronized void addBatchListener(FileBatchListener listener) {
+		if (mBatch == null) {
+			mBatch = new FileEventBatch(BATCH_SIZE);
+		}
+		FileBatchListener[] listeners = new FileBatchListener[mBatchListeners.length + 1];
+		System.arraycopy(mBatchListeners, 0, listeners, 0, mBatchListeners.length);
+		listeners[mBatchListeners.length] = listener;
+		mBatchListeners = listeners;
+	}
+
+	public synchronized void removeBatchListener(FileBatchListener listener) {
+		FileBatchListener[] listeners = mBatchListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				FileBatchListener[] remaining = new FileBatchListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, remaining, 0, i);
+				System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+				mBatchListeners = remaining;
+				return;
 			}
-			break;
-		case DELETE_SELF:
-			Log.i("FileWatcher", "DELETE_SELF: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileDeleted(path);
+		}
+	}
+
+	/**
+	 * Hold back listener notifications until a path has seen no events for
+	 * {@code quietMillis}, and merge what happened in between: repeated
+	 * modifications are reported once, a creation followed by modifications
+	 * is reported as one creation, and a creation followed by a deletion is
+	 * not reported at all.  Notifications are then delivered on a timer
+	 * thread instead of the observer thread.
+	 *
+	 * @param quietMillis the quiet window, 0 to report every event as it comes
+	 * @param maxPending how many paths may be held back at once; when more
+	 *     are pending the oldest is reported early
+	 */
+	public synchronized void setCoalescing(long quietMillis, int maxPending) {
+		EventCoalescer old = mCoalescer;
+		mCoalescer = quietMillis > 0 ? new EventCoalescer(afterCoalescing(), quietMillis, maxPending) : null;
+		relink();
+		if (old != null) {
+			old.flush();
+		}
+	}
+
+	/** Same as {@link #setCoalescing(long, int)} with {@link #DEFAULT_MAX_PENDING} */
+	public void setCoalescing(long quietMillis) {
+		setCoalescing(quietMillis, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Report a modification only if it changed the content of the file.
+	 * Many writers rewrite a file with the same bytes, or just touch it;
+	 * with verification on, a modification is checked once the file has
+	 * been quiet for a moment, normally right after its writer closed it, by
+	 * hashing the file on a background thread and comparing the digest with
+	 * the one from the previous check.  A file whose size changed is
+	 * reported without waiting for the hash, and a file which was appended
+	 * to only has the new tail hashed.  The first modification of a file
+	 * since verification started is always reported, as is anything which
+	 * can not be read.  Notifications then come from the verifier threads as
+	 * well as the observer thread.  Applies after coalescing, see
+	 * {@link #setCoalescing(long, int)}.
+	 *
+	 * @param enabled whether to verify modifications
+	 * @param maxCachedFiles how many files to keep a digest for, the least
+	 *     recently checked ones are forgotten first
+	 */
+	public synchronized void setContentVerification(boolean enabled, int maxCachedFiles) {
+		ContentVerifier old = mVerifier;
+		mVerifier = enabled ? new ContentVerifier(mFileListener, maxCachedFiles) : null;
+		EventCoalescer coalescer = mCoalescer;
+		if (coalescer != null) {
+			coalescer.setDownstream(afterCoalescing());
+		}
+		relink();
+		if (old != null) {
+			old.flush();
+		}
+	}
+
+	/** Same as {@link #setContentVerification(boolean, int)} with {@link #DEFAULT_MAX_VERIFIED_FILES} */
+	public void setContentVerification(boolean enabled) {
+		setContentVerification(enabled, DEFAULT_MAX_VERIFIED_FILES);
+	}
+
+	/**
+	 * Recover from inotify queue overflows.  The watcher keeps a snapshot of
+	 * the names, inodes, sizes and mtimes in the watched tree, taken when
+	 * watching starts and kept up to date from the events.  When the kernel
+	 * reports that events were lost, the tree is rescanned in parallel and
+	 * diffed against the snapshot, and the differences reach the
+	 * {@link FileListener} as ordinary notifications.  Takes effect on the
+	 * next {@link #startWatching()}.
+	 */
+	public void setOverflowRecovery(boolean enabled) {
+		mOverflowRecovery = enabled;
+	}
+
+	/**
+	 * Keep the snapshot used for overflow recovery in {@code indexFile} as
+	 * well, so that the next {@link #startWatching()}, even in another
+	 * process, first reports what changed in the tree while nobody was
+	 * watching, and only then passes on live events.  Changes are appended
+	 * to a journal next to it, {@code indexFile} with ".log" added, a few
+	 * seconds after they happen and when watching stops; the file itself is
+	 * only rewritten once the journal outgrows it.  Implies
+	 * {@link #setOverflowRecovery(boolean)}.  Takes effect on the next
+	 * {@link #startWatching()}.
+	 *
+	 * @param indexFile the index, created if missing; null to keep none
+	 */
+	public void setPersistentIndex(File indexFile) {
+		mIndexFile = indexFile;
+	}
+
+	/** Write the persistent index now if it has unsaved changes */
+	public void flushIndex() {
+		TreeSnapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.save();
+		}
+	}
+
+	/** Where listener notifications go, through the snapshot, the coalescer and the verifier if there are */
+	private FileListener target() {
+		TreeSnapshot snapshot = mSnapshot;
+		return snapshot != null ? snapshot : downstream();
+	}
+
+	/** Where notifications go after the snapshot */
+	private FileListener downstream() {
+		EventCoalescer coalescer = mCoalescer;
+		return coalescer != null ? coalescer : afterCoalescing();
+	}
+
+	/** Where notifications go after the coalescer */
+	private FileListener afterCoalescing() {
+		ContentVerifier verifier = mVerifier;
+		return verifier != null ? verifier : mFileListener;
+	}
+
+	private synchronized void relink() {
+		TreeSnapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.setDownstream(downstream());
+		}
+	}
+
+	@Override
+	void onWatchingStarted(String path, boolean watchSubDir) {
+		File indexFile = mIndexFile;
+		if (mOverflowRecovery || indexFile != null) {
+			TreeSnapshot snapshot = new TreeSnapshot(path, watchSubDir, getPathFilter(),
+					downstream(), indexFile);
+			// events from now on already update it while it is taken
+			mSnapshot = snapshot;
+			relink();
+			snapshot.start();
+		}
+	}
+
+	@Override
+	void onEventsDelivered() {
+		if (!mOverflowed.isEmpty()) {
+			recoverLost();
+		}
+		flushBatch();
+	}
+
+	/**
+	 * Rescan the directories which lost events, all at once at the end of
+	 * the run, and tell the batch listeners after the events of the run.
+	 */
+	private void recoverLost() {
+		String[] directories = mOverflowed.toArray(new String[mOverflowed.size()]);
+		mOverflowed.clear();
+		TreeSnapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.recover(directories);
+		} else {
+			Log.w("FileWatcher", "events lost in " + directories.length + " directories below " + mPath);
+		}
+		FileEventBatch batch = mBatch;
+		if (batch == null || mBatchListeners.length == 0) {
+			return;
+		}
+		for (int i = 0; i < directories.length; i++) {
+			if (batch.add(Q_OVERFLOW, 0, directories[i], NO_NAME, 0, 0)) {
+				dispatchBatch(batch);
 			}
-			break;
-		case MODIFY:
-			Log.i("FileWatcher", "MODIFY: " + path);
-			if(null != mFileListener){
-				mFileListener.onFileModified(path);
+		}
+	}
+
+	/** Hand the pending batch, if any, to the batch listeners */
+	private void flushBatch() {
+		FileEventBatch batch = mBatch;
+		if (batch == null) {
+			return;
+		}
+		if (batch.size() > 0) {
+			dispatchBatch(batch);
+		}
+	}
+
+	private void dispatchBatch(FileEventBatch batch) {
+		try {
+			FileBatchListener[] listeners = mBatchListeners;
+			for (int i = 0; i < listeners.length; i++) {
+				listeners[i].onEvents(batch);
 			}
-			break;
-		case MOVE_SELF:
-			Log.i("FileWatcher", "MOVE_SELF: " + path);
-			break;
-		case MOVED_FROM:
-			Log.i("FileWatcher", "MOVED_FROM: " + path);
-			mRenameCookies.put(cookie, path);
-			break;
-		case MOVED_TO:
-			Log.i("FileWatcher", "MOVED_TO: " + path);
-			if(null != mFileListener){
-				String oldName = mRenameCookies.remove(cookie);
-				mFileListener.onFileRenamed(oldName, path);
+		} finally {
+			batch.clear();
+		}
+	}
+
+	@Override
+	void onHousekeeping(long nowMillis) {
+		String path;
+		while ((path = mRenames.expire(nowMillis)) != null) {
+			FileObserverMetrics.RENAMES_EXPIRED.increment();
+			FileListener target = target();
+			if (target != null) {
+				target.onFileDeleted(path);
 			}
+		}
+	}
+
+	/** The first half of a rename, reported once the second half comes or as a deletion */
+	private void movedFrom(int cookie, String path) {
+		String evicted = mRenames.put(cookie, path, System.nanoTime() / 1000000);
+		if (evicted == null) {
+			return;
+		}
+		FileObserverMetrics.RENAMES_EVICTED.increment();
+		FileListener target = target();
+		if (target != null) {
+			target.onFileDeleted(evicted);
+		}
+	}
+
+	/** The second half of a rename, a creation if it was moved in from outside */
+	private void movedTo(int cookie, String path) {
+		String oldName = mRenames.take(cookie);
+		FileListener target = target();
+		if (target == null) {
+			return;
+		}
+		if (oldName != null) {
+			target.onFileRenamed(oldName, path);
+		} else {
+			target.onFileCreated(path);
+		}
+	}
+
+	@Override
+	void onWatchingStopped() {
+		TreeSnapshot snapshot = mSnapshot;
+		mSnapshot = null;
+		if (snapshot != null) {
+			snapshot.save();
+		}
+	}
+	
+	@Override
+	public void onEvent(FileEvent event) {
+		if ((event.getMask() & Q_OVERFLOW) != 0) {
+			// the watches there have caught up, rescanned once the run is over
+			mOverflowed.add(event.path());
+			return;
+		}
+		// only build the path for events somebody will look at
+		if ((event.getMask() & LISTENER_EVENTS) != 0 && target() != null) {
+			onEvent(event.getMask(), event.getCookie(), event.path());
+		}
+		if (mBatchListeners.length > 0 && (event.getMask() & mMask & ALL_EVENTS) != 0
+				&& mBatch.add(event)) {
+			flushBatch();
+		}
+	}
+
+	/**
+	 * Decodes {@code event} bit by bit through {@link #ACTIONS}, so flags
+	 * such as {@link #ISDIR} never change the outcome, and passes each
+	 * meaningful bit on to the {@link FileListener}.
+	 */
+	@Override
+	public void onEvent(int event,int cookie,String path) {
+		int bits = event & LISTENER_EVENTS;
+		while (bits != 0) {
+			int bit = Integer.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			dispatch(ACTIONS[bit], cookie, path);
+		}
+	}
+
+	private void dispatch(int action, int cookie, String path) {
+		switch (action) {
+		case ACTION_MOVED_FROM:
+			movedFrom(cookie, path);
+			return;
+		case ACTION_MOVED_TO:
+			movedTo(cookie, path);
+			return;
+		}
+		FileListener target = target();
+		if (target == null) {
+			return;
+		}
+		switch (action) {
+		case ACTION_MODIFIED:
+			target.onFileModified(path);
 			break;
-		case OPEN:
-			Log.i("FileWatcher", "OPEN: " + path);
+		case ACTION_CREATED:
+			target.onFileCreated(path);
 			break;
-		default:
-			Log.i("FileWatcher", "DEFAULT(" + event + ") : " + path);
-			switch(event - ISDIR){
-			case ACCESS:
-				Log.i("FileWatcher", "ACCESS: " + path);
-				break;
-			case ATTRIB:
-				Log.i("FileWatcher", "ATTRIB: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileModified(path);
-				}
-				break;
-			case CLOSE_NOWRITE:
-				Log.i("FileWatcher", "CLOSE_NOWRITE: " + path);
-				break;
-			case CLOSE_WRITE:
-				Log.i("FileWatcher", "CLOSE_WRITE: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileModified(path);
-				}
-				break;
-			case CREATE:
-				Log.i("FileWatcher", "CREATE: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileCreated(path);
-				}
-				break;
-			case DELETE:
-				Log.i("FileWatcher", "DELETE: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileDeleted(path);
-				}
-				break;
-			case DELETE_SELF:
-				Log.i("FileWatcher", "DELETE_SELF: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileDeleted(path);
-				}
-				break;
-			case MODIFY:
-				Log.i("FileWatcher", "MODIFY: " + path);
-				if(null != mFileListener){
-					mFileListener.onFileModified(path);
-				}
-				break;
-			case MOVE_SELF:
-				Log.i("FileWatcher", "MOVE_SELF: " + path);
-				break;
-			case MOVED_FROM:
-				Log.i("FileWatcher", "MOVED_FROM: " + path);
-				mRenameCookies.put(cookie, path);
-				break;
-			case MOVED_TO:
-				Log.i("FileWatcher", "MOVED_TO: " + path);
-				if(null != mFileListener){
-					String oldName = mRenameCookies.remove(cookie);
-					mFileListener.onFileRenamed(oldName, path);
-				}
-				break;
-			case OPEN:
-				Log.i("FileWatcher", "OPEN: " + path);
-				break;
-			}
+		case ACTION_DELETED:
+			target.onFileDeleted(path);
 			break;
 		}
 	}
@@ -0,0 +1,63 @@
+package custom.fileobserver;
+
+/**
+ * The interfaces of java.util.concurrent.Flow, which Android only has from
+ * API level 30, with the same methods and the same rules (the Reactive
+ * Streams specification).  A subscriber written against them adapts to the
+ * JDK ones, or to org.reactivestreams, with one forwarding class.
+ *
+ * <p>{@link FileEventPublisher} publishes file events through them.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    /**
+     * A source of items for any number of subscribers, each of which gets
+     * no more items than it requested.
+     */
+    public interface Publisher<T> {
+        /**
+         * Add {@code subscriber}; it is handed its {@link Subscription}
+         * through {@link Subscriber#onSubscribe(Subscription)}, or an error.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items once it asked for them.  The methods of one subscriber
+     * are never called concurrently.
+     */
+    public interface Subscriber<T> {
+        /** The first call, before any other */
+        void onSubscribe(Subscription subscription);
+
+        /** The next item, never more than requested */
+        void onNext(T item);
+
+        /** The last call when the publisher failed */
+        void onError(Throwable throwable);
+
+        /** The last call when the publisher is done */
+        void onComplete();
+    }
+
+    /** The link between one publisher and one subscriber */
+    public interface Subscription {
+        /**
+         * Ask for up to {@code n} more items.  Demand adds up; n of 0 or
+         * less is an error reported through {@link Subscriber#onError(Throwable)}.
+         */
+        void request(long n);
+
+        /** Ask for nothing more; some items may still arrive */
+        void cancel();
+    }
+
+    /** Both a subscriber and a publisher, an operator between the two */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -0,0 +1,42 @@
+package custom.fileobserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in power of two buckets: bucket 0 holds 0, bucket b holds
+ * values from 2^(b-1) to 2^b - 1.  Recording is one striped increment, so
+ * the histogram is cheap enough for the observer threads; percentiles are
+ * accurate to a factor of two, which is what latency monitoring needs.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class Log2Histogram {
+    static final int BUCKETS = 64;
+
+    /** Per stripe a row of buckets, padded so rows do not share a line */
+    private static final int ROW = BUCKETS + StripedCounter.PAD;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(StripedCounter.STRIPES * ROW);
+
+    void record(long value) {
+        int bucket = value <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+        mCounts.incrementAndGet(StripedCounter.stripe() * ROW + Math.min(bucket, BUCKETS - 1));
+    }
+
+    /** The bucket counts summed over the stripes */
+    long[] buckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] += mCounts.get(stripe * ROW + b);
+            }
+        }
+        return buckets;
+    }
+
+    /** The largest value bucket {@code b} holds */
+    static long upperBound(int b) {
+        return b == 0 ? 0 : b >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+    }
+}
@@ -0,0 +1,90 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+/**
+ * An {@link EventTracer} which writes the events matching a mask to the
+ * Android log, as the decoded event names and the path.  Events outside the
+ * mask, typically the frequent {@link FileObserver#ACCESS} and
+ * {@link FileObserver#OPEN}, cost one bit test and are never formatted.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class LogTracer implements EventTracer {
+    private static final String[] NAMES = new String[32];
+
+    static {
+        name(FileObserver.ACCESS, "ACCESS");
+        name(FileObserver.MODIFY, "MODIFY");
+        name(FileObserver.ATTRIB, "ATTRIB");
+        name(FileObserver.CLOSE_WRITE, "CLOSE_WRITE");
+        name(FileObserver.CLOSE_NOWRITE, "CLOSE_NOWRITE");
+        name(FileObserver.OPEN, "OPEN");
+        name(FileObserver.MOVED_FROM, "MOVED_FROM");
+        name(FileObserver.MOVED_TO, "MOVED_TO");
+        name(FileObserver.CREATE, "CREATE");
+        name(FileObserver.DELETE, "DELETE");
+        name(FileObserver.DELETE_SELF, "DELETE_SELF");
+        name(FileObserver.MOVE_SELF, "MOVE_SELF");
+        name(FileObserver.UNMOUNT, "UNMOUNT");
+        name(FileObserver.Q_OVERFLOW, "Q_OVERFLOW");
+        name(FileObserver.IGNORED, "IGNORED");
+        name(FileObserver.ISDIR, "ISDIR");
+    }
+
+    private static void name(int event, String name) {
+        NAMES[Integer.numberOfTrailingZeros(event)] = name;
+    }
+
+    private final String mTag;
+    private final int mMask;
+
+    /** Log every event except {@link FileObserver#ACCESS} and {@link FileObserver#OPEN} */
+    public LogTracer(String tag) {
+        this(tag, ~(FileObserver.ACCESS | FileObserver.OPEN));
+    }
+
+    /** Log the events with a bit in {@code mask} */
+    public LogTracer(String tag, int mask) {
+        mTag = tag;
+        mMask = mask;
+    }
+
+    public void onEvent(FileObserver observer, FileEvent event) {
+        if ((event.getMask() & mMask) == 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(64);
+        appendMask(sb, event.getMask()).append(' ');
+        event.appendPath(sb);
+        if (event.getCookie() != 0) {
+            sb.append(" cookie=").append(event.getCookie());
+        }
+        Log.i(mTag, sb.toString());
+    }
+
+    /** The names of the event bits set in {@code mask}, joined by '|' */
+    public static String describe(int mask) {
+        return appendMask(new StringBuilder(), mask).toString();
+    }
+
+    private static StringBuilder appendMask(StringBuilder sb, int mask) {
+        int start = sb.length();
+        for (int bits = mask; bits != 0; bits &= bits - 1) {
+            int bit = Integer.numberOfTrailingZeros(bits);
+            if (sb.length() > start) {
+                sb.append('|');
+            }
+            if (NAMES[bit] != null) {
+                sb.append(NAMES[bit]);
+            } else {
+                sb.append("0x").append(Integer.toHexString(1 << bit));
+            }
+        }
+        if (sb.length() == start) {
+            sb.append('0');
+        }
+        return sb;
+    }
+}
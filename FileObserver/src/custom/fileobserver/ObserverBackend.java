@@ -0,0 +1,37 @@
+package custom.fileobserver;
+
+import java.util.Map;
+
+/**
+ * Where the events of the observers come from.  The inotify backend inside
+ * {@link FileObserver} is used whenever the native library loads;
+ * {@link PollingBackend} stands in when it does not.  Either way an observer
+ * sees the same events through {@link FileObserver#onEvent(FileEvent)}, one
+ * at a time.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+interface ObserverBackend {
+    /**
+     * Start reporting the changes below the path of {@code observer}.
+     * Called on the FileObserver handler thread.
+     *
+     * @return a descriptor of 0 or more, or a negative errno on failure
+     */
+    int startWatching(FileObserver observer);
+
+    /** Stop reporting to {@code observer}, on the FileObserver handler thread */
+    void stopWatching(FileObserver observer);
+
+    /**
+     * Count the kernel watches, and per watching observer by path the
+     * directories covered.
+     *
+     * @return the total number of kernel watches
+     */
+    int collectWatches(Map<String, Integer> perObserver);
+
+    /** Count the directories which are polled */
+    int countPolled();
+}
@@ -0,0 +1,242 @@
+package custom.fileobserver;
+
+import java.util.ArrayList;
+
+/**
+ * Include and exclude rules which keep parts of a tree away from a
+ * {@link FileObserver}.
+ *
+ * <p>A pattern without a '/' is matched against single names with the
+ * wildcards '*', '?' and '[...]': {@code exclude("*.tmp")} drops every event
+ * about a name ending in .tmp, and a directory so named is neither crawled nor
+ * watched, so nothing below it is reported either.  A trailing '/' limits the
+ * pattern to directories, as in {@code exclude(".thumbnails/")}.  Name rules
+ * are applied in the native layer, before an event is handed to Java at
+ * all.</p>
+ *
+ * <p>A pattern with a '/' inside is matched against directory paths relative
+ * to the watched root, where '*' stays within one name and '**' spans any
+ * number of them: {@code exclude("Android/data")} prunes that one subtree,
+ * <code>exclude("**&#47;cache")</code> every directory named cache at any
+ * depth.  A plain path works as a prefix, since everything below an
+ * excluded directory is excluded with it.</p>
+ *
+ * <p>Includes are name patterns for files: once there is one, only files
+ * matching some include are reported.  Directories are kept unless
+ * excluded.</p>
+ *
+ * <p>Hand it to {@link FileObserver#setPathFilter(PathFilter)} before
+ * {@link FileObserver#startWatching()}; later changes take effect the next
+ * time the observer starts.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class PathFilter {
+    private final ArrayList<String> mExcludes = new ArrayList<String>();
+    private final ArrayList<String> mDirectoryExcludes = new ArrayList<String>();
+    private final ArrayList<String> mPathExcludes = new ArrayList<String>();
+    private final ArrayList<String> mIncludes = new ArrayList<String>();
+
+    /**
+     * Leave out the names or directory paths matching {@code pattern}.
+     *
+     * @return this filter
+     */
+    public synchronized PathFilter exclude(String pattern) {
+        boolean directory = pattern.endsWith("/");
+        String trimmed = trim(pattern);
+        if (trimmed.length() == 0) {
+            throw new IllegalArgumentException("empty pattern: " + pattern);
+        }
+        if (trimmed.indexOf('/') >= 0) {
+            mPathExcludes.add(trimmed);
+        } else if (directory) {
+            mDirectoryExcludes.add(trimmed);
+        } else {
+            mExcludes.add(trimmed);
+        }
+        return this;
+    }
+
+    /**
+     * Report only the files whose name matches {@code pattern} or another
+     * include.
+     *
+     * @return this filter
+     */
+    public synchronized PathFilter include(String pattern) {
+        if (pattern.length() == 0 || pattern.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("includes are name patterns: " + pattern);
+        }
+        mIncludes.add(pattern);
+        return this;
+    }
+
+    synchronized boolean hasNameRules() {
+        return !mExcludes.isEmpty() || !mDirectoryExcludes.isEmpty() || !mIncludes.isEmpty();
+    }
+
+    synchronized boolean hasPathRules() {
+        return !mPathExcludes.isEmpty();
+    }
+
+    synchronized String[] excludes() {
+        return mExcludes.toArray(new String[mExcludes.size()]);
+    }
+
+    synchronized String[] directoryExcludes() {
+        return mDirectoryExcludes.toArray(new String[mDirectoryExcludes.size()]);
+    }
+
+    synchronized String[] includes() {
+        return mIncludes.toArray(new String[mIncludes.size()]);
+    }
+
+    /**
+     * Whether the entry {@code name} of the directory at {@code relativeParent}
+     * is left out, by the name rules and, for a directory, the path rules.
+     *
+     * @param relativeParent the directory path relative to the root, "" for the root
+     */
+    synchronized boolean excludes(String relativeParent, String name, boolean isDirectory) {
+        if (matchesAny(mExcludes, name)) {
+            return true;
+        }
+        if (!isDirectory) {
+            if (mIncludes.isEmpty()) {
+                return false;
+            }
+            return !matchesAny(mIncludes, name);
+        }
+        if (matchesAny(mDirectoryExcludes, name)) {
+            return true;
+        }
+        if (mPathExcludes.isEmpty()) {
+            return false;
+        }
+        String path = relativeParent.length() == 0 ? name : relativeParent + "/" + name;
+        return matchesAny(mPathExcludes, path);
+    }
+
+    /** Whether the directory at {@code relativePath} is pruned by a path rule */
+    synchronized boolean excludesDirectory(String relativePath) {
+        return matchesAny(mPathExcludes, relativePath);
+    }
+
+    /** The path of {@code path} below {@code root}, "" for the root itself */
+    static String relativePath(String root, String path) {
+        int start = root.endsWith("/") ? root.length() : root.length() + 1;
+        return path.length() <= start ? "" : path.substring(start);
+    }
+
+    private static String trim(String pattern) {
+        int start = 0;
+        int end = pattern.length();
+        while (start < end && pattern.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && pattern.charAt(end - 1) == '/') {
+            end--;
+        }
+        return pattern.substring(start, end);
+    }
+
+    private static boolean matchesAny(ArrayList<String> patterns, String text) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (matches(patterns.get(i), 0, text, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Glob match, '*' and '?' never match a '/', '**' matches anything */
+    static boolean matches(String pattern, int p, String text, int t) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                if (p + 1 < pattern.length() && pattern.charAt(p + 1) == '*') {
+                    p += 2;
+                    boolean slash = p < pattern.length() && pattern.charAt(p) == '/';
+                    if (slash) {
+                        // "**/" also matches no directory at all
+                        p++;
+                    }
+                    for (int i = t; i <= text.length(); i++) {
+                        if ((!slash || i == t || text.charAt(i - 1) == '/')
+                                && matches(pattern, p, text, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                p++;
+                for (int i = t; i <= text.length(); i++) {
+                    if (matches(pattern, p, text, i)) {
+                        return true;
+                    }
+                    if (i < text.length() && text.charAt(i) == '/') {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            if (t == text.length()) {
+                return false;
+            }
+            char actual = text.charAt(t);
+            if (c == '?') {
+                if (actual == '/') {
+                    return false;
+                }
+            } else if (c == '[' && classEnd(pattern, p) > 0) {
+                int end = classEnd(pattern, p);
+                if (!inClass(pattern, p + 1, end, actual)) {
+                    return false;
+                }
+                p = end;
+            } else {
+                if (c == '\\' && p + 1 < pattern.length()) {
+                    c = pattern.charAt(++p);
+                }
+                if (c != actual) {
+                    return false;
+                }
+            }
+            p++;
+            t++;
+        }
+        return t == text.length();
+    }
+
+    /** Index of the ']' closing the class opened at {@code open}, or -1 */
+    private static int classEnd(String pattern, int open) {
+        int i = open + 1;
+        if (i < pattern.length() && (pattern.charAt(i) == '!' || pattern.charAt(i) == '^')) {
+            i++;
+        }
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+        return pattern.indexOf(']', i);
+    }
+
+    private static boolean inClass(String pattern, int start, int end, char c) {
+        boolean negated = pattern.charAt(start) == '!' || pattern.charAt(start) == '^';
+        if (negated) {
+            start++;
+        }
+        boolean found = false;
+        for (int i = start; i < end && !found; i++) {
+            char low = pattern.charAt(i);
+            if (i + 2 < end && pattern.charAt(i + 1) == '-') {
+                found = c >= low && c <= pattern.charAt(i + 2);
+                i += 2;
+            } else {
+                found = c == low;
+            }
+        }
+        return found != negated;
+    }
+}
@@ -0,0 +1,401 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for inotify when the native library can't be loaded: every
+ * directory of every tree is covered by one {@link WatchPoller}, driven by a
+ * single polling thread.
+ *
+ * <p>Starting an observer lists its whole tree in parallel with
+ * {@link DirectoryCrawler}, and each listing is the baseline of its
+ * directory, so the first poll already reports changes.  From then on the
+ * poller scans the directories due together in parallel and diffs them
+ * incrementally; a directory which stays quiet is polled ever less often,
+ * one which changes goes back to the shortest interval, so the cost follows
+ * the rate of change.  A new subdirectory starts out empty, which reports
+ * everything in it, its own subdirectories included, at its first poll.
+ * There is no kernel registration to spread out, so the listing is done
+ * before {@link #startWatching(FileObserver)} returns and the
+ * {@link WatchCoverage} completes with it.</p>
+ *
+ * <p>A watched file instead of a directory is compared by size and mtime at
+ * every housekeeping.  Events reach an observer on the polling thread, or its
+ * dispatch executor, one at a time as with inotify.  Only the kinds of event
+ * a diff can tell are reported: creations, deletions, renames, completed
+ * writes, and the deletion of the root.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class PollingBackend implements ObserverBackend {
+    private static final String LOG_TAG = "PollingBackend";
+    /** How often the observers get their housekeeping, as on the reader threads */
+    private static final long HOUSEKEEPING_MILLIS = 1000;
+    /** Time one pass may spend polling before the housekeeping gets its turn */
+    private static final long PASS_MILLIS = 500;
+    private static final int ENOENT = 2;
+    private static final int EACCES = 13;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_NAME = new byte[0];
+
+    /** Size and mtime of a watched file */
+    private static final class WatchedFile {
+        long size;
+        long mtime;
+    }
+
+    private final Object mLock = new Object();
+    /** The roots of the watching observers; guarded by mLock */
+    private final ArrayList<Watch> mRoots = new ArrayList<Watch>();
+    /** The roots which are files, by root; guarded by mLock */
+    private final Map<Watch, WatchedFile> mFiles = new HashMap<Watch, WatchedFile>();
+    /** guarded by mLock, null while no observer is watching */
+    private Thread mThread;
+    private final AtomicInteger mNextDescriptor = new AtomicInteger();
+
+    /** Polling thread only */
+    private final FileEvent mEvent = new FileEvent();
+    private final DeliveryRun mDeliveryRun = new DeliveryRun();
+    private long mNowMillis = System.nanoTime() / 1000000;
+    /** A polled directory seen in a MOVED_FROM, waiting for its MOVED_TO */
+    private Watch mPendingMove;
+    private int mPendingMoveCookie;
+
+    private final WatchPoller mPoller = new WatchPoller() {
+        @Override
+        protected void onChange(Watch directory, int mask, int cookie, String name) {
+            onPolledEvent(directory, mask, cookie, name);
+        }
+
+        @Override
+        protected void onGone(Watch directory) {
+            drop(directory);
+            if (directory.parent() == null) {
+                deliver(directory, FileObserver.DELETE_SELF, NO_NAME);
+            }
+        }
+
+        @Override
+        protected boolean onHot(Watch directory) {
+            // there is nothing better to offer
+            return false;
+        }
+    };
+
+    public int startWatching(FileObserver observer) {
+        long start = System.nanoTime();
+        File file = new File(observer.mPath);
+        Watch root = new Watch(Watch.POLLED, observer, observer.mPath);
+        int polled = 1;
+        int depth = 0;
+        if (file.isDirectory()) {
+            PollCrawler crawler = new PollCrawler(observer, root);
+            crawler.crawl(root);
+            if (crawler.mRootFailed) {
+                return -EACCES;
+            }
+            polled = crawler.mPolled.get();
+            depth = crawler.mDeepest;
+        } else if (file.exists()) {
+            WatchedFile watched = new WatchedFile();
+            watched.size = file.length();
+            watched.mtime = file.lastModified();
+            synchronized (mLock) {
+                mFiles.put(root, watched);
+            }
+        } else {
+            return -ENOENT;
+        }
+
+        synchronized (mLock) {
+            mRoots.add(root);
+            if (mThread == null) {
+                mThread = new PollingThread();
+                mThread.start();
+            }
+        }
+        FileObserverMetrics.CRAWL_MILLIS.record((System.nanoTime() - start) / 1000000);
+        WatchCoverage coverage = observer.mCoverage;
+        if (coverage != null) {
+            coverage.update(0, polled, 0, depth);
+            coverage.done(false);
+        }
+        return mNextDescriptor.incrementAndGet();
+    }
+
+    public void stopWatching(FileObserver observer) {
+        synchronized (mLock) {
+            for (int i = mRoots.size() - 1; i >= 0; i--) {
+                Watch root = mRoots.get(i);
+                FileObserver owner = root.observer.get();
+                if (owner == null || owner == observer) {
+                    mRoots.remove(i);
+                    mFiles.remove(root);
+                }
+            }
+            // an idle thread notices it has nothing left
+            mLock.notifyAll();
+        }
+        mPoller.removeAll(observer);
+    }
+
+    public int collectWatches(Map<String, Integer> perObserver) {
+        synchronized (mLock) {
+            for (int i = 0; i < mRoots.size(); i++) {
+                Watch root = mRoots.get(i);
+                FileObserver observer = root.observer.get();
+                if (observer != null) {
+                    Integer known = perObserver.get(observer.mPath);
+                    perObserver.put(observer.mPath, (mFiles.containsKey(root) ? 1
+                            : root.subtree().size()) + (known == null ? 0 : known));
+                }
+            }
+        }
+        return 0;
+    }
+
+    public int countPolled() {
+        return mPoller.size();
+    }
+
+    /**
+     * Lists a tree, handing each directory to the poller with its listing
+     * as the baseline.
+     */
+    private class PollCrawler extends DirectoryCrawler<Watch> {
+        private final FileObserver mObserver;
+        private final Watch mRoot;
+        private final long mStartMillis = System.nanoTime() / 1000000;
+        private volatile boolean mRootFailed;
+        private final AtomicInteger mPolled = new AtomicInteger();
+        /** The deepest level listed, written by the crawl threads */
+        private volatile int mDeepest;
+
+        PollCrawler(FileObserver observer, Watch root) {
+            mObserver = observer;
+            mRoot = root;
+        }
+
+        @Override
+        protected Watch[] expand(Watch directory) {
+            String path = directory.path();
+            long[][] out = new long[1][];
+            String[] names = DirectoryScanner.scan(path, out);
+            if (names == null) {
+                if (directory == mRoot) {
+                    mRootFailed = true;
+                }
+                return null;
+            }
+            mPoller.add(directory, names, out[0], mStartMillis);
+            mPolled.incrementAndGet();
+            if (!mObserver.mWatchSubDir) {
+                return null;
+            }
+            int depth = directory.depth();
+            synchronized (this) {
+                mDeepest = Math.max(mDeepest, depth);
+            }
+            if (depth >= mObserver.mMaxDepth) {
+                return null;
+            }
+
+            long[] attributes = out[0];
+            PathFilter filter = mObserver.mFilter;
+            String relative = filter == null ? null : PathFilter.relativePath(mObserver.mPath, path);
+            ArrayList<Watch> children = new ArrayList<Watch>();
+            for (int i = 0; i < names.length; i++) {
+                if (attributes[i * DirectoryScanner.STRIDE + DirectoryScanner.TYPE]
+                        != DirectoryScanner.DIRECTORY) {
+                    continue;
+                }
+                if (filter != null && filter.excludes(relative, names[i], true)) {
+                    continue;
+                }
+                children.add(new Watch(Watch.POLLED, mObserver, directory, names[i]));
+            }
+            return children.toArray(new Watch[children.size()]);
+        }
+    }
+
+    /** Polls until the last observer stops */
+    private class PollingThread extends Thread {
+        PollingThread() {
+            super("FileObserver poller");
+            setDaemon(true);
+        }
+
+        public void run() {
+            long nextHousekeeping = 0;
+            while (true) {
+                long now = System.nanoTime() / 1000000;
+                mNowMillis = now;
+                mPoller.poll(now, PASS_MILLIS);
+                // the poller reports a rename as one pair of events
+                mPendingMove = null;
+                if (now >= nextHousekeeping) {
+                    housekeeping(now);
+                    nextHousekeeping = now + HOUSEKEEPING_MILLIS;
+                }
+                mDeliveryRun.end();
+
+                long wake = Math.min(mPoller.nextDueMillis(), nextHousekeeping);
+                synchronized (mLock) {
+                    if (mRoots.isEmpty()) {
+                        mThread = null;
+                        return;
+                    }
+                    long wait = wake - System.nanoTime() / 1000000;
+                    if (wait > 0) {
+                        try {
+                            mLock.wait(wait);
+                        } catch (InterruptedException e) {
+                            // poll again
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare the watched files, drop the roots of observers which were
+     * garbage collected, and let every observer do its own housekeeping.
+     */
+    private void housekeeping(long nowMillis) {
+        Watch[] roots;
+        synchronized (mLock) {
+            roots = mRoots.toArray(new Watch[mRoots.size()]);
+        }
+        boolean collected = false;
+        for (int i = 0; i < roots.length; i++) {
+            FileObserver observer = roots[i].observer.get();
+            if (observer == null) {
+                collected = true;
+                continue;
+            }
+            checkFile(roots[i]);
+            try {
+                AsyncDispatcher dispatcher = observer.mDispatcher;
+                if (dispatcher != null) {
+                    dispatcher.housekeeping(nowMillis);
+                } else {
+                    observer.onHousekeeping(nowMillis);
+                }
+            } catch (Throwable throwable) {
+                Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+            }
+        }
+        if (collected) {
+            stopWatching(null);
+        }
+    }
+
+    /** Report a change of {@code root} if it is a watched file */
+    private void checkFile(Watch root) {
+        WatchedFile watched;
+        synchronized (mLock) {
+            watched = mFiles.get(root);
+        }
+        if (watched == null) {
+            return;
+        }
+        File file = new File(root.path());
+        long mtime = file.lastModified();
+        if (mtime == 0 && !file.exists()) {
+            synchronized (mLock) {
+                mFiles.remove(root);
+            }
+            deliver(root, FileObserver.DELETE_SELF, NO_NAME);
+            return;
+        }
+        long size = file.length();
+        if (mtime != watched.mtime || size != watched.size) {
+            watched.mtime = mtime;
+            watched.size = size;
+            deliver(root, FileObserver.CLOSE_WRITE, NO_NAME);
+        }
+    }
+
+    /**
+     * Keep the tree in step with a change the poller found in
+     * {@code directory}, and report it, on the polling thread.
+     */
+    private void onPolledEvent(Watch directory, int mask, int cookie, String name) {
+        FileObserver observer = directory.observer.get();
+        if (observer == null) {
+            return;
+        }
+        PathFilter filter = observer.mFilter;
+        if (filter != null && filter.excludes(PathFilter.relativePath(observer.mPath,
+                directory.path()), name, (mask & FileObserver.ISDIR) != 0)) {
+            return;
+        }
+
+        if ((mask & FileObserver.ISDIR) != 0 && observer.mWatchSubDir) {
+            boolean covered = directory.depth() < observer.mMaxDepth;
+            if ((mask & FileObserver.CREATE) != 0 && covered) {
+                mPoller.add(new Watch(Watch.POLLED, observer, directory, name), true, mNowMillis);
+            } else if ((mask & FileObserver.DELETE) != 0) {
+                Watch child = directory.child(name);
+                if (child != null) {
+                    drop(child);
+                }
+            } else if ((mask & FileObserver.MOVED_FROM) != 0) {
+                mPendingMove = directory.child(name);
+                mPendingMoveCookie = cookie;
+            } else if ((mask & FileObserver.MOVED_TO) != 0) {
+                Watch moved = mPendingMove;
+                mPendingMove = null;
+                if (moved != null && mPendingMoveCookie == cookie) {
+                    moved.moveTo(directory, name);
+                } else if (covered) {
+                    mPoller.add(new Watch(Watch.POLLED, observer, directory, name), true, mNowMillis);
+                }
+            }
+        }
+        deliver(directory, mask, cookie, name.getBytes(UTF_8));
+    }
+
+    private void deliver(Watch directory, int mask, byte[] name) {
+        deliver(directory, mask, 0, name);
+    }
+
+    private void deliver(Watch directory, int mask, int cookie, byte[] name) {
+        FileObserver observer = directory.observer.get();
+        if (observer == null || (mask & observer.mMask & FileObserver.ALL_EVENTS) == 0) {
+            return;
+        }
+        try {
+            AsyncDispatcher dispatcher = observer.mDispatcher;
+            if (dispatcher != null) {
+                dispatcher.publish(directory.wd, mask, cookie, directory,
+                        ByteBuffer.wrap(name), 0, name.length);
+            } else {
+                mEvent.set(directory.wd, mask, cookie, directory, name, 0, name.length);
+                observer.deliver(mEvent);
+                mDeliveryRun.add(observer);
+            }
+        } catch (Throwable throwable) {
+            Log.wtf(LOG_TAG, "Unhandled exception in FileObserver " + observer, throwable);
+        }
+    }
+
+    /** Stop polling {@code directory} and everything below it */
+    private void drop(Watch directory) {
+        ArrayList<Watch> subtree = directory.subtree();
+        directory.detach();
+        for (int i = 0; i < subtree.size(); i++) {
+            mPoller.remove(subtree.get(i));
+        }
+    }
+}
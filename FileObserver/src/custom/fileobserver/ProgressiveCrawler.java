@@ -0,0 +1,292 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Covers a tree level by level in the background, so the top of a deep tree
+ * is watched within milliseconds instead of after the whole crawl.
+ * Subclasses cover the subdirectories of one directory in
+ * {@link #expand(Watch)}; the crawler decides the order and reports the
+ * progress to a {@link WatchCoverage}.
+ *
+ * <p>{@link #start(Watch)} expands the root on the calling thread and
+ * returns, leaving the levels below to a few workers on the
+ * {@link DirectoryCrawler} pool; {@link #fork(Watch)} leaves the root to
+ * them as well.  Directories are expanded breadth first,
+ * except that one still waiting which reports an event jumps the queue
+ * through {@link #promote(Watch)}: what happens there is likely what the
+ * observer is waiting for.  Directories at the depth limit are covered but
+ * not expanded.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+abstract class ProgressiveCrawler {
+    private static final String LOG_TAG = "ProgressiveCrawler";
+
+    /** A directory waiting to be expanded */
+    private static final class Pending {
+        final Watch directory;
+        final int depth;
+        boolean promoted;
+
+        Pending(Watch directory, int depth) {
+            this.directory = directory;
+            this.depth = depth;
+        }
+    }
+
+    private final int mMaxDepth;
+    private final WatchCoverage mCoverage;
+    private final int mParallelism = Runtime.getRuntime().availableProcessors();
+    private final Runnable mWorker = new Runnable() {
+        public void run() {
+            work(false);
+        }
+    };
+
+    // guarded by this
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<Pending>();
+    /** Promoted directories, which are in {@link #mQueue} as well */
+    private final ArrayDeque<Pending> mPromoted = new ArrayDeque<Pending>();
+    /** The directories queued and not taken yet */
+    private final IdentityHashMap<Watch, Pending> mPending = new IdentityHashMap<Watch, Pending>();
+    /** Per depth, the directories queued or being expanded */
+    private int[] mUnexpanded = new int[8];
+    private int mUnexpandedTotal;
+    private int mDeepest;
+    private int mWatched;
+    private int mPolled;
+    private int mWorkers;
+    private boolean mCancelled;
+    private boolean mFinished;
+
+    /**
+     * @param maxDepth how many levels below the root are covered
+     * @param coverage receives the progress
+     */
+    ProgressiveCrawler(int maxDepth, WatchCoverage coverage) {
+        mMaxDepth = maxDepth;
+        mCoverage = coverage;
+    }
+
+    /**
+     * Cover the subdirectories of {@code directory}.  Called concurrently
+     * from several threads.
+     *
+     * @return the subdirectories covered, or null
+     */
+    protected abstract Watch[] expand(Watch directory);
+
+    /** Called once, on the thread which ended the crawl, after the coverage is done */
+    protected void onFinished() {
+    }
+
+    /**
+     * Expand {@code root}, which is covered already, on the calling thread
+     * and the levels below it in the background.  A crawler is single use.
+     */
+    void start(Watch root) {
+        mCoverage.attach(this);
+        synchronized (this) {
+            cover(root, 0);
+            if (mMaxDepth > 0) {
+                enqueue(root, 0);
+            }
+            mWorkers = 1;
+            report();
+        }
+        work(true);
+    }
+
+    /**
+     * Like {@link #start(Watch)}, but {@code root} is expanded in the
+     * background too, so the calling thread never lists a directory.
+     */
+    void fork(Watch root) {
+        mCoverage.attach(this);
+        boolean alone;
+        synchronized (this) {
+            cover(root, 0);
+            if (mMaxDepth > 0) {
+                enqueue(root, 0);
+            }
+            report();
+            spawn();
+            alone = mWorkers == 0;
+            if (alone) {
+                // nothing to expand, or no worker to be had: finish here
+                mWorkers = 1;
+            }
+        }
+        if (alone) {
+            work(false);
+        }
+    }
+
+    /** Expand {@code directory} next if it is still waiting */
+    synchronized void promote(Watch directory) {
+        Pending pending = mPending.get(directory);
+        if (pending != null && !pending.promoted) {
+            pending.promoted = true;
+            mPromoted.add(pending);
+        }
+    }
+
+    /**
+     * Expand nothing more.
+     *
+     * @param wait whether to return only once no expansion is running
+     */
+    synchronized void cancel(boolean wait) {
+        mCancelled = true;
+        mQueue.clear();
+        mPromoted.clear();
+        mPending.clear();
+        boolean interrupted = false;
+        while (wait && mWorkers > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @param once whether to expand a single directory, for the calling thread of {@link #start} */
+    private void work(boolean once) {
+        Pending pending;
+        synchronized (this) {
+            pending = take();
+        }
+        while (pending != null) {
+            Watch[] children = null;
+            try {
+                children = expand(pending.directory);
+            } catch (Throwable throwable) {
+                Log.e(LOG_TAG, "crawl failed below " + pending.directory.path(), throwable);
+            }
+            synchronized (this) {
+                settle(pending, children);
+                pending = once ? null : take();
+            }
+        }
+
+        boolean finished;
+        boolean cancelled;
+        synchronized (this) {
+            mWorkers--;
+            spawn();
+            finished = mWorkers == 0 && !mFinished;
+            cancelled = mCancelled;
+            if (finished) {
+                mFinished = true;
+                notifyAll();
+            }
+        }
+        if (finished) {
+            mCoverage.done(cancelled);
+            try {
+                onFinished();
+            } catch (Throwable throwable) {
+                Log.e(LOG_TAG, "crawl failed to finish", throwable);
+            }
+        }
+    }
+
+    /** Called holding the lock: the next directory to expand, or null */
+    private Pending take() {
+        while (!mCancelled) {
+            Pending pending = mPromoted.poll();
+            if (pending == null) {
+                pending = mQueue.poll();
+            }
+            if (pending == null) {
+                return null;
+            }
+            // a promoted directory is found twice
+            if (mPending.remove(pending.directory) == pending) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /** Called holding the lock once {@code pending} was expanded */
+    private void settle(Pending pending, Watch[] children) {
+        mUnexpanded[pending.depth]--;
+        mUnexpandedTotal--;
+        if (children != null && !mCancelled) {
+            int depth = pending.depth + 1;
+            for (int i = 0; i < children.length; i++) {
+                cover(children[i], depth);
+                if (depth < mMaxDepth) {
+                    enqueue(children[i], depth);
+                }
+            }
+            spawn();
+        }
+        report();
+    }
+
+    private void cover(Watch directory, int depth) {
+        if (directory.isPolled()) {
+            mPolled++;
+        } else {
+            mWatched++;
+        }
+        mDeepest = Math.max(mDeepest, depth);
+    }
+
+    private void enqueue(Watch directory, int depth) {
+        if (mCancelled || mPending.containsKey(directory)) {
+            return;
+        }
+        Pending pending = new Pending(directory, depth);
+        mPending.put(directory, pending);
+        mQueue.add(pending);
+        if (depth == mUnexpanded.length) {
+            mUnexpanded = Arrays.copyOf(mUnexpanded, depth * 2);
+        }
+        mUnexpanded[depth]++;
+        mUnexpandedTotal++;
+    }
+
+    /** Called holding the lock: start workers for the directories waiting, up to the parallelism */
+    private void spawn() {
+        int wanted = Math.min(mParallelism - mWorkers, mPending.size());
+        for (int i = 0; i < wanted && !mCancelled; i++) {
+            try {
+                DirectoryCrawler.execute(mWorker);
+                mWorkers++;
+            } catch (RejectedExecutionException e) {
+                Log.e(LOG_TAG, "crawler pool rejected a worker", e);
+                if (mWorkers == 0) {
+                    // nobody is left to go on
+                    mCancelled = true;
+                }
+                return;
+            }
+        }
+    }
+
+    /** Called holding the lock */
+    private void report() {
+        int covered = mDeepest;
+        for (int depth = 0; depth <= mDeepest && depth < mUnexpanded.length; depth++) {
+            if (mUnexpanded[depth] > 0) {
+                covered = depth;
+                break;
+            }
+        }
+        mCoverage.update(mWatched, mPolled, mUnexpandedTotal, covered);
+    }
+}
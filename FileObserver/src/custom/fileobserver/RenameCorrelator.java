@@ -0,0 +1,119 @@
+package custom.fileobserver;
+
+import java.util.Arrays;
+
+/**
+ * Pairs the {@link FileObserver#MOVED_FROM} and {@link FileObserver#MOVED_TO}
+ * halves of a rename by their cookie.
+ *
+ * <p>Pending halves sit in a fixed ring in arrival order, with the cookie in
+ * an int[] and the time in a long[], so nothing is boxed and the oldest entry
+ * is always at the head.  The kernel queues both halves back to back, so a
+ * lookup scans from the newest entry and normally stops at the first one.
+ * Entries leave the ring when they are matched, when they are older than the
+ * expiry, or when the ring is full and a newer one needs the room; in the
+ * last two cases the path is handed back so the caller can report it as
+ * moved out of the tree.</p>
+ *
+ * <p>Not thread safe: every call is made on the thread which dispatches the
+ * events of one observer.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class RenameCorrelator {
+    private final int[] mCookies;
+    private final String[] mPaths;
+    private final long[] mTimes;
+    private final long mExpiryMillis;
+    /** Index of the oldest slot */
+    private int mHead;
+    /** Slots in use from the head on, matched ones included until the head passes them */
+    private int mCount;
+
+    RenameCorrelator(int capacity, long expiryMillis) {
+        capacity = Math.max(1, capacity);
+        mCookies = new int[capacity];
+        mPaths = new String[capacity];
+        mTimes = new long[capacity];
+        mExpiryMillis = expiryMillis;
+    }
+
+    /**
+     * Remember the MOVED_FROM half of a rename.
+     *
+     * @return the path of the oldest pending half if it had to make room, else null
+     */
+    String put(int cookie, String path, long nowMillis) {
+        String evicted = null;
+        if (mCount == mCookies.length) {
+            evicted = mPaths[mHead];
+            removeHead();
+            // leading slots matched meanwhile are free as well
+            skipMatched();
+        }
+        int slot = (mHead + mCount) % mCookies.length;
+        mCookies[slot] = cookie;
+        mPaths[slot] = path;
+        mTimes[slot] = nowMillis;
+        mCount++;
+        return evicted;
+    }
+
+    /**
+     * Match the MOVED_TO half of a rename.
+     *
+     * @return the path of the MOVED_FROM half, or null if there was none
+     */
+    String take(int cookie) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            int slot = (mHead + i) % mCookies.length;
+            if (mPaths[slot] != null && mCookies[slot] == cookie) {
+                String path = mPaths[slot];
+                mPaths[slot] = null;
+                while (mCount > 0 && mPaths[(mHead + mCount - 1) % mCookies.length] == null) {
+                    mCount--;
+                }
+                skipMatched();
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the oldest pending half if it is older than the expiry.  Call
+     * repeatedly until it returns null.
+     *
+     * @return the path whose MOVED_TO never came, or null
+     */
+    String expire(long nowMillis) {
+        if (mCount == 0 || nowMillis - mTimes[mHead] < mExpiryMillis) {
+            return null;
+        }
+        String path = mPaths[mHead];
+        removeHead();
+        skipMatched();
+        return path;
+    }
+
+    /** Forget everything pending */
+    void clear() {
+        Arrays.fill(mPaths, null);
+        mHead = 0;
+        mCount = 0;
+    }
+
+    private void removeHead() {
+        mPaths[mHead] = null;
+        mHead = (mHead + 1) % mCookies.length;
+        mCount--;
+    }
+
+    private void skipMatched() {
+        while (mCount > 0 && mPaths[mHead] == null) {
+            mHead = (mHead + 1) % mCookies.length;
+            mCount--;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package custom.fileobserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over a few cells so that threads adding to it at the same
+ * time rarely touch the same cache line.  Each thread adds to the cell picked
+ * by its id; reading sums the cells and is only consistent per cell.
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class StripedCounter {
+    /** longs per cache line, cells are this far apart */
+    static final int PAD = 8;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    /** A power of two at least twice the number of cores */
+    private static int stripes() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cores * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /** The cell of the calling thread */
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    void add(long delta) {
+        mCells.addAndGet(stripe() * PAD, delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,1359 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * What a watched tree looked like: for every directory the names of its
+ * entries with their inode, size and mtime, kept as one sorted String[] and
+ * one packed long[] per directory.
+ *
+ * <p>As a {@link FileListener} the snapshot sits in front of the real
+ * listener and follows the live notifications.  A live creation,
+ * modification or rename stats the entry, so the snapshot keeps real
+ * attributes for what changes while it follows; only an entry gone by then
+ * is left with unknown ones.</p>
+ *
+ * <p>When events were lost, {@link #recover(String[])} scans the directories
+ * which lost them again, with whatever appeared in them, one directory per
+ * task on the {@link DirectoryCrawler} pool, and diffs every directory
+ * against its snapshot; {@link #recover()} does the same for the whole
+ * tree.  The difference is reported downstream as
+ * synthetic notifications: entries which disappeared and reappeared with the
+ * same inode as renames, the rest as deletions, creations and modifications.
+ * An entry with unknown attributes is reported as modified, its change can
+ * not be ruled out.</p>
+ *
+ * <p>With an index file the snapshot also outlives the process.  The index
+ * is one memory-mapped file holding a table of directories, a column of name
+ * offsets into a UTF-8 name heap and one column each for inode, size, mtime
+ * and type.  The directories which changed since are appended to a journal
+ * next to it, a few seconds after the change and when watching stops, by a
+ * flusher thread all snapshots share; once the journal outgrows the index,
+ * both are folded into a new index.  {@link #start()} maps the index back,
+ * replays the journal and reports what changed on disk while nobody was
+ * watching, before any live notification gets through.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class TreeSnapshot implements FileListener {
+    private static final String LOG_TAG = "TreeSnapshot";
+
+    /** inode, size, mtime and directory flag per entry; see fileobserver_jni.cpp */
+    private static final int STRIDE = 4;
+    private static final int INODE = 0;
+    private static final int SIZE = 1;
+    private static final int MTIME = 2;
+    private static final int TYPE = 3;
+    /** An attribute a live notification made stale */
+    private static final long UNKNOWN = -1;
+    private static final long DIRECTORY = 1;
+
+    /** Kinds of synthetic notifications */
+    private static final int CREATED = 1;
+    private static final int MODIFIED = 2;
+    private static final int DELETED = 3;
+    private static final int RENAMED = 4;
+
+    private static final int INDEX_MAGIC = 0x464f4958; // FOIX
+    private static final int INDEX_VERSION = 2;
+    private static final int JOURNAL_MAGIC = 0x464f4a4c; // FOJL
+    private static final int JOURNAL_HEADER_BYTES = 12;
+    /** How long changes may sit in memory before they are written */
+    private static final long FLUSH_DELAY_MILLIS = 5000;
+    /** The journal is folded into the index once it is larger than the index and this */
+    private static final long COMPACT_MIN_BYTES = 256 * 1024;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] NO_NAMES = new String[0];
+    private static final long[] NO_ATTRIBUTES = new long[0];
+
+    /** One directory: its entries sorted by name, and the nodes of its subdirectories */
+    private static final class Node {
+        Node parent;
+        String name;
+        boolean detached;
+        String[] names = NO_NAMES;
+        long[] attributes = NO_ATTRIBUTES;
+        HashMap<String, Node> children;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        /** False once the node or one of its ancestors left the tree */
+        boolean attached() {
+            for (Node node = this; node != null; node = node.parent) {
+                if (node.detached) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String path() {
+            if (parent == null) {
+                return name;
+            }
+            String parentPath = parent.path();
+            return parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+        }
+
+        Node child(String name) {
+            return children == null ? null : children.get(name);
+        }
+
+        void putChild(Node child) {
+            if (children == null) {
+                children = new HashMap<String, Node>();
+            }
+            child.parent = this;
+            children.put(child.name, child);
+        }
+
+        Node removeChild(String name) {
+            return children == null ? null : children.remove(name);
+        }
+    }
+
+    /** The changes found by one rescan, collected from every crawler task */
+    private static final class Diff {
+        final ArrayList<String> created = new ArrayList<String>();
+        final ArrayList<long[]> createdAttributes = new ArrayList<long[]>();
+        final ArrayList<String> deleted = new ArrayList<String>();
+        final ArrayList<long[]> deletedAttributes = new ArrayList<long[]>();
+        final ArrayList<String> modified = new ArrayList<String>();
+
+        synchronized void created(String path, long[] attributes, int entry) {
+            created.add(path);
+            createdAttributes.add(Arrays.copyOfRange(attributes, entry, entry + STRIDE));
+        }
+
+        synchronized void deleted(String path, long[] attributes, int entry) {
+            deleted.add(path);
+            deletedAttributes.add(Arrays.copyOfRange(attributes, entry, entry + STRIDE));
+        }
+
+        synchronized void modified(String path) {
+            modified.add(path);
+        }
+    }
+
+    /** The entries of one changed directory, as appended to the journal */
+    private static final class Record {
+        final String path;
+        final String[] names;
+        final long[] attributes;
+
+        Record(String path, String[] names, long[] attributes) {
+            this.path = path;
+            this.names = names;
+            this.attributes = attributes;
+        }
+    }
+
+    /** Parents before children: a path is longer than the path of its parent */
+    private static final Comparator<Record> PARENTS_FIRST = new Comparator<Record>() {
+        public int compare(Record a, Record b) {
+            return a.path.length() - b.path.length();
+        }
+    };
+
+    private static ScheduledThreadPoolExecutor sFlusher;
+
+    /** The thread which writes the index files of all snapshots */
+    private static synchronized ScheduledThreadPoolExecutor flusher() {
+        if (sFlusher == null) {
+            sFlusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TreeSnapshot flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sFlusher.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sFlusher.allowCoreThreadTimeOut(true);
+        }
+        return sFlusher;
+    }
+
+    /** A live notification held back until the catch-up was reported */
+    private static final class Held {
+        final int kind;
+        final String path;
+        final String newPath;
+
+        Held(int kind, String path, String newPath) {
+            this.kind = kind;
+            this.path = path;
+            this.newPath = newPath;
+        }
+    }
+
+    private final String mRootPath;
+    private final boolean mRecursive;
+    private final PathFilter mFilter;
+    private final File mIndexFile;
+    /** The directories changed since the index was written, see {@link #save()} */
+    private final File mJournalFile;
+    private volatile FileListener mDownstream;
+    /** Serializes the scans */
+    private final Object mScanLock = new Object();
+    /** guarded by this, like every Node */
+    private final Node mRoot;
+    /** guarded by mScanLock */
+    private boolean mBuilt;
+    /** guarded by this, changed since the index file or the journal was written */
+    private boolean mDirty;
+    /** guarded by this, the nodes to append to the journal */
+    private final HashSet<Node> mDirtyNodes = new HashSet<Node>();
+    /** guarded by this, whether the next save writes a new index instead */
+    private boolean mCompact = true;
+    /** guarded by this */
+    private boolean mFlushScheduled;
+    /** guarded by mScanLock: the index file written last, the journal which belongs to it */
+    private int mGeneration;
+    private long mIndexBytes;
+    private long mJournalBytes;
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            synchronized (TreeSnapshot.this) {
+                mFlushScheduled = false;
+            }
+            save();
+        }
+    };
+    /** guarded by this, non-null while live notifications are held back */
+    private ArrayList<Held> mHeld;
+
+    /**
+     * @param rootPath the watched directory
+     * @param recursive false to keep only the directory itself, not its subdirectories
+     * @param filter the entries the observer leaves out, kept out of the snapshot too; or null
+     * @param indexFile where the snapshot is kept between runs, or null
+     */
+    TreeSnapshot(String rootPath, boolean recursive, PathFilter filter, FileListener downstream,
+            File indexFile) {
+        mRootPath = rootPath;
+        mRecursive = recursive;
+        mFilter = filter;
+        mDownstream = downstream;
+        mIndexFile = indexFile;
+        mJournalFile = indexFile == null ? null : new File(indexFile.getPath() + ".log");
+        mRoot = new Node(null, rootPath);
+    }
+
+    void setDownstream(FileListener downstream) {
+        mDownstream = downstream;
+    }
+
+    /**
+     * Take the initial snapshot.  If the index file holds one of the same
+     * tree, report what changed since it was written instead of scanning
+     * silently; live notifications wait until that is done.
+     */
+    void start() {
+        synchronized (mScanLock) {
+            if (mIndexFile == null) {
+                new Scanner(null, true).crawl(mRoot);
+                mBuilt = true;
+                return;
+            }
+            synchronized (this) {
+                mHeld = new ArrayList<Held>();
+            }
+            try {
+                // recover() scans silently when nothing could be loaded
+                load();
+                recover();
+            } finally {
+                release();
+            }
+        }
+        save();
+    }
+
+    /**
+     * Scan the tree again and report what changed since the snapshot, or
+     * just take the snapshot if there was none yet.
+     *
+     * @return the number of notifications sent downstream
+     */
+    int recover() {
+        synchronized (mScanLock) {
+            if (!mBuilt) {
+                new Scanner(null, true).crawl(mRoot);
+                mBuilt = true;
+                return 0;
+            }
+            long start = System.currentTimeMillis();
+            Diff diff = new Diff();
+            new Scanner(diff, true).crawl(mRoot);
+            int sent = report(diff);
+            Log.i(LOG_TAG, "recovered " + mRootPath + " in "
+                    + (System.currentTimeMillis() - start) + " ms, " + sent + " changes");
+            return sent;
+        }
+    }
+
+    /**
+     * Scan the entries of {@code directories} again, and everything which
+     * appeared in them, and report what changed since the snapshot.
+     * Subdirectories already known are left alone.  Directories outside the
+     * tree, or not in the snapshot, are skipped: they are new, and found by
+     * the scan of their parent.
+     *
+     * @return the number of notifications sent downstream
+     */
+    int recover(String[] directories) {
+        synchronized (mScanLock) {
+            if (!mBuilt) {
+                return recover();
+            }
+            long start = System.currentTimeMillis();
+            Diff diff = new Diff();
+            for (int i = 0; i < directories.length; i++) {
+                Node node;
+                synchronized (this) {
+                    node = directory(directories[i], false);
+                }
+                if (node != null) {
+                    new Scanner(diff, false).crawl(node);
+                }
+            }
+            int sent = report(diff);
+            Log.i(LOG_TAG, "recovered " + directories.length + " directories of " + mRootPath
+                    + " in " + (System.currentTimeMillis() - start) + " ms, " + sent + " changes");
+            return sent;
+        }
+    }
+
+    /**
+     * Rescans directories against the snapshot, recording the differences
+     * in a {@link Diff} unless it is the initial build.
+     */
+    private class Scanner extends DirectoryCrawler<Node> {
+        private final Diff mDiff;
+        /** Whether the subdirectories already known are rescanned too, not only new ones */
+        private final boolean mDeep;
+
+        Scanner(Diff diff, boolean deep) {
+            mDiff = diff;
+            mDeep = deep;
+        }
+
+        @Override
+        protected Node[] expand(Node node) {
+            String path;
+            synchronized (TreeSnapshot.this) {
+                if (!node.attached()) {
+                    return null;
+                }
+                path = node.path();
+            }
+
+            // the listing and the stats run without the lock, live
+            // notifications only wait for the merge below
+            long[][] out = new long[1][];
+            String[] names = DirectoryScanner.scan(path, out);
+            if (names == null) {
+                // gone, its parent reports it
+                return null;
+            }
+            if (mFilter != null) {
+                names = exclude(path, names, out);
+            }
+            long[] attributes = out[0];
+
+            synchronized (TreeSnapshot.this) {
+                if (!node.attached()) {
+                    return null;
+                }
+                return merge(node, path, names, attributes, mDiff, mDeep);
+            }
+        }
+    }
+
+    /**
+     * Drop the entries the filter leaves out, with their attributes in
+     * {@code out[0]}.
+     *
+     * @return the names kept
+     */
+    private String[] exclude(String path, String[] names, long[][] out) {
+        long[] attributes = out[0];
+        String relative = PathFilter.relativePath(mRootPath, path);
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (mFilter.excludes(relative, names[i], attributes[i * STRIDE + TYPE] == DIRECTORY)) {
+                continue;
+            }
+            names[count] = names[i];
+            System.arraycopy(attributes, i * STRIDE, attributes, count * STRIDE, STRIDE);
+            count++;
+        }
+        if (count == names.length) {
+            return names;
+        }
+        out[0] = Arrays.copyOf(attributes, count * STRIDE);
+        return Arrays.copyOf(names, count);
+    }
+
+    /**
+     * Replace the entries of {@code node} with what is on disk, recording the
+     * differences in {@code diff} if there is one.
+     *
+     * @param deep false to descend only into the subdirectories which appeared
+     * @return the subdirectories to descend into
+     */
+    private Node[] merge(Node node, String path, String[] names, long[] attributes, Diff diff,
+            boolean deep) {
+        String[] oldNames = node.names;
+        long[] oldAttributes = node.attributes;
+        ArrayList<Node> descend = new ArrayList<Node>();
+        int o = 0;
+        int n = 0;
+        while (o < oldNames.length || n < names.length) {
+            int order = o == oldNames.length ? 1 : n == names.length ? -1
+                    : oldNames[o].compareTo(names[n]);
+            if (order < 0) {
+                gone(node, path, oldNames[o], oldAttributes, o * STRIDE, diff);
+                o++;
+                continue;
+            }
+            if (order > 0) {
+                appeared(node, path, names[n], attributes, n * STRIDE, diff, descend);
+                n++;
+                continue;
+            }
+
+            String name = names[n];
+            int oldEntry = o * STRIDE;
+            int entry = n * STRIDE;
+            long oldType = oldAttributes[oldEntry + TYPE];
+            boolean isDirectory = attributes[entry + TYPE] == DIRECTORY;
+            if (oldType != UNKNOWN && oldType != attributes[entry + TYPE]) {
+                // replaced by something of the other kind
+                gone(node, path, name, oldAttributes, oldEntry, diff);
+                appeared(node, path, name, attributes, entry, diff, descend);
+            } else if (isDirectory) {
+                if (mRecursive) {
+                    Node child = node.child(name);
+                    if (child == null) {
+                        child = new Node(node, name);
+                        node.putChild(child);
+                        descend.add(child);
+                    } else if (deep) {
+                        descend.add(child);
+                    }
+                }
+            } else if (diff != null && (oldAttributes[oldEntry + INODE] != attributes[entry + INODE]
+                    || changed(oldAttributes[oldEntry + SIZE], attributes[entry + SIZE])
+                    || changed(oldAttributes[oldEntry + MTIME], attributes[entry + MTIME]))) {
+                diff.modified(join(path, name));
+            }
+            o++;
+            n++;
+        }
+        if (!Arrays.equals(oldNames, names) || !Arrays.equals(oldAttributes, attributes)) {
+            changed(node);
+        }
+        node.names = names;
+        node.attributes = attributes;
+        return descend.toArray(new Node[descend.size()]);
+    }
+
+    /** An unknown attribute counts as changed */
+    private static boolean changed(long before, long now) {
+        return before == UNKNOWN || before != now;
+    }
+
+    private void appeared(Node node, String path, String name, long[] attributes, int entry,
+            Diff diff, ArrayList<Node> descend) {
+        if (diff != null) {
+            diff.created(join(path, name), attributes, entry);
+        }
+        if (mRecursive && attributes[entry + TYPE] == DIRECTORY) {
+            Node child = new Node(node, name);
+            node.putChild(child);
+            descend.add(child);
+        }
+    }
+
+    /** An entry disappeared; a directory takes everything below it along */
+    private void gone(Node node, String path, String name, long[] attributes, int entry,
+            Diff diff) {
+        Node child = node.removeChild(name);
+        if (child != null) {
+            child.detached = true;
+        }
+        if (diff == null) {
+            return;
+        }
+        String entryPath = join(path, name);
+        if (child != null) {
+            // deepest first, the way the kernel would have reported it
+            for (int i = 0; i < child.names.length; i++) {
+                gone(child, entryPath, child.names[i], child.attributes, i * STRIDE, diff);
+            }
+        }
+        diff.deleted(entryPath, attributes, entry);
+    }
+
+    /**
+     * Send the differences downstream.  A deleted and a created entry of
+     * the same kind with the same inode are one rename.
+     */
+    private int report(Diff diff) {
+        FileListener downstream = mDownstream;
+        if (downstream == null) {
+            return 0;
+        }
+        HashMap<Long, Integer> deletedByInode = new HashMap<Long, Integer>();
+        for (int i = 0; i < diff.deleted.size(); i++) {
+            long inode = diff.deletedAttributes.get(i)[INODE];
+            // without the native library there are no inodes to go by
+            if (inode != UNKNOWN && inode != DirectoryScanner.UNKNOWN_INODE) {
+                deletedByInode.put(inode, i);
+            }
+        }
+
+        int sent = 0;
+        boolean[] renamed = new boolean[diff.deleted.size()];
+        ArrayList<String> created = new ArrayList<String>();
+        for (int i = 0; i < diff.created.size(); i++) {
+            long[] attributes = diff.createdAttributes.get(i);
+            Integer from = deletedByInode.remove(attributes[INODE]);
+            if (from != null && diff.deletedAttributes.get(from)[TYPE] == attributes[TYPE]) {
+                renamed[from] = true;
+                sent += send(downstream, RENAMED, diff.deleted.get(from), diff.created.get(i));
+            } else {
+                created.add(diff.created.get(i));
+            }
+        }
+        for (int i = 0; i < diff.deleted.size(); i++) {
+            if (!renamed[i]) {
+                sent += send(downstream, DELETED, diff.deleted.get(i), null);
+            }
+        }
+        for (int i = 0; i < created.size(); i++) {
+            sent += send(downstream, CREATED, created.get(i), null);
+        }
+        for (int i = 0; i < diff.modified.size(); i++) {
+            sent += send(downstream, MODIFIED, diff.modified.get(i), null);
+        }
+        return sent;
+    }
+
+    private static int send(FileListener downstream, int kind, String path, String newPath) {
+        try {
+            switch (kind) {
+            case CREATED:
+                downstream.onFileCreated(path);
+                break;
+            case MODIFIED:
+                downstream.onFileModified(path);
+                break;
+            case DELETED:
+                downstream.onFileDeleted(path);
+                break;
+            default:
+                downstream.onFileRenamed(path, newPath);
+                break;
+            }
+        } catch (Throwable throwable) {
+            Log.wtf(LOG_TAG, "Unhandled exception in FileListener " + downstream, throwable);
+        }
+        return 1;
+    }
+
+    // live notifications
+
+    public void onFileCreated(String name) {
+        update(name, false, stat(name));
+        forward(CREATED, name, null);
+    }
+
+    public void onFileDeleted(String name) {
+        remove(name);
+        forward(DELETED, name, null);
+    }
+
+    public void onFileModified(String name) {
+        update(name, true, stat(name));
+        forward(MODIFIED, name, null);
+    }
+
+    public void onFileRenamed(String oldName, String newName) {
+        move(oldName, newName, stat(newName));
+        forward(RENAMED, oldName, newName);
+    }
+
+    /** Pass a live notification on, unless notifications are held back */
+    private void forward(int kind, String path, String newPath) {
+        synchronized (this) {
+            if (mHeld != null) {
+                mHeld.add(new Held(kind, path, newPath));
+                return;
+            }
+        }
+        FileListener downstream = mDownstream;
+        if (downstream == null) {
+            return;
+        }
+        switch (kind) {
+        case CREATED:
+            downstream.onFileCreated(path);
+            break;
+        case MODIFIED:
+            downstream.onFileModified(path);
+            break;
+        case DELETED:
+            downstream.onFileDeleted(path);
+            break;
+        default:
+            downstream.onFileRenamed(path, newPath);
+            break;
+        }
+    }
+
+    /** Deliver the held notifications in order and stop holding */
+    private void release() {
+        while (true) {
+            ArrayList<Held> held;
+            synchronized (this) {
+                held = mHeld;
+                if (held.isEmpty()) {
+                    mHeld = null;
+                    return;
+                }
+                mHeld = new ArrayList<Held>();
+            }
+            FileListener downstream = mDownstream;
+            for (int i = 0; downstream != null && i < held.size(); i++) {
+                Held notification = held.get(i);
+                send(downstream, notification.kind, notification.path, notification.newPath);
+            }
+        }
+    }
+
+    /**
+     * The attributes of {@code path} as of now, taken without the lock; null
+     * if it is gone already, a later notification says what became of it
+     */
+    private static long[] stat(String path) {
+        if (path == null) {
+            return null;
+        }
+        long[] attributes = new long[STRIDE];
+        return DirectoryScanner.stat(path, attributes) ? attributes : null;
+    }
+
+    /**
+     * Record that {@code path} exists with the attributes {@code stat}.
+     * Without them it has unknown attributes, or for a modification keeps
+     * the inode and the kind of an existing entry.
+     */
+    private synchronized void update(String path, boolean modified, long[] stat) {
+        int slash = path.lastIndexOf('/');
+        Node parent = slash < 0 ? null : directory(path.substring(0, slash), true);
+        if (parent == null) {
+            return;
+        }
+        changed(parent);
+        String name = path.substring(slash + 1);
+        int index = Arrays.binarySearch(parent.names, name);
+        if (index < 0) {
+            index = -index - 1;
+            insert(parent, index, name, UNKNOWN, UNKNOWN);
+        } else if (modified && stat == null) {
+            parent.attributes[index * STRIDE + SIZE] = UNKNOWN;
+            parent.attributes[index * STRIDE + MTIME] = UNKNOWN;
+            return;
+        }
+        if (stat != null) {
+            System.arraycopy(stat, 0, parent.attributes, index * STRIDE, STRIDE);
+        } else {
+            Arrays.fill(parent.attributes, index * STRIDE, index * STRIDE + STRIDE, UNKNOWN);
+        }
+    }
+
+    private synchronized void remove(String path) {
+        int slash = path.lastIndexOf('/');
+        Node parent = slash < 0 ? null : directory(path.substring(0, slash), false);
+        if (parent == null) {
+            return;
+        }
+        changed(parent);
+        String name = path.substring(slash + 1);
+        int index = Arrays.binarySearch(parent.names, name);
+        if (index >= 0) {
+            delete(parent, index);
+        }
+        Node child = parent.removeChild(name);
+        if (child != null) {
+            child.detached = true;
+        }
+    }
+
+    private synchronized void move(String oldPath, String newPath, long[] stat) {
+        if (oldPath == null) {
+            update(newPath, false, stat);
+            return;
+        }
+        int oldSlash = oldPath.lastIndexOf('/');
+        int newSlash = newPath.lastIndexOf('/');
+        Node from = oldSlash < 0 ? null : directory(oldPath.substring(0, oldSlash), false);
+        Node to = newSlash < 0 ? null : directory(newPath.substring(0, newSlash), true);
+        if (from == null || to == null) {
+            remove(oldPath);
+            update(newPath, false, stat);
+            return;
+        }
+        changed(from);
+        changed(to);
+        String oldName = oldPath.substring(oldSlash + 1);
+        String newName = newPath.substring(newSlash + 1);
+
+        long inode = UNKNOWN;
+        long type = UNKNOWN;
+        int index = Arrays.binarySearch(from.names, oldName);
+        if (index >= 0) {
+            inode = from.attributes[index * STRIDE + INODE];
+            type = from.attributes[index * STRIDE + TYPE];
+            delete(from, index);
+        }
+        Node child = from.removeChild(oldName);
+
+        index = Arrays.binarySearch(to.names, newName);
+        if (index >= 0) {
+            delete(to, index);
+        }
+        Node replaced = to.removeChild(newName);
+        if (replaced != null) {
+            replaced.detached = true;
+        }
+        index = -Arrays.binarySearch(to.names, newName) - 1;
+        insert(to, index, newName, inode, type);
+        if (stat != null) {
+            System.arraycopy(stat, 0, to.attributes, index * STRIDE, STRIDE);
+        }
+        if (child != null) {
+            child.name = newName;
+            to.putChild(child);
+            // the journal finds directories by path
+            changedBelow(child);
+        }
+    }
+
+    /**
+     * The node of the directory {@code path}, or null if it is outside the
+     * tree.  With {@code create} missing directories are added, with
+     * unknown attributes.
+     */
+    private Node directory(String path, boolean create) {
+        if (path.equals(mRootPath)) {
+            return mRoot;
+        }
+        int start = mRootPath.endsWith("/") ? mRootPath.length() : mRootPath.length() + 1;
+        if (!mRecursive || path.length() < start || !path.startsWith(mRootPath)
+                || path.charAt(start - 1) != '/') {
+            return null;
+        }
+        Node node = mRoot;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            String name = path.substring(start, end);
+            Node child = node.child(name);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node(node, name);
+                node.putChild(child);
+                int index = Arrays.binarySearch(node.names, name);
+                if (index < 0) {
+                    insert(node, -index - 1, name, UNKNOWN, DIRECTORY);
+                    changed(node);
+                }
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /** Note a change of the entries of {@code node} for the index file, called with the lock held */
+    private void changed(Node node) {
+        mDirty = true;
+        if (mIndexFile == null) {
+            return;
+        }
+        mDirtyNodes.add(node);
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        flusher().schedule(mFlush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Note that {@code node} and everything below it moved, called with the lock held */
+    private void changedBelow(Node node) {
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nodes.add(node);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node next = nodes.get(i);
+            changed(next);
+            if (next.children != null) {
+                nodes.addAll(next.children.values());
+            }
+        }
+    }
+
+    /**
+     * Write what changed since the last write.  Usually that appends the
+     * entries of each changed directory to the journal; once the journal
+     * outgrew the index, or could not be written, the whole snapshot is
+     * written as a new index instead and the journal starts over.  The
+     * changes are collected under the lock, the files are written without
+     * it.
+     */
+    void save() {
+        if (mIndexFile == null) {
+            return;
+        }
+        synchronized (mScanLock) {
+            boolean compact;
+            ArrayList<String[]> names = new ArrayList<String[]>();
+            ArrayList<long[]> attributes = new ArrayList<long[]>();
+            int[] nameEntries = null;
+            int entries = 0;
+            ArrayList<Record> records = new ArrayList<Record>();
+            synchronized (this) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                compact = mCompact || mJournalBytes > Math.max(COMPACT_MIN_BYTES, mIndexBytes);
+                mCompact = false;
+                if (compact) {
+                    nameEntries = collect(names, attributes);
+                    for (int i = 0; i < names.size(); i++) {
+                        entries += names.get(i).length;
+                    }
+                } else {
+                    for (Node node : mDirtyNodes) {
+                        if (node.attached()) {
+                            // names are replaced, never changed; attributes are changed in place
+                            records.add(new Record(relativePath(node), node.names,
+                                    node.attributes.clone()));
+                        }
+                    }
+                }
+                mDirtyNodes.clear();
+            }
+
+            try {
+                if (compact) {
+                    write(names, attributes, nameEntries, entries);
+                } else {
+                    append(records);
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "can not write " + (compact ? mIndexFile : mJournalFile), e);
+                synchronized (this) {
+                    // the changes not written are not known any more
+                    mDirty = true;
+                    mCompact = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held: the entries of every directory, breadth
+     * first so every directory comes after its parent.
+     *
+     * @return per directory, the entry naming it in its parent
+     */
+    private int[] collect(ArrayList<String[]> names, ArrayList<long[]> attributes) {
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        ArrayList<Integer> nameEntryList = new ArrayList<Integer>();
+        nodes.add(mRoot);
+        nameEntryList.add(-1);
+        int entries = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            names.add(node.names);
+            attributes.add(node.attributes);
+            if (node.children != null) {
+                for (Node child : node.children.values()) {
+                    int index = Arrays.binarySearch(node.names, child.name);
+                    if (index >= 0) {
+                        nodes.add(child);
+                        nameEntryList.add(entries + index);
+                    }
+                }
+            }
+            entries += node.names.length;
+        }
+        int[] nameEntries = new int[nameEntryList.size()];
+        for (int i = 0; i < nameEntries.length; i++) {
+            nameEntries[i] = nameEntryList.get(i);
+        }
+        return nameEntries;
+    }
+
+    /** Write a new index, then empty the journal; a crash in between leaves a journal of the old one */
+    private void write(ArrayList<String[]> names, ArrayList<long[]> attributes,
+            int[] nameEntries, int entries) throws IOException {
+        int generation = mGeneration + 1;
+        byte[] root = mRootPath.getBytes(UTF_8);
+        byte[][] encoded = new byte[entries][];
+        int heap = 0;
+        for (int d = 0, e = 0; d < names.size(); d++) {
+            String[] directory = names.get(d);
+            for (int i = 0; i < directory.length; i++, e++) {
+                encoded[e] = directory[i].getBytes(UTF_8);
+                heap += encoded[e].length;
+            }
+        }
+        int directories = names.size();
+        long size = 4L * 8 + root.length + 12L * directories + 4L * (entries + 1)
+                + 25L * entries + heap;
+
+        File temp = new File(mIndexFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(mRecursive ? 1 : 0);
+            buffer.putInt(generation);
+            buffer.putInt(root.length).put(root);
+            buffer.putInt(directories).putInt(entries).putInt(heap);
+            for (int d = 0, first = 0; d < directories; d++) {
+                int count = names.get(d).length;
+                buffer.putInt(first).putInt(count).putInt(nameEntries[d]);
+                first += count;
+            }
+            int offset = 0;
+            for (int e = 0; e < entries; e++) {
+                buffer.putInt(offset);
+                offset += encoded[e].length;
+            }
+            buffer.putInt(offset);
+            for (int column = INODE; column <= MTIME; column++) {
+                for (int d = 0; d < directories; d++) {
+                    long[] values = attributes.get(d);
+                    for (int k = column; k < values.length; k += STRIDE) {
+                        buffer.putLong(values[k]);
+                    }
+                }
+            }
+            for (int d = 0; d < directories; d++) {
+                long[] values = attributes.get(d);
+                for (int k = TYPE; k < values.length; k += STRIDE) {
+                    buffer.put((byte) values[k]);
+                }
+            }
+            for (int e = 0; e < entries; e++) {
+                buffer.put(encoded[e]);
+            }
+            buffer.force();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(mIndexFile)) {
+            throw new IOException("can not rename " + temp);
+        }
+        mGeneration = generation;
+        mIndexBytes = size;
+
+        RandomAccessFile journal = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            journal.setLength(0);
+            journal.writeInt(JOURNAL_MAGIC);
+            journal.writeInt(INDEX_VERSION);
+            journal.writeInt(generation);
+            journal.getFD().sync();
+        } finally {
+            journal.close();
+        }
+        mJournalBytes = JOURNAL_HEADER_BYTES;
+    }
+
+    /**
+     * Append one record per directory to the journal: its length and CRC,
+     * then the path below the root and every entry with its attributes.
+     */
+    private void append(ArrayList<Record> records) throws IOException {
+        Collections.sort(records, PARENTS_FIRST);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(payload);
+        CRC32 crc = new CRC32();
+        for (int r = 0; r < records.size(); r++) {
+            Record directory = records.get(r);
+            payload.reset();
+            writeName(record, directory.path);
+            record.writeInt(directory.names.length);
+            for (int i = 0; i < directory.names.length; i++) {
+                writeName(record, directory.names[i]);
+                int entry = i * STRIDE;
+                record.writeLong(directory.attributes[entry + INODE]);
+                record.writeLong(directory.attributes[entry + SIZE]);
+                record.writeLong(directory.attributes[entry + MTIME]);
+                record.writeByte((int) directory.attributes[entry + TYPE]);
+            }
+            crc.reset();
+            crc.update(payload.toByteArray(), 0, payload.size());
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+        }
+        out.flush();
+
+        FileOutputStream journal = new FileOutputStream(mJournalFile, true);
+        try {
+            bytes.writeTo(journal);
+            journal.getFD().sync();
+        } finally {
+            journal.close();
+        }
+        mJournalBytes += bytes.size();
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /** The path of {@code node} below the root, empty for the root */
+    private String relativePath(Node node) {
+        if (node == mRoot) {
+            return "";
+        }
+        return node.path().substring(mRootPath.endsWith("/") ? mRootPath.length() : mRootPath.length() + 1);
+    }
+
+    /**
+     * Map the index file and rebuild the nodes from it, then replay the
+     * journal over them.
+     *
+     * @return false if there is no usable index of this tree
+     */
+    private boolean load() {
+        if (!mIndexFile.isFile()) {
+            return false;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(mIndexFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!read(buffer)) {
+                    Log.i(LOG_TAG, mIndexFile + " is not an index of " + mRootPath);
+                    return false;
+                }
+                mIndexBytes = channel.size();
+                replay();
+                mBuilt = true;
+                return true;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "can not read " + mIndexFile, e);
+        } catch (RuntimeException e) {
+            // truncated or corrupt, bounds checks of the buffer caught it
+            Log.w(LOG_TAG, "corrupt index " + mIndexFile, e);
+        }
+        synchronized (this) {
+            mRoot.names = NO_NAMES;
+            mRoot.attributes = NO_ATTRIBUTES;
+            mRoot.children = null;
+        }
+        return false;
+    }
+
+    private boolean read(ByteBuffer buffer) {
+        if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION
+                || buffer.getInt() != (mRecursive ? 1 : 0)) {
+            return false;
+        }
+        int generation = buffer.getInt();
+        byte[] root = new byte[buffer.getInt()];
+        buffer.get(root);
+        if (!mRootPath.equals(new String(root, UTF_8))) {
+            return false;
+        }
+        int directories = buffer.getInt();
+        int entries = buffer.getInt();
+        byte[] heap = new byte[buffer.getInt()];
+        int[] table = new int[directories * 3];
+        buffer.asIntBuffer().get(table);
+        buffer.position(buffer.position() + table.length * 4);
+        int[] offsets = new int[entries + 1];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + offsets.length * 4);
+        int columns = buffer.position();
+        buffer.position(columns + 25 * entries);
+        buffer.get(heap);
+
+        Node[] nodes = new Node[directories];
+        int[] owner = new int[entries];
+        synchronized (this) {
+            for (int d = 0; d < directories; d++) {
+                int first = table[d * 3];
+                int count = table[d * 3 + 1];
+                int nameEntry = table[d * 3 + 2];
+                Node node;
+                if (d == 0) {
+                    node = mRoot;
+                } else {
+                    Node parent = nodes[owner[nameEntry]];
+                    int nameStart = offsets[nameEntry];
+                    node = new Node(parent, new String(heap, nameStart,
+                            offsets[nameEntry + 1] - nameStart, UTF_8));
+                    parent.putChild(node);
+                }
+                String[] names = new String[count];
+                long[] attributes = new long[count * STRIDE];
+                for (int i = 0; i < count; i++) {
+                    int e = first + i;
+                    owner[e] = d;
+                    names[i] = new String(heap, offsets[e], offsets[e + 1] - offsets[e], UTF_8);
+                    attributes[i * STRIDE + INODE] = buffer.getLong(columns + 8 * e);
+                    attributes[i * STRIDE + SIZE] = buffer.getLong(columns + 8 * (entries + e));
+                    attributes[i * STRIDE + MTIME] = buffer.getLong(columns + 8 * (2 * entries + e));
+                    attributes[i * STRIDE + TYPE] = buffer.get(columns + 24 * entries + e);
+                }
+                node.names = names;
+                node.attributes = attributes;
+                nodes[d] = node;
+            }
+        }
+        mGeneration = generation;
+        return true;
+    }
+
+    /**
+     * Apply the journal records of the index just read, up to the first
+     * one torn or corrupt.  A journal which does not belong to the index,
+     * or ends in a bad record, is replaced by the next save.
+     */
+    private void replay() throws IOException {
+        long valid = 0;
+        boolean complete = false;
+        if (mJournalFile.isFile()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mJournalFile)));
+            try {
+                if (in.readInt() == JOURNAL_MAGIC && in.readInt() == INDEX_VERSION
+                        && in.readInt() == mGeneration) {
+                    valid = JOURNAL_HEADER_BYTES;
+                    CRC32 crc = new CRC32();
+                    while (true) {
+                        int length;
+                        try {
+                            length = in.readInt();
+                        } catch (EOFException e) {
+                            complete = true;
+                            break;
+                        }
+                        int checksum = in.readInt();
+                        if (length < 0 || length > mJournalFile.length()) {
+                            break;
+                        }
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        crc.reset();
+                        crc.update(payload, 0, length);
+                        if ((int) crc.getValue() != checksum) {
+                            break;
+                        }
+                        apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                        valid += 8 + length;
+                    }
+                }
+            } catch (EOFException e) {
+                // torn by a crash while appending
+            } finally {
+                in.close();
+            }
+        }
+        synchronized (this) {
+            // what was replayed is on disk already
+            mDirtyNodes.clear();
+            mDirty = !complete;
+            mCompact = !complete;
+        }
+        mJournalBytes = valid;
+    }
+
+    /** Replace the entries of the directory of one journal record */
+    private void apply(DataInputStream in) throws IOException {
+        String path = readName(in);
+        int count = in.readInt();
+        String[] names = new String[count];
+        long[] attributes = new long[count * STRIDE];
+        for (int i = 0; i < count; i++) {
+            names[i] = readName(in);
+            int entry = i * STRIDE;
+            attributes[entry + INODE] = in.readLong();
+            attributes[entry + SIZE] = in.readLong();
+            attributes[entry + MTIME] = in.readLong();
+            attributes[entry + TYPE] = in.readByte();
+        }
+        synchronized (this) {
+            Node node = directory(path.length() == 0 ? mRootPath : join(mRootPath, path), true);
+            if (node == null) {
+                return;
+            }
+            node.names = names;
+            node.attributes = attributes;
+            if (node.children == null) {
+                return;
+            }
+            // the subdirectories gone meanwhile
+            Node[] children = node.children.values().toArray(new Node[node.children.size()]);
+            for (int i = 0; i < children.length; i++) {
+                if (Arrays.binarySearch(names, children[i].name) < 0) {
+                    node.removeChild(children[i].name);
+                    children[i].detached = true;
+                }
+            }
+        }
+    }
+
+    private static void insert(Node node, int index, String name, long inode, long type) {
+        int count = node.names.length;
+        String[] names = new String[count + 1];
+        long[] attributes = new long[(count + 1) * STRIDE];
+        System.arraycopy(node.names, 0, names, 0, index);
+        System.arraycopy(node.names, index, names, index + 1, count - index);
+        System.arraycopy(node.attributes, 0, attributes, 0, index * STRIDE);
+        System.arraycopy(node.attributes, index * STRIDE, attributes, (index + 1) * STRIDE,
+                (count - index) * STRIDE);
+        names[index] = name;
+        int entry = index * STRIDE;
+        attributes[entry + INODE] = inode;
+        attributes[entry + SIZE] = UNKNOWN;
+        attributes[entry + MTIME] = UNKNOWN;
+        attributes[entry + TYPE] = type;
+        node.names = names;
+        node.attributes = attributes;
+    }
+
+    private static void delete(Node node, int index) {
+        int count = node.names.length;
+        String[] names = new String[count - 1];
+        long[] attributes = new long[(count - 1) * STRIDE];
+        System.arraycopy(node.names, 0, names, 0, index);
+        System.arraycopy(node.names, index + 1, names, index, count - index - 1);
+        System.arraycopy(node.attributes, 0, attributes, 0, index * STRIDE);
+        System.arraycopy(node.attributes, (index + 1) * STRIDE, attributes, index * STRIDE,
+                (count - index - 1) * STRIDE);
+        node.names = names;
+        node.attributes = attributes;
+    }
+
+    private static String join(String directory, String name) {
+        return directory.endsWith("/") ? directory + name : directory + "/" + name;
+    }
+
+    /** Quicksort the names, moving each entry's attributes along */
+    static void sort(String[] names, long[] attributes, int low, int high) {
+        while (low < high) {
+            String pivot = names[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (names[i].compareTo(pivot) < 0) {
+                    i++;
+                }
+                while (names[j].compareTo(pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(names, attributes, i++, j--);
+                }
+            }
+            // recurse into the smaller half, loop over the larger one
+            if (j - low < high - i) {
+                sort(names, attributes, low, j);
+                low = i;
+            } else {
+                sort(names, attributes, i, high);
+                high = j;
+            }
+        }
+    }
+
+    private static void swap(String[] names, long[] attributes, int a, int b) {
+        String name = names[a];
+        names[a] = names[b];
+        names[b] = name;
+        for (int k = 0; k < STRIDE; k++) {
+            long value = attributes[a * STRIDE + k];
+            attributes[a * STRIDE + k] = attributes[b * STRIDE + k];
+            attributes[b * STRIDE + k] = value;
+        }
+    }
+
+    /**
+     * Every entry of {@code path} with its lstat() data, see
+     * fileobserver_jni.cpp.  {@code attributes[0]} receives {@link #STRIDE}
+     * values per returned name.
+     *
+     * @return the names, or null if the directory can not be read
+     */
+    static native String[] scanDirectory(String path, long[][] attributes);
+
+    /**
+     * The lstat() data of {@code path}, {@link #STRIDE} values laid out as by
+     * {@link #scanDirectory(String, long[][])}.
+     *
+     * @return false if {@code path} can not be stat'ed
+     */
+    static native boolean statFile(String path, long[] attributes);
+}
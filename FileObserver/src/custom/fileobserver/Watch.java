@@ -0,0 +1,192 @@
+package custom.fileobserver;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * One kernel watch, and the node for its directory in the tree of watched
+ * directories.
+ *
+ * <p>A node only knows its own name and its parent; the root of a tree holds
+ * the absolute path it was registered with.  Paths are built on demand from
+ * the chain of parents and cached per node.  A cached path stays valid as
+ * long as the node's location and its parent's path String are the same
+ * objects, so moving a directory is a single {@link #moveTo(Watch, String)}
+ * and every path below it is rebuilt lazily the next time it is asked for.</p>
+ *
+ * <p>A directory the {@link WatchBudget} had no room for still has its node,
+ * with the descriptor {@link #POLLED}, and is covered by a
+ * {@link WatchPoller}.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class Watch {
+    /** Parent and name, swapped as one so readers never see half a move */
+    private static final class Location {
+        final Watch parent;
+        final String name;
+
+        Location(Watch parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private static final class CachedPath {
+        final Location location;
+        final String parentPath;
+        final String path;
+
+        CachedPath(Location location, String parentPath, String path) {
+            this.location = location;
+            this.parentPath = parentPath;
+            this.path = path;
+        }
+    }
+
+    /** The descriptor of a directory without a kernel watch */
+    static final int POLLED = -1;
+
+    final int wd;
+    final WeakReference<FileObserver> observer;
+    /** When the last event came, on the clock of the reader thread; written by it only */
+    long activeMillis;
+    /** The node of another observer sharing the kernel watch, see {@link WatchTable} */
+    volatile Watch nextShared;
+    private volatile Location mLocation;
+    private volatile CachedPath mCachedPath;
+    /** guarded by this */
+    private HashMap<String, Watch> mChildren;
+
+    /** A root watch on {@code path} */
+    Watch(int wd, FileObserver observer, String path) {
+        this(wd, observer, null, path);
+    }
+
+    /** A watch on the directory {@code name} inside {@code parent} */
+    Watch(int wd, FileObserver observer, Watch parent, String name) {
+        this.wd = wd;
+        this.observer = new WeakReference<FileObserver>(observer);
+        mLocation = new Location(parent, name);
+        if (parent != null) {
+            parent.putChild(name, this);
+        }
+    }
+
+    Watch parent() {
+        return mLocation.parent;
+    }
+
+    String name() {
+        return mLocation.name;
+    }
+
+    /** How many levels below the root of its tree the directory is */
+    int depth() {
+        int depth = 0;
+        for (Watch parent = parent(); parent != null; parent = parent.parent()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /** The absolute path of the watched directory */
+    String path() {
+        Location location = mLocation;
+        if (location.parent == null) {
+            return location.name;
+        }
+        String parentPath = location.parent.path();
+        CachedPath cached = mCachedPath;
+        if (cached != null && cached.location == location && cached.parentPath == parentPath) {
+            return cached.path;
+        }
+        String path = parentPath.endsWith("/") ? parentPath + location.name
+                : parentPath + "/" + location.name;
+        mCachedPath = new CachedPath(location, parentPath, path);
+        return path;
+    }
+
+    /** The watched subdirectory {@code name}, or null */
+    synchronized Watch child(String name) {
+        return mChildren == null ? null : mChildren.get(name);
+    }
+
+    /** The watched subdirectories */
+    synchronized Watch[] children() {
+        if (mChildren == null) {
+            return new Watch[0];
+        }
+        return mChildren.values().toArray(new Watch[mChildren.size()]);
+    }
+
+    private synchronized void putChild(String name, Watch child) {
+        if (mChildren == null) {
+            mChildren = new HashMap<String, Watch>();
+        }
+        mChildren.put(name, child);
+    }
+
+    private synchronized void removeChild(String name, Watch child) {
+        if (mChildren != null && mChildren.get(name) == child) {
+            mChildren.remove(name);
+        }
+    }
+
+    /**
+     * The directory was renamed or moved to {@code name} inside
+     * {@code parent}.  Nothing below it is touched.
+     */
+    void moveTo(Watch parent, String name) {
+        Location old = mLocation;
+        if (old.parent != null) {
+            old.parent.removeChild(old.name, this);
+        }
+        mLocation = new Location(parent, name);
+        if (parent != null) {
+            parent.putChild(name, this);
+        }
+    }
+
+    boolean isPolled() {
+        return wd == POLLED;
+    }
+
+    /**
+     * A node with another descriptor for the same directory, which takes
+     * over the place and the children of this one.
+     */
+    Watch replace(int wd, FileObserver observer) {
+        Location location = mLocation;
+        Watch replacement = new Watch(wd, observer, location.parent, location.name);
+        replacement.activeMillis = activeMillis;
+        Watch[] children = children();
+        for (int i = 0; i < children.length; i++) {
+            children[i].moveTo(replacement, children[i].name());
+        }
+        return replacement;
+    }
+
+    /** Unlink the node from its parent */
+    void detach() {
+        Location location = mLocation;
+        if (location.parent != null) {
+            location.parent.removeChild(location.name, this);
+        }
+    }
+
+    /** This node and everything below it */
+    ArrayList<Watch> subtree() {
+        ArrayList<Watch> nodes = new ArrayList<Watch>();
+        nodes.add(this);
+        for (int i = 0; i < nodes.size(); i++) {
+            Watch[] children = nodes.get(i).children();
+            for (int j = 0; j < children.length; j++) {
+                nodes.add(children[j]);
+            }
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,132 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps count of the inotify watches this process holds against the kernel
+ * limit, so a tree too big for it is partly polled instead of partly
+ * missing.
+ *
+ * <p>The limit is per user and read once from {@value #MAX_USER_WATCHES}.
+ * By default the process takes at most {@value #DEFAULT_SHARE_PERCENT}% of
+ * it; {@link FileObserver#setWatchBudget(int)} sets another figure.  Watches
+ * are reserved before they are added and given back when they go.  An add
+ * which still fails with ENOSPC, because other processes of the same user
+ * hold the rest, caps the budget at what is in use for
+ * {@value #CEILING_MILLIS} ms.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class WatchBudget {
+    private static final String LOG_TAG = "WatchBudget";
+    static final String MAX_USER_WATCHES = "/proc/sys/fs/inotify/max_user_watches";
+    /** The kernel default, assumed when the limit can't be read */
+    private static final int DEFAULT_LIMIT = 8192;
+    static final int DEFAULT_SHARE_PERCENT = 90;
+    /** How long a cap found through ENOSPC holds before adds are tried again */
+    static final long CEILING_MILLIS = 60000;
+
+    private static final AtomicInteger sUsed = new AtomicInteger();
+    /** 0 until read */
+    private static volatile int sLimit;
+    /** 0 for the default share of the limit */
+    private static volatile int sBudget;
+    private static volatile int sCeiling = Integer.MAX_VALUE;
+    private static volatile long sCeilingMillis;
+
+    private WatchBudget() {
+    }
+
+    /** max_user_watches */
+    static int kernelLimit() {
+        int limit = sLimit;
+        if (limit == 0) {
+            limit = DEFAULT_LIMIT;
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(MAX_USER_WATCHES));
+                limit = Integer.parseInt(reader.readLine().trim());
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "can not read " + MAX_USER_WATCHES + ", assuming " + limit);
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "can not parse " + MAX_USER_WATCHES + ", assuming " + limit);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+            sLimit = limit;
+        }
+        return limit;
+    }
+
+    /** @param watches the most watches to hold, 0 or less for the default share */
+    static void setBudget(int watches) {
+        sBudget = watches;
+    }
+
+    /** The most watches the process may hold right now */
+    static int budget() {
+        int budget = sBudget;
+        if (budget <= 0) {
+            budget = (int) ((long) kernelLimit() * DEFAULT_SHARE_PERCENT / 100);
+        }
+        int ceiling = sCeiling;
+        if (ceiling != Integer.MAX_VALUE
+                && System.nanoTime() / 1000000 - sCeilingMillis >= CEILING_MILLIS) {
+            sCeiling = ceiling = Integer.MAX_VALUE;
+        }
+        return Math.min(budget, ceiling);
+    }
+
+    static int used() {
+        return sUsed.get();
+    }
+
+    /**
+     * Reserve room for up to {@code wanted} watches.
+     *
+     * @return how many may be added, give back the ones which failed
+     */
+    static int reserve(int wanted) {
+        while (true) {
+            int used = sUsed.get();
+            int granted = Math.min(wanted, Math.max(0, budget() - used));
+            if (granted == 0 || sUsed.compareAndSet(used, used + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    /** Count watches which were added without a reservation */
+    static void take(int count) {
+        sUsed.addAndGet(count);
+    }
+
+    /** Give back watches removed or never added */
+    static void release(int count) {
+        if (count > 0) {
+            sUsed.addAndGet(-count);
+        }
+    }
+
+    /** The kernel refused an add with ENOSPC although the budget had room */
+    static void exhausted() {
+        if (sCeiling == Integer.MAX_VALUE) {
+            Log.w(LOG_TAG, "inotify watches exhausted at " + sUsed.get() + " of "
+                    + kernelLimit() + ", polling the rest");
+        }
+        sCeilingMillis = System.nanoTime() / 1000000;
+        sCeiling = sUsed.get();
+    }
+}
@@ -0,0 +1,216 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * How much of its tree an observer covers while the watches are registered,
+ * and a future completing with itself once the registration is done.
+ *
+ * <p>{@link FileObserver#startWatching()} watches the root and its
+ * subdirectories at once and registers the levels below breadth first in
+ * the background.  Events flow for every directory as soon as it is
+ * covered, so the counts here can be read at any time for a partial
+ * picture; {@link #getCoveredDepth()} tells down to which level nothing is
+ * missing yet.</p>
+ *
+ * <p>The registration ends early when watching stops or the coverage is
+ * cancelled; the counts then keep what was covered.  If the root can not be
+ * watched at all, {@link #get()} throws an {@link ExecutionException}.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+public final class WatchCoverage implements Future<WatchCoverage> {
+    private static final String LOG_TAG = "WatchCoverage";
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+    private static final int FAILED = 3;
+
+    private final long mStartNanos = System.nanoTime();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile int mWatched;
+    private volatile int mPolled;
+    private volatile int mPending;
+    private volatile int mCoveredDepth = -1;
+    private volatile long mEndNanos;
+    /** guarded by this */
+    private int mState = RUNNING;
+    /** guarded by this */
+    private Throwable mFailure;
+    /** guarded by this, null once done */
+    private ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+    /** guarded by this */
+    private ProgressiveCrawler mCrawler;
+
+    WatchCoverage() {
+    }
+
+    /** Directories with a kernel watch, the root included */
+    public int getWatchedDirectories() {
+        return mWatched;
+    }
+
+    /** Directories polled for lack of watches, see {@link FileObserver#setWatchBudget(int)} */
+    public int getPolledDirectories() {
+        return mPolled;
+    }
+
+    /** Directories whose subdirectories are not covered yet */
+    public int getPendingDirectories() {
+        return mPending;
+    }
+
+    /**
+     * How many levels below the root every directory is covered: 0 for the
+     * root alone, -1 before the root is watched.
+     */
+    public int getCoveredDepth() {
+        return mCoveredDepth;
+    }
+
+    /** Since watching started, or how long the registration took once it is done */
+    public long getElapsedMillis() {
+        long end = mEndNanos;
+        return ((end != 0 ? end : System.nanoTime()) - mStartNanos) / 1000000;
+    }
+
+    /**
+     * Run {@code listener} on {@code executor} once the registration is done,
+     * or right away if it is.
+     */
+    public void addListener(Runnable listener, Executor executor) {
+        final Runnable task = listener;
+        final Executor target = executor;
+        Runnable run = new Runnable() {
+            public void run() {
+                try {
+                    target.execute(task);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "listener rejected by " + target, e);
+                }
+            }
+        };
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(run);
+                return;
+            }
+        }
+        run.run();
+    }
+
+    /**
+     * Stop registering the rest of the tree.  What is covered already stays
+     * watched until {@link FileObserver#stopWatching()}.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        ProgressiveCrawler crawler;
+        synchronized (this) {
+            crawler = mCrawler;
+        }
+        if (!finish(CANCELLED, null)) {
+            return false;
+        }
+        if (crawler != null) {
+            crawler.cancel(false);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    public WatchCoverage get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    public WatchCoverage get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException(toString());
+        }
+        return result();
+    }
+
+    private synchronized WatchCoverage result() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException(toString());
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mFailure);
+        }
+        return this;
+    }
+
+    /** The crawl working on this coverage, cancelled along with it */
+    void attach(ProgressiveCrawler crawler) {
+        synchronized (this) {
+            mCrawler = crawler;
+            if (mState != CANCELLED) {
+                return;
+            }
+        }
+        crawler.cancel(false);
+    }
+
+    void update(int watched, int polled, int pending, int coveredDepth) {
+        mWatched = watched;
+        mPolled = polled;
+        mPending = pending;
+        mCoveredDepth = coveredDepth;
+    }
+
+    /** The registration ended, by itself or because it was stopped */
+    void done(boolean cancelled) {
+        finish(cancelled ? CANCELLED : DONE, null);
+    }
+
+    /** The root could not be watched */
+    void fail(Throwable failure) {
+        finish(FAILED, failure);
+    }
+
+    /** @return false if it was done already */
+    private boolean finish(int state, Throwable failure) {
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mState != RUNNING) {
+                return false;
+            }
+            mState = state;
+            mFailure = failure;
+            mCrawler = null;
+            listeners = mListeners;
+            mListeners = null;
+        }
+        mEndNanos = System.nanoTime();
+        mDone.countDown();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).run();
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "WatchCoverage(watched=" + mWatched + ", polled=" + mPolled
+                + ", pending=" + mPending + ", depth=" + mCoveredDepth
+                + ", " + getElapsedMillis() + "ms" + (isDone() ? ", done)" : ")");
+    }
+}
@@ -0,0 +1,99 @@
+package custom.fileobserver;
+
+/**
+ * The watch descriptors registered on behalf of one {@link FileObserver}, so
+ * that stopping it only touches its own watches.  Filled concurrently by the
+ * crawler threads, and emptied as the watches go, so it only ever holds the
+ * live ones.
+ *
+ * <p>An open addressed set of ints with linear probing; removal shifts the
+ * following entries back instead of leaving tombstones.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class WatchIndex {
+    private static final int FREE = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Watch descriptors are positive, so {@link #FREE} marks an empty slot */
+    private int[] mWatchDescriptors = new int[INITIAL_CAPACITY];
+    private int mCount;
+
+    synchronized void add(int wd) {
+        int i = indexOf(mWatchDescriptors, wd);
+        if (mWatchDescriptors[i] == wd) {
+            return;
+        }
+        if ((mCount + 1) * 2 > mWatchDescriptors.length) {
+            rehash(mWatchDescriptors.length * 2);
+            i = indexOf(mWatchDescriptors, wd);
+        }
+        mWatchDescriptors[i] = wd;
+        mCount++;
+    }
+
+    synchronized void remove(int wd) {
+        int[] wds = mWatchDescriptors;
+        int i = indexOf(wds, wd);
+        if (wds[i] != wd) {
+            return;
+        }
+        int mask = wds.length - 1;
+        // move back the entries which probed past the freed slot
+        for (int next = (i + 1) & mask; wds[next] != FREE; next = (next + 1) & mask) {
+            int home = slot(wds[next], mask);
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                wds[i] = wds[next];
+                i = next;
+            }
+        }
+        wds[i] = FREE;
+        mCount--;
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /** Hand out all descriptors and start over empty */
+    synchronized int[] drain() {
+        int[] wds = new int[mCount];
+        int count = 0;
+        for (int i = 0; i < mWatchDescriptors.length; i++) {
+            if (mWatchDescriptors[i] != FREE) {
+                wds[count++] = mWatchDescriptors[i];
+            }
+        }
+        mCount = 0;
+        mWatchDescriptors = new int[INITIAL_CAPACITY];
+        return wds;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = mWatchDescriptors;
+        int[] wds = new int[capacity];
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != FREE) {
+                wds[indexOf(wds, old[i])] = old[i];
+            }
+        }
+        mWatchDescriptors = wds;
+    }
+
+    /** The slot holding {@code wd}, or the free slot where it belongs */
+    private static int indexOf(int[] wds, int wd) {
+        int mask = wds.length - 1;
+        int i = slot(wd, mask);
+        while (wds[i] != FREE && wds[i] != wd) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int slot(int wd, int mask) {
+        // descriptors are handed out in sequence, spread them anyway
+        int hash = wd * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+}
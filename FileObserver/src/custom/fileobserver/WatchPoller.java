@@ -0,0 +1,432 @@
+package custom.fileobserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Covers the directories of a tree which have no kernel watch, because the
+ * {@link WatchBudget} ran out or because there is no native library at all.
+ *
+ * <p>Each polled directory keeps its entries as one sorted String[] and one
+ * packed long[] of inode, size, mtime and type, as {@link TreeSnapshot}
+ * does.  A poll lists and stats the directory through
+ * {@link DirectoryScanner} and diffs it against that: entries which vanished
+ * and appeared with the same inode are a rename, the rest creations,
+ * deletions and, for files whose inode, size or mtime changed, a completed
+ * write.  Without inodes a file which vanished and one which appeared with
+ * the same size and mtime are taken for a rename.  The changes come out as
+ * the events inotify would have sent.</p>
+ *
+ * <p>The interval of a directory starts at {@value #MIN_INTERVAL_MILLIS} ms
+ * and doubles after every quiet poll up to {@value #MAX_INTERVAL_MILLIS} ms;
+ * a change brings it back down.  A directory which keeps changing is hot and
+ * offered for a real watch.  Polls run on the reader thread between reads,
+ * most due first, for at most {@value #PASS_MILLIS} ms per housekeeping, so
+ * the events of polled and watched directories reach an observer on the same
+ * thread.  The directories due together are scanned in parallel, up to
+ * {@value #BATCH} at a time, on a small pool of the poller's own: the reader
+ * thread waits for those scans, so they must not queue behind the crawls of
+ * new subtrees on the {@link DirectoryCrawler} pool.  Only the diffs and the
+ * events stay on the polling thread.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+abstract class WatchPoller {
+    static final long MIN_INTERVAL_MILLIS = 2000;
+    static final long MAX_INTERVAL_MILLIS = 64000;
+    /** Reader thread time one housekeeping may spend polling */
+    static final long PASS_MILLIS = 50;
+    /** Changed polls, less one per quiet poll, which make a directory hot */
+    static final int PROMOTE_HEAT = 3;
+    /** Most directories scanned together */
+    static final int BATCH = 32;
+    /** Most threads scanning one batch, the polling thread included */
+    static final int THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final int STRIDE = DirectoryScanner.STRIDE;
+    private static final int INODE = DirectoryScanner.INODE;
+    private static final int SIZE = DirectoryScanner.SIZE;
+    private static final int MTIME = DirectoryScanner.MTIME;
+    private static final int TYPE = DirectoryScanner.TYPE;
+    private static final long DIRECTORY = DirectoryScanner.DIRECTORY;
+    private static final String[] NO_NAMES = new String[0];
+    private static final long[] NO_ATTRIBUTES = new long[0];
+
+    private static final class Polled {
+        final Watch watch;
+        /** null until the first poll took the baseline */
+        String[] names;
+        long[] attributes;
+        long dueMillis;
+        long intervalMillis = MIN_INTERVAL_MILLIS;
+        int heat;
+        boolean removed;
+        /** The listing of the current poll, null if the directory is gone */
+        String[] scannedNames;
+        long[] scannedAttributes;
+
+        Polled(Watch watch, long dueMillis) {
+            this.watch = watch;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    private static ThreadPoolExecutor sPool;
+
+    /** The scan threads, shared by the pollers of all shards */
+    private static synchronized ThreadPoolExecutor pool() {
+        if (sPool == null) {
+            int threads = THREADS - 1;
+            sPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "WatchPoller #" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /** guarded by this */
+    private final PriorityQueue<Polled> mQueue = new PriorityQueue<Polled>(16,
+            new Comparator<Polled>() {
+                public int compare(Polled a, Polled b) {
+                    return a.dueMillis < b.dueMillis ? -1 : a.dueMillis == b.dueMillis ? 0 : 1;
+                }
+            });
+    /** guarded by this */
+    private final HashMap<Watch, Polled> mPolled = new HashMap<Watch, Polled>();
+    /** Synthetic rename cookies, kept clear of the small kernel ones; reader thread only */
+    private int mNextCookie = 0x40000000;
+
+    /** A change found in {@code directory}, called on the polling thread */
+    protected abstract void onChange(Watch directory, int mask, int cookie, String name);
+
+    /** {@code directory} is gone from disk and no longer polled */
+    protected abstract void onGone(Watch directory);
+
+    /**
+     * {@code directory} keeps changing.
+     *
+     * @return true if it is watched from now on and leaves the poller
+     */
+    protected abstract boolean onHot(Watch directory);
+
+    /**
+     * Poll {@code directory} from the next housekeeping on.
+     *
+     * @param fresh true for a directory created while watching, whose
+     *     entries are all reported at the first poll; otherwise the first
+     *     poll only takes the baseline
+     */
+    synchronized void add(Watch directory, boolean fresh, long nowMillis) {
+        Polled polled = new Polled(directory, nowMillis);
+        if (fresh) {
+            polled.names = NO_NAMES;
+            polled.attributes = NO_ATTRIBUTES;
+        }
+        put(polled);
+    }
+
+    /**
+     * Poll {@code directory} with a baseline already taken by
+     * {@link DirectoryScanner#scan(String, long[][])}.
+     */
+    synchronized void add(Watch directory, String[] names, long[] attributes, long nowMillis) {
+        Polled polled = new Polled(directory, nowMillis + MIN_INTERVAL_MILLIS);
+        polled.names = names;
+        polled.attributes = attributes;
+        put(polled);
+    }
+
+    private void put(Polled polled) {
+        Polled old = mPolled.put(polled.watch, polled);
+        if (old != null) {
+            old.removed = true;
+        }
+        mQueue.add(polled);
+    }
+
+    synchronized void remove(Watch directory) {
+        Polled polled = mPolled.remove(directory);
+        if (polled != null) {
+            polled.removed = true;
+        }
+    }
+
+    /** Stop polling for {@code observer}, and for observers which were garbage collected */
+    synchronized void removeAll(FileObserver observer) {
+        Iterator<Polled> it = mPolled.values().iterator();
+        while (it.hasNext()) {
+            Polled polled = it.next();
+            FileObserver owner = polled.watch.observer.get();
+            if (owner == null || owner == observer) {
+                polled.removed = true;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mPolled.size();
+    }
+
+    /** Poll the directories which are due, within {@link #PASS_MILLIS} */
+    void poll(long nowMillis) {
+        poll(nowMillis, PASS_MILLIS);
+    }
+
+    /** Poll the directories which are due, within {@code passMillis} */
+    void poll(long nowMillis, long passMillis) {
+        long deadline = System.nanoTime() + passMillis * 1000000;
+        ArrayList<Polled> batch = new ArrayList<Polled>(BATCH);
+        while (System.nanoTime() < deadline) {
+            batch.clear();
+            synchronized (this) {
+                while (batch.size() < BATCH) {
+                    Polled polled = mQueue.peek();
+                    if (polled == null || polled.dueMillis > nowMillis) {
+                        break;
+                    }
+                    mQueue.poll();
+                    if (!polled.removed) {
+                        batch.add(polled);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            scan(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                update(batch.get(i), nowMillis);
+            }
+        }
+    }
+
+    /** When the next directory is due, Long.MAX_VALUE if none is polled */
+    synchronized long nextDueMillis() {
+        Polled polled = mQueue.peek();
+        return polled == null ? Long.MAX_VALUE : polled.dueMillis;
+    }
+
+    /** Diff the new listing of {@code polled} and schedule its next poll */
+    private void update(Polled polled, long nowMillis) {
+        String[] names = polled.scannedNames;
+        long[] attributes = polled.scannedAttributes;
+        polled.scannedNames = null;
+        polled.scannedAttributes = null;
+        if (polled.removed) {
+            return;
+        }
+        if (names == null) {
+            remove(polled.watch);
+            onGone(polled.watch);
+            return;
+        }
+        // taking the baseline says nothing about the activity yet
+        if (polled.names != null) {
+            if (diff(polled, names, attributes)) {
+                polled.heat++;
+                polled.intervalMillis = MIN_INTERVAL_MILLIS;
+            } else {
+                polled.heat = Math.max(0, polled.heat - 1);
+                polled.intervalMillis = Math.min(MAX_INTERVAL_MILLIS, polled.intervalMillis * 2);
+            }
+        }
+        polled.names = names;
+        polled.attributes = attributes;
+        if (polled.heat >= PROMOTE_HEAT && !polled.removed && onHot(polled.watch)) {
+            remove(polled.watch);
+            return;
+        }
+
+        synchronized (this) {
+            if (!polled.removed) {
+                polled.dueMillis = nowMillis + polled.intervalMillis;
+                mQueue.add(polled);
+            }
+        }
+    }
+
+    /**
+     * List every directory of the batch, spread over the scan threads, and
+     * return once all are done.
+     */
+    private static void scan(final ArrayList<Polled> batch) {
+        final int tasks = Math.min(batch.size(),
+                Math.min(THREADS, Runtime.getRuntime().availableProcessors()));
+        final CountDownLatch done = new CountDownLatch(tasks - 1);
+        for (int t = 1; t < tasks; t++) {
+            final int first = t;
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        scan(batch, first, tasks);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                pool().execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        scan(batch, 0, tasks);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void scan(ArrayList<Polled> batch, int first, int step) {
+        for (int i = first; i < batch.size(); i += step) {
+            Polled polled = batch.get(i);
+            long[][] out = new long[1][];
+            // the previous listing spares the stats of unchanged entries
+            polled.scannedNames = DirectoryScanner.scan(polled.watch.path(),
+                    polled.names, polled.attributes, out);
+            polled.scannedAttributes = out[0];
+        }
+    }
+
+    /** Report the differences between the baseline of {@code polled} and the new listing */
+    private boolean diff(Polled polled, String[] names, long[] attributes) {
+        String[] oldNames = polled.names;
+        long[] oldAttributes = polled.attributes;
+        ArrayList<Integer> gone = new ArrayList<Integer>();
+        ArrayList<Integer> appeared = new ArrayList<Integer>();
+        ArrayList<String> written = new ArrayList<String>();
+        int o = 0;
+        int n = 0;
+        while (o < oldNames.length || n < names.length) {
+            int order = o == oldNames.length ? 1 : n == names.length ? -1
+                    : oldNames[o].compareTo(names[n]);
+            if (order < 0) {
+                gone.add(o++);
+            } else if (order > 0) {
+                appeared.add(n++);
+            } else {
+                int oldEntry = o * STRIDE;
+                int entry = n * STRIDE;
+                if (oldAttributes[oldEntry + TYPE] != attributes[entry + TYPE]) {
+                    // replaced by something of the other kind
+                    gone.add(o);
+                    appeared.add(n);
+                } else if (attributes[entry + TYPE] != DIRECTORY
+                        && (oldAttributes[oldEntry + INODE] != attributes[entry + INODE]
+                        || oldAttributes[oldEntry + SIZE] != attributes[entry + SIZE]
+                        || oldAttributes[oldEntry + MTIME] != attributes[entry + MTIME])) {
+                    written.add(names[n]);
+                }
+                o++;
+                n++;
+            }
+        }
+        if (gone.isEmpty() && appeared.isEmpty() && written.isEmpty()) {
+            return false;
+        }
+
+        Watch directory = polled.watch;
+        if (!gone.isEmpty() && !appeared.isEmpty()) {
+            HashMap<Long, Integer> byIdentity = new HashMap<Long, Integer>();
+            for (int i = 0; i < appeared.size(); i++) {
+                Long identity = identity(attributes, appeared.get(i) * STRIDE);
+                if (identity != null) {
+                    byIdentity.put(identity, i);
+                }
+            }
+            for (int i = 0; i < gone.size(); i++) {
+                int oldEntry = gone.get(i) * STRIDE;
+                Long identity = identity(oldAttributes, oldEntry);
+                Integer match = identity == null ? null : byIdentity.remove(identity);
+                if (match == null || appeared.get(match) < 0
+                        || !sameEntry(oldAttributes, oldEntry, attributes, appeared.get(match) * STRIDE)) {
+                    continue;
+                }
+                int isDir = oldAttributes[oldEntry + TYPE] == DIRECTORY ? FileObserver.ISDIR : 0;
+                int cookie = mNextCookie++;
+                onChange(directory, FileObserver.MOVED_FROM | isDir, cookie, oldNames[gone.get(i)]);
+                onChange(directory, FileObserver.MOVED_TO | isDir, cookie, names[appeared.get(match)]);
+                gone.set(i, -1);
+                appeared.set(match, -1);
+            }
+        }
+        for (int i = 0; i < gone.size(); i++) {
+            int index = gone.get(i);
+            if (index >= 0) {
+                onChange(directory, FileObserver.DELETE | typeBit(oldAttributes, index),
+                        0, oldNames[index]);
+            }
+        }
+        for (int i = 0; i < appeared.size(); i++) {
+            int index = appeared.get(i);
+            if (index >= 0) {
+                onChange(directory, FileObserver.CREATE | typeBit(attributes, index),
+                        0, names[index]);
+            }
+        }
+        for (int i = 0; i < written.size(); i++) {
+            onChange(directory, FileObserver.CLOSE_WRITE, 0, written.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * What a renamed entry keeps: its inode, or without one the size and
+     * mtime of a file.  Null for a directory read without inodes.
+     */
+    private static Long identity(long[] attributes, int entry) {
+        if (attributes[entry + INODE] != DirectoryScanner.UNKNOWN_INODE) {
+            return attributes[entry + INODE];
+        }
+        if (attributes[entry + TYPE] == DIRECTORY) {
+            return null;
+        }
+        return attributes[entry + MTIME] * 31 + attributes[entry + SIZE];
+    }
+
+    private static boolean sameEntry(long[] oldAttributes, int oldEntry, long[] attributes, int entry) {
+        if (oldAttributes[oldEntry + TYPE] != attributes[entry + TYPE]
+                || oldAttributes[oldEntry + INODE] != attributes[entry + INODE]) {
+            return false;
+        }
+        return oldAttributes[oldEntry + INODE] != DirectoryScanner.UNKNOWN_INODE
+                || (oldAttributes[oldEntry + SIZE] == attributes[entry + SIZE]
+                && oldAttributes[oldEntry + MTIME] == attributes[entry + MTIME]);
+    }
+
+    private static int typeBit(long[] attributes, int index) {
+        return attributes[index * STRIDE + TYPE] == DIRECTORY ? FileObserver.ISDIR : 0;
+    }
+}
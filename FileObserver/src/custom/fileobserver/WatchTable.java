@@ -0,0 +1,266 @@
+package custom.fileobserver;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing map from watch descriptor to {@link Watch}, specialized for
+ * int keys so that lookups never box.
+ *
+ * <p>inotify hands out the same descriptor when a directory is added again
+ * on the same instance, so observers whose trees overlap share the kernel
+ * watch.  Each of them keeps its own node, and the nodes of one descriptor
+ * are chained through {@link Watch#nextShared}, at most one per observer.
+ * The kernel watch is needed as long as the chain is not empty.</p>
+ *
+ * <p>{@link #get(int)} takes no lock and may run concurrently with
+ * {@link #put(int, Watch)} and {@link #remove(int)}, which serialize on the
+ * table.  A slot's key is published after its value and never changes for the
+ * lifetime of the backing arrays; removal only clears the value.  Cleared
+ * slots are dropped when the arrays are rebuilt, which happens when live plus
+ * cleared slots pass half the capacity.  Readers racing a rebuild keep
+ * probing the arrays they started on, which stay valid.</p>
+ *
+ * <p>Watch descriptors returned by inotify are positive, so 0 marks a free
+ * slot.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class WatchTable {
+    private static final int FREE = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Slots {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<Watch> values;
+        /** live plus cleared slots */
+        int used;
+
+        Slots(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<Watch>(capacity);
+        }
+    }
+
+    private volatile Slots mSlots = new Slots(MIN_CAPACITY);
+    /** Descriptors with nodes */
+    private int mSize;
+    /** Nodes, shared descriptors counting once per observer */
+    private int mNodes;
+
+    private static int hash(int wd) {
+        // watch descriptors are handed out sequentially, spread them a little
+        int h = wd * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Lock free lookup of the first node of {@code wd}, the others follow
+     * through {@link Watch#nextShared}; null if {@code wd} is not registered
+     */
+    Watch get(int wd) {
+        Slots slots = mSlots;
+        AtomicIntegerArray keys = slots.keys;
+        int mask = keys.length() - 1;
+        for (int i = hash(wd) & mask; ; i = (i + 1) & mask) {
+            int key = keys.get(i);
+            if (key == wd) {
+                return slots.values.get(i);
+            }
+            if (key == FREE) {
+                return null;
+            }
+        }
+    }
+
+    /** The node of {@code observer} on {@code wd}, or null; lock free */
+    Watch find(int wd, FileObserver observer) {
+        for (Watch node = get(wd); node != null; node = node.nextShared) {
+            if (node.observer.get() == observer) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /** How many observers share {@code wd}; lock free */
+    int sharers(int wd) {
+        int count = 0;
+        for (Watch node = get(wd); node != null; node = node.nextShared) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Add {@code watch} to the nodes of {@code wd}.  A node of the same
+     * observer is replaced, the same directory was added again.
+     *
+     * @return the replaced node, or null
+     */
+    synchronized Watch put(int wd, Watch watch) {
+        if (wd <= 0) {
+            throw new IllegalArgumentException("invalid watch descriptor " + wd);
+        }
+        if (watch == null) {
+            throw new NullPointerException("watch");
+        }
+        Slots slots = mSlots;
+        int i = indexOf(slots, wd);
+        if (slots.keys.get(i) == FREE) {
+            if ((slots.used + 1) * 2 > slots.keys.length()) {
+                slots = rebuild(mSize + 1);
+                i = indexOf(slots, wd);
+            }
+            watch.nextShared = null;
+            slots.values.set(i, watch);
+            slots.keys.set(i, wd);
+            slots.used++;
+            mSize++;
+            mNodes++;
+            return null;
+        }
+        Watch head = slots.values.get(i);
+        if (head == null) {
+            watch.nextShared = null;
+            slots.values.set(i, watch);
+            mSize++;
+            mNodes++;
+            return null;
+        }
+
+        FileObserver observer = watch.observer.get();
+        Watch previous = null;
+        for (Watch node = head; node != null; previous = node, node = node.nextShared) {
+            if (node == watch) {
+                return null;
+            }
+            if (node.observer.get() == observer) {
+                // readers still on the old node find the rest of the chain behind it
+                watch.nextShared = node.nextShared;
+                if (previous == null) {
+                    slots.values.set(i, watch);
+                } else {
+                    previous.nextShared = watch;
+                }
+                return node;
+            }
+        }
+        watch.nextShared = head;
+        slots.values.set(i, watch);
+        mNodes++;
+        return null;
+    }
+
+    /**
+     * Unregister {@code wd} with all its nodes.
+     *
+     * @return the first of the removed nodes, still chained, or null
+     */
+    synchronized Watch remove(int wd) {
+        Slots slots = mSlots;
+        int i = indexOf(slots, wd);
+        if (slots.keys.get(i) == FREE) {
+            return null;
+        }
+        Watch old = slots.values.getAndSet(i, null);
+        if (old != null) {
+            mSize--;
+            for (Watch node = old; node != null; node = node.nextShared) {
+                mNodes--;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Remove the node {@code watch} of {@code wd}.
+     *
+     * @return how many nodes {@code wd} has left, or -1 if {@code watch} was not one of them
+     */
+    synchronized int remove(int wd, Watch watch) {
+        Slots slots = mSlots;
+        int i = indexOf(slots, wd);
+        if (slots.keys.get(i) == FREE) {
+            return -1;
+        }
+        Watch previous = null;
+        Watch node = slots.values.get(i);
+        while (node != null && node != watch) {
+            previous = node;
+            node = node.nextShared;
+        }
+        if (node == null) {
+            return -1;
+        }
+        // the removed node keeps its link for readers walking past it
+        if (previous == null) {
+            slots.values.set(i, watch.nextShared);
+        } else {
+            previous.nextShared = watch.nextShared;
+        }
+        mNodes--;
+        Watch head = slots.values.get(i);
+        if (head == null) {
+            mSize--;
+        }
+        int left = 0;
+        for (node = head; node != null; node = node.nextShared) {
+            left++;
+        }
+        return left;
+    }
+
+    /** The number of registered descriptors, which is the number of kernel watches */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /** A copy of all registered nodes, those of shared descriptors included */
+    synchronized Watch[] snapshot() {
+        Watch[] watches = new Watch[mNodes];
+        AtomicReferenceArray<Watch> values = mSlots.values;
+        for (int i = 0, n = 0; i < values.length(); i++) {
+            for (Watch node = values.get(i); node != null; node = node.nextShared) {
+                watches[n++] = node;
+            }
+        }
+        return watches;
+    }
+
+    /** Slot holding {@code wd}, or the free slot where it would go */
+    private static int indexOf(Slots slots, int wd) {
+        AtomicIntegerArray keys = slots.keys;
+        int mask = keys.length() - 1;
+        int i = hash(wd) & mask;
+        while (true) {
+            int key = keys.get(i);
+            if (key == wd || key == FREE) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private Slots rebuild(int live) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < live * 4) {
+            capacity <<= 1;
+        }
+        Slots old = mSlots;
+        Slots slots = new Slots(capacity);
+        for (int i = 0; i < old.keys.length(); i++) {
+            Watch watch = old.values.get(i);
+            if (watch != null) {
+                int wd = old.keys.get(i);
+                int j = indexOf(slots, wd);
+                slots.values.set(j, watch);
+                slots.keys.set(j, wd);
+                slots.used++;
+            }
+        }
+        mSlots = slots;
+        return slots;
+    }
+}
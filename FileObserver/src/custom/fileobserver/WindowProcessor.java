@@ -0,0 +1,310 @@
+package custom.fileobserver;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cuts a stream of events into batches of up to {@code maxCount} events,
+ * each closed once full or {@code maxMillis} after its first event.  With
+ * coalescing a batch holds one event per path, the masks of the later ones
+ * OR-ed into the first.
+ *
+ * <p>Demand is counted in batches.  Upstream is asked for no more than
+ * fills the open batch, and only while no closed batch waits for demand,
+ * so a subscriber which stops requesting holds back at most one batch and
+ * the rest waits in the publisher's buffer, where the publisher's policy
+ * applies.  Time windows are closed on one shared timer thread.</p>
+ *
+ * @author Dai Dongsheng
+ * Email: doyee@163.com
+ */
+final class WindowProcessor implements Flow.Processor<ChangeEvent, List<ChangeEvent>>,
+        Flow.Subscription {
+    private static final String LOG_TAG = "WindowProcessor";
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WindowProcessor timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sTimer.allowCoreThreadTimeOut(true);
+        }
+        return sTimer;
+    }
+
+    private final int mMaxCount;
+    private final long mMaxMillis;
+    private final boolean mCoalesce;
+    /** Drain requests, see {@link #drain()} */
+    private final AtomicInteger mWip = new AtomicInteger();
+    private final Runnable mCloseWindow = new Runnable() {
+        public void run() {
+            synchronized (WindowProcessor.this) {
+                mTimeout = null;
+                closeWindow();
+            }
+            drain();
+        }
+    };
+
+    // all guarded by this
+    private Flow.Subscriber<? super List<ChangeEvent>> mDownstream;
+    private Flow.Subscription mUpstream;
+    private ArrayList<ChangeEvent> mOpen = new ArrayList<ChangeEvent>();
+    /** Index into mOpen by path, while coalescing */
+    private final HashMap<String, Integer> mOpenPaths = new HashMap<String, Integer>();
+    private final ArrayDeque<List<ChangeEvent>> mClosed = new ArrayDeque<List<ChangeEvent>>();
+    private ScheduledFuture<?> mTimeout;
+    /** Batches requested downstream */
+    private long mDemand;
+    /** Events requested upstream and not yet received */
+    private long mOutstanding;
+    private boolean mUpstreamDone;
+    private Throwable mError;
+    private boolean mCancelled;
+
+    WindowProcessor(int maxCount, long maxMillis, boolean coalesce) {
+        mMaxCount = Math.max(1, maxCount);
+        mMaxMillis = maxMillis;
+        mCoalesce = coalesce;
+    }
+
+    public void subscribe(Flow.Subscriber<? super List<ChangeEvent>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        boolean taken;
+        synchronized (this) {
+            taken = mDownstream != null;
+            if (!taken) {
+                mDownstream = subscriber;
+            }
+        }
+        if (taken) {
+            // one subscriber per window processor, the publishers make one each
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(this);
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean cancel;
+        synchronized (this) {
+            cancel = mUpstream != null || mCancelled;
+            if (!cancel) {
+                mUpstream = subscription;
+            }
+        }
+        if (cancel) {
+            subscription.cancel();
+            return;
+        }
+        refill();
+    }
+
+    public void onNext(ChangeEvent event) {
+        boolean full;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            if (mOutstanding > 0) {
+                mOutstanding--;
+            }
+            Integer index = mCoalesce ? mOpenPaths.get(event.getPath()) : null;
+            if (index != null) {
+                mOpen.set(index, mOpen.get(index).merge(event));
+            } else {
+                if (mCoalesce) {
+                    mOpenPaths.put(event.getPath(), mOpen.size());
+                }
+                mOpen.add(event);
+                if (mOpen.size() == 1 && mMaxMillis > 0) {
+                    mTimeout = timer().schedule(mCloseWindow, mMaxMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            full = mOpen.size() >= mMaxCount;
+            if (full) {
+                closeWindow();
+            }
+        }
+        if (full) {
+            drain();
+        }
+        refill();
+    }
+
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            closeWindow();
+            mUpstreamDone = true;
+            mError = throwable;
+        }
+        drain();
+    }
+
+    public void onComplete() {
+        synchronized (this) {
+            closeWindow();
+            mUpstreamDone = true;
+        }
+        drain();
+    }
+
+    public void request(long n) {
+        Flow.Subscription upstream = null;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            if (n <= 0) {
+                upstream = mUpstreamDone ? null : mUpstream;
+                mUpstreamDone = true;
+                mError = new IllegalArgumentException("non-positive request " + n);
+                mClosed.clear();
+            } else {
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+        }
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        drain();
+        refill();
+    }
+
+    public void cancel() {
+        Flow.Subscription upstream;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            upstream = mUpstream;
+            mOpen.clear();
+            mOpenPaths.clear();
+            mClosed.clear();
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+                mTimeout = null;
+            }
+        }
+        if (upstream != null) {
+            upstream.cancel();
+        }
+    }
+
+    /** Move the open batch, if any, to the closed ones; called holding the lock */
+    private void closeWindow() {
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+            mTimeout = null;
+        }
+        if (mOpen.isEmpty()) {
+            return;
+        }
+        mClosed.add(mOpen);
+        mOpen = new ArrayList<ChangeEvent>();
+        mOpenPaths.clear();
+    }
+
+    /** Ask upstream for what fills the open batch, unless batches wait for demand */
+    private void refill() {
+        Flow.Subscription upstream;
+        long wanted;
+        synchronized (this) {
+            upstream = mUpstream;
+            if (upstream == null || mCancelled || mUpstreamDone || !mClosed.isEmpty()
+                    || mOutstanding > 0) {
+                return;
+            }
+            wanted = mMaxCount - mOpen.size();
+            mOutstanding = wanted;
+        }
+        upstream.request(wanted);
+    }
+
+    /**
+     * Hand the closed batches to the subscriber as far as it asked for
+     * them, then the end of the stream.  Whoever finds the counter at 0
+     * drains; everybody else only bumps it, so the subscriber is never
+     * called concurrently.
+     */
+    private void drain() {
+        if (mWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            while (true) {
+                List<ChangeEvent> batch = null;
+                Throwable error = null;
+                boolean finished = false;
+                Flow.Subscriber<? super List<ChangeEvent>> downstream;
+                synchronized (this) {
+                    downstream = mDownstream;
+                    if (mCancelled || downstream == null) {
+                        break;
+                    }
+                    if (mDemand > 0 && !mClosed.isEmpty()) {
+                        batch = mClosed.poll();
+                        if (mDemand != Long.MAX_VALUE) {
+                            mDemand--;
+                        }
+                    } else if (mUpstreamDone && mClosed.isEmpty()) {
+                        mCancelled = true;
+                        error = mError;
+                        finished = true;
+                    } else {
+                        break;
+                    }
+                }
+                if (finished) {
+                    if (error != null) {
+                        downstream.onError(error);
+                    } else {
+                        downstream.onComplete();
+                    }
+                    return;
+                }
+                try {
+                    downstream.onNext(batch);
+                } catch (Throwable throwable) {
+                    Log.wtf(LOG_TAG, "Unhandled exception in subscriber " + downstream, throwable);
+                    cancel();
+                    return;
+                }
+            }
+            missed = mWip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+        refill();
+    }
+}